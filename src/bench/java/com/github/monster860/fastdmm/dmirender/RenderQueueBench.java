@@ -0,0 +1,164 @@
+package com.github.monster860.fastdmm.dmirender;
+
+import java.awt.Color;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Puts the same sprites in a TreeSet<RenderInstance>, the way rendering used to work, and in a RenderQueue, and
+ * checks the queue sorts them in the same order. Once with sprites added in creation order and once shuffled, since
+ * the queue skips a pass for the first. Then times filling and walking both, and counts what each allocates.
+ *
+ * The sprites have the layers and planes that could trip up the sort: -0 and 0, NaN, infinities, negative and
+ * extreme planes, and some sprites sharing a creation index. A TreeSet keeps one of a group of sprites that compare
+ * equal, where the queue keeps all of them next to each other, so those count as one for the check.
+ *
+ * "gradlew benchRenderQueue" for the whole thing on 100k sprites. With -Dbench.quick=true (what benchCheck does)
+ * it's 5000 and only the check.
+ */
+public class RenderQueueBench {
+	private static final float[] LAYERS = {2, 2.01f, 2.5f, 3, 3.1f, 3.2f, 4, 4.1f, 5, 10, -1, 0, -0f, Float.NaN,
+			Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MAX_VALUE, -Float.MIN_VALUE, Float.MIN_VALUE};
+	private static final int[] PLANES = {-2, -1, 101, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+	final int n;
+	final float[] x, y, layer;
+	final int[] plane, color, creationIndex;
+
+	RenderQueueBench(int n) {
+		this.n = n;
+		Random rand = new Random(1);
+		x = new float[n];
+		y = new float[n];
+		layer = new float[n];
+		plane = new int[n];
+		color = new int[n];
+		creationIndex = new int[n];
+		for(int i = 0; i < n; i++) {
+			x[i] = rand.nextInt(300);
+			y[i] = rand.nextInt(300);
+			layer[i] = LAYERS[rand.nextInt(LAYERS.length)];
+			// Mostly plane 0 like a real map.
+			plane[i] = rand.nextInt(10) == 0 ? PLANES[rand.nextInt(PLANES.length)] : 0;
+			color[i] = rand.nextInt(0x1000000);
+			// Negative ones too, and every 50th shares its index with the one before.
+			creationIndex[i] = i - n / 2 - (i % 50 == 1 ? 1 : 0);
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean quick = Boolean.getBoolean("bench.quick");
+		RenderQueueBench sprites = new RenderQueueBench(quick ? 5000 : 100000);
+		RenderQueue queue = new RenderQueue();
+
+		TreeSet<RenderInstance> set = sprites.treeSet();
+		int[] inOrder = new int[sprites.n];
+		for(int i = 0; i < inOrder.length; i++)
+			inOrder[i] = i;
+		sprites.fill(queue, inOrder);
+		compare("in creation order", set, queue);
+
+		List<Integer> shuffled = new ArrayList<>();
+		for(int i = 0; i < sprites.n; i++)
+			shuffled.add(i);
+		Collections.shuffle(shuffled, new Random(2));
+		int[] addOrder = new int[sprites.n];
+		for(int i = 0; i < addOrder.length; i++)
+			addOrder[i] = shuffled.get(i);
+		sprites.fill(queue, addOrder);
+		compare("shuffled", set, queue);
+		if(quick)
+			return;
+
+		long[] oldAllocated = new long[1];
+		long old = best(20, oldAllocated, () -> {
+			long sum = 0;
+			for(RenderInstance ri : sprites.treeSet())
+				sum += ri.creationIndex;
+			return sum;
+		});
+		long[] newAllocated = new long[1];
+		long now = best(20, newAllocated, () -> {
+			sprites.fill(queue, inOrder);
+			long sum = 0;
+			for(int i = 0; i < queue.size; i++)
+				sum += queue.creationIndex[queue.sorted(i)];
+			return sum;
+		});
+		System.out.printf("%d sprites: TreeSet %.2f ms (%d KB allocated), RenderQueue %.2f ms (%d KB allocated), %.1fx%n",
+				sprites.n, old / 1e6, oldAllocated[0] / 1024, now / 1e6, newAllocated[0] / 1024, old / (double)now);
+	}
+
+	TreeSet<RenderInstance> treeSet() {
+		TreeSet<RenderInstance> set = new TreeSet<>();
+		for(int i = 0; i < n; i++)
+			set.add(instance(i));
+		return set;
+	}
+
+	RenderInstance instance(int i) {
+		RenderInstance ri = new RenderInstance(creationIndex[i]);
+		ri.x = x[i];
+		ri.y = y[i];
+		ri.color = new Color(color[i]);
+		ri.plane = plane[i];
+		ri.layer = layer[i];
+		return ri;
+	}
+
+	void fill(RenderQueue queue, int[] addOrder) {
+		queue.clear();
+		for(int i : addOrder)
+			queue.add(x[i], y[i], null, color[i], plane[i], layer[i], creationIndex[i]);
+		queue.sort();
+	}
+
+	private static void compare(String what, TreeSet<RenderInstance> set, RenderQueue queue) {
+		Iterator<RenderInstance> expected = set.iterator();
+		RenderInstance last = null;
+		int duplicates = 0;
+		for(int i = 0; i < queue.size; i++) {
+			int index = queue.sorted(i);
+			if(last != null && queue.compareTo(index, last) == 0) {
+				duplicates++;
+				continue;
+			}
+			if(!expected.hasNext())
+				throw new IllegalStateException(what + ": the queue has more sprites than the TreeSet");
+			last = expected.next();
+			if(queue.compareTo(index, last) != 0)
+				throw new IllegalStateException(what + ": sprite " + i + " in order is plane " + queue.plane[index]
+						+ " layer " + queue.layer[index] + " index " + queue.creationIndex[index] + ", should be plane "
+						+ last.plane + " layer " + last.layer + " index " + last.creationIndex);
+		}
+		if(expected.hasNext())
+			throw new IllegalStateException(what + ": the queue has fewer sprites than the TreeSet");
+		System.out.println(what + ": same order as the TreeSet, " + queue.size + " sprites (" + duplicates
+				+ " compare equal to the one before)");
+	}
+
+	interface Run {
+		long run();
+	}
+
+	// Best time of a few runs after a few to warm up. Also how much the last one allocated, where the JVM can say.
+	private static long best(int runs, long[] allocated, Run run) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+				? (com.sun.management.ThreadMXBean)threads : null;
+		long thread = Thread.currentThread().getId();
+		long check = run.run();
+		for(int i = 0; i < 4; i++)
+			run.run();
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < runs; i++) {
+			long bytes = allocation != null ? allocation.getThreadAllocatedBytes(thread) : 0;
+			long start = System.nanoTime();
+			if(run.run() != check)
+				throw new IllegalStateException("Different sprites from one run to the next");
+			best = Math.min(best, System.nanoTime() - start);
+			allocated[0] = allocation != null ? allocation.getThreadAllocatedBytes(thread) - bytes : -1;
+		}
+		return best;
+	}
+}
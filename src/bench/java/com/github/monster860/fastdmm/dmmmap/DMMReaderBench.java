@@ -0,0 +1,384 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.*;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+
+import com.github.monster860.fastdmm.objtree.ObjectTree;
+
+/**
+ * Loads the sample maps with the line by line regex loader DMM used to have (copied below) and with DMMReader,
+ * checks that both come out with the same dictionary, map, bounds and free keys, then times them.
+ *
+ * Also loads them from a map cache entry, which has to open lazily like the file does and come out the same once
+ * every level is loaded. The cache goes in the sample maps' temporary directory instead of ~/.fastdmm.
+ *
+ * "gradlew benchMapLoad" for the whole thing on station sized maps. With -Dbench.quick=true (what benchCheck
+ * does) it's small maps and only the check.
+ */
+public class DMMReaderBench {
+	public static void main(String[] args) throws Exception {
+		boolean quick = Boolean.getBoolean("bench.quick");
+		SampleMaps samples = quick ? new SampleMaps(48, 2, 300) : new SampleMaps(255, 6, 3000);
+		boolean parallel = DMM.parallelLoading;
+		String home = System.getProperty("user.home");
+		System.setProperty("user.home", samples.dir.getPath());
+		DMM.lazyLevels = false;
+		DMM.useMapCache = false;
+		try {
+			for(File file : samples.files()) {
+				LegacyReader legacy = new LegacyReader(file, samples.tree);
+				for(boolean p : new boolean[] {false, true}) {
+					DMM.parallelLoading = p;
+					compare(file.getName() + (p ? " (parallel)" : " (serial)"), legacy, new DMM(file, samples.tree, null));
+				}
+
+				DMM.lazyLevels = true;
+				DMM cached = openFromCache(file, samples.tree);
+				if(cached.levelSource == null || cached.levelSource.getUnloadedLevels().size() != cached.maxZ - cached.minZ)
+					throw new IllegalStateException(file.getName() + " from the cache didn't leave all but one level unloaded");
+				cached.loadAllLevels();
+				compare(file.getName() + " (from the cache, levels loaded later)", legacy, cached);
+				DMM.lazyLevels = false;
+				compare(file.getName() + " (from the cache)", legacy, openFromCache(file, samples.tree));
+				DMM.useMapCache = false;
+				if(quick)
+					continue;
+
+				long old = best(3, () -> new LegacyReader(file, samples.tree));
+				DMM.parallelLoading = false;
+				long serial = best(5, () -> new DMM(file, samples.tree, null));
+				DMM.parallelLoading = true;
+				long par = best(5, () -> new DMM(file, samples.tree, null));
+				System.out.printf("%s (%d KB): old %d ms, new %d ms (%.1fx), new parallel %d ms (%.1fx)%n",
+						file.getName(), file.length() / 1024, old / 1000000, serial / 1000000, old / (double)serial,
+						par / 1000000, old / (double)par);
+
+				// Opening for editing: only the first level gets loaded.
+				DMM.lazyLevels = true;
+				long lazy = best(5, () -> new DMM(file, samples.tree, null));
+				DMM.useMapCache = true;
+				long cachedLazy = best(5, () -> new DMM(file, samples.tree, null));
+				DMM.lazyLevels = false;
+				long cachedAll = best(5, () -> new DMM(file, samples.tree, null));
+				DMM.useMapCache = false;
+				System.out.printf("%s opened lazily: %d ms, from the cache %d ms, from the cache with every level %d ms%n",
+						file.getName(), lazy / 1000000, cachedLazy / 1000000, cachedAll / 1000000);
+			}
+		} finally {
+			DMM.parallelLoading = parallel;
+			DMM.useMapCache = false;
+			System.setProperty("user.home", home);
+			samples.delete();
+		}
+	}
+
+	// Opens the map once to get a cache entry written, waits for it, then opens it again from the entry.
+	static DMM openFromCache(File file, ObjectTree tree) throws IOException, InterruptedException {
+		DMM.useMapCache = true;
+		File cacheFile = MapCache.getCacheFile(file);
+		cacheFile.delete();
+		new DMM(file, tree, null);
+		for(int i = 0; !cacheFile.exists(); i++) {
+			if(i == 1000)
+				throw new IllegalStateException("No cache entry for " + file.getName() + " got written");
+			Thread.sleep(10);
+		}
+		DMM dmm = new DMM(file, tree, null);
+		if(dmm.levelSource instanceof DMMReader)
+			throw new IllegalStateException(file.getName() + " didn't load from the cache");
+		return dmm;
+	}
+
+	interface Load {
+		void run() throws IOException;
+	}
+
+	// Best time of a few runs, after one to warm up.
+	static long best(int runs, Load load) throws IOException {
+		load.run();
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			load.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private static void compare(String what, LegacyReader legacy, DMM dmm) {
+		List<String> problems = new ArrayList<>();
+		String oldBounds = legacy.minX + "," + legacy.minY + "," + legacy.minZ + " " + legacy.maxX + "," + legacy.maxY + "," + legacy.maxZ;
+		String newBounds = dmm.minX + "," + dmm.minY + "," + dmm.minZ + " " + dmm.maxX + "," + dmm.maxY + "," + dmm.maxZ;
+		if(!oldBounds.equals(newBounds))
+			problems.add("bounds " + oldBounds + " vs " + newBounds);
+		if(legacy.keyLen != dmm.keyLen)
+			problems.add("keyLen " + legacy.keyLen + " vs " + dmm.keyLen);
+		if(legacy.isTGM != dmm.isTGM)
+			problems.add("isTGM " + legacy.isTGM + " vs " + dmm.isTGM);
+		if(legacy.unusedKeys.size() != dmm.keys.freeCount())
+			problems.add("free keys " + legacy.unusedKeys.size() + " vs " + dmm.keys.freeCount());
+
+		Map<String, String> oldInstances = new TreeMap<>();
+		for(Map.Entry<String, TileInstance> e : legacy.instances.entrySet())
+			oldInstances.put(e.getKey(), e.getValue() + " refs=" + e.getValue().refCount);
+		Map<String, String> newInstances = new TreeMap<>();
+		for(int id = 1; id < dmm.instances.idLimit(); id++) {
+			TileInstance ti = dmm.instances.get(id);
+			if(ti != null)
+				newInstances.put(dmm.instances.getKey(id), ti + " refs=" + ti.refCount);
+		}
+		if(!oldInstances.equals(newInstances))
+			problems.add("dictionary differs, " + oldInstances.size() + " vs " + newInstances.size() + " entries");
+
+		int cells = 0;
+		for(int z = legacy.minZ; z <= legacy.maxZ; z++) {
+			for(int y = legacy.minY; y <= legacy.maxY; y++) {
+				for(int x = legacy.minX; x <= legacy.maxX; x++) {
+					Location l = new Location(x, y, z);
+					String oldKey = legacy.map.get(l);
+					String newKey = dmm.map.get(l);
+					if(!Objects.equals(oldKey, newKey) && cells++ < 5)
+						problems.add("tile " + x + "," + y + "," + z + " " + oldKey + " vs " + newKey);
+				}
+			}
+		}
+		if(legacy.map.size() != dmm.map.size())
+			problems.add("map size " + legacy.map.size() + " vs " + dmm.map.size());
+
+		if(!problems.isEmpty())
+			throw new IllegalStateException(what + " loads differently:\n" + String.join("\n", problems));
+		System.out.println(what + ": same as the old loader, " + newInstances.size() + " instances, " + dmm.map.size() + " tiles");
+	}
+
+	/**
+	 * What the DMM constructor did before DMMReader, only changed to keep its results in its own fields. The
+	 * TileInstance parsing is the current one, so this only measures the difference in reading the file.
+	 */
+	static class LegacyReader {
+		boolean isCommenting = false;
+		int parenthesisDepth = 0;
+		int stringDepth = 0;
+		int stringExpDepth = 0;
+		int parenthesesDepth = 0;
+		int[] arrayDepth = new int[50];
+
+		int minX = 1;
+		int minY = 1;
+		int minZ = 1;
+		int maxX = 1;
+		int maxY = 1;
+		int maxZ = 1;
+
+		int keyLen = 0;
+		BiMap<String, TileInstance> instances = HashBiMap.create();
+		Map<Location, String> map = new HashMap<>();
+		List<String> unusedKeys = new ArrayList<>();
+		boolean isTGM = false;
+
+		LegacyReader(File file, ObjectTree objTree) throws IOException {
+			// Only there to intern var-edited types into, like the editor would.
+			DMM dmm = new DMM(new File(file.getParentFile(), "nonexistent.dmm"), objTree, null);
+
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			String line = null;
+			String runOn = "";
+			Set<String> unusedKeysSet = new HashSet<>();
+
+			Map<String, String> substitutions = new TreeMap<>();
+
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if(Pattern.matches("//MAP CONVERTED BY dmm2tgm.py THIS HEADER COMMENT PREVENTS RECONVERSION, DO NOT REMOVE", line))
+					isTGM = true;
+				if(Pattern.matches("\\((\\d*) ?, ?(\\d*) ?, ?(\\d*) ?\\) ?= ?\\{\"", line)) {
+					br.reset();
+					break;
+				}
+				br.mark(100);
+				line = stripComments(line);
+				line = runOn + line;
+				if(!line.trim().isEmpty()) {
+					if(line.endsWith("\\")) {
+						line = line.substring(0, line.length() - 1);
+						runOn = line;
+					} else if(parenthesisDepth > 0) {
+						runOn = line;
+					} else {
+						runOn = "";
+						Matcher m = Pattern.compile("\"([a-zA-Z]*)\" ?= ?\\((.+)\\)").matcher(line);
+						if(m.find()) {
+							TileInstance ti = TileInstance.fromString(m.group(2), objTree, dmm);
+
+							// Handle cases where DM put in duplicate instances.
+							if(instances.inverse().containsKey(ti)) {
+								substitutions.put(m.group(1), instances.inverse().get(ti));
+								continue;
+							}
+							instances.put(m.group(1), TileInstance.fromString(m.group(2), objTree, dmm));
+							if(keyLen == 0) {
+								keyLen = m.group(1).length();
+								// Generate all the instance ID's
+								generateKeys(keyLen, "", unusedKeysSet);
+							}
+							unusedKeysSet.remove(m.group(1));
+						}
+					}
+				}
+			}
+			unusedKeys.addAll(unusedKeysSet);
+
+			Map<Location, String> reverseMap = new HashMap<>();
+
+			int partX = -1;
+			int partY = -1;
+			int partZ = -1;
+			int cursorX = 0;
+			int cursorY = 0;
+
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(partX == -1) {
+					Matcher m = Pattern.compile("\\((\\d*) ?, ?(\\d*) ?, ?(\\d*) ?\\) ?= ?\\{\"").matcher(line);
+					if(m.find()) {
+						partX = Integer.parseInt(m.group(1));
+						partY = Integer.parseInt(m.group(2));
+						partZ = Integer.parseInt(m.group(3));
+						cursorX = 0;
+						cursorY = 0;
+					}
+					continue;
+				}
+				if(Pattern.matches("\"}", line)) {
+					partX = -1;
+					partY = -1;
+					partZ = -1;
+					continue;
+				}
+				for(int i = 0; i < line.length(); i += keyLen) {
+					Location loc = new Location(cursorX + partX, cursorY + partY, partZ) ;
+					String key = line.substring(i, i+keyLen);
+					if(substitutions.containsKey(key))
+						key = substitutions.get(key);
+					reverseMap.put(loc, key);
+
+					if(loc.x > maxX) {
+						maxX = loc.x;
+					}
+					if(loc.y > maxY) {
+						maxY = loc.y;
+					}
+					if(loc.z > maxZ) {
+						maxZ = loc.z;
+					}
+					if(loc.x < minX) {
+						minX = loc.x;
+					}
+					if(loc.y < minY) {
+						minY = loc.y;
+					}
+					if(loc.z < minZ) {
+						minZ = loc.z;
+					}
+
+					cursorX++;
+				}
+				cursorX = 0;
+				cursorY += 1;
+			}
+
+			br.close();
+
+			for(Map.Entry<Location, String> entry : reverseMap.entrySet()) {
+				putMap(new Location(entry.getKey().x, maxY+minY-entry.getKey().y, entry.getKey().z), entry.getValue());
+			}
+		}
+
+		void putMap(Location l, String key) {
+			String oldKey = map.get(l);
+			if(oldKey != null) {
+				TileInstance i = instances.get(oldKey);
+				if (i != null) {
+					i.refCount--;
+				}
+			}
+			if(instances.containsKey(key)) {
+				TileInstance i = instances.get(key);
+				if(i != null)
+					i.refCount++;
+				map.put(l, key);
+			}
+		}
+
+		void generateKeys(int length, String prefix, Set<String> set) {
+			if(length <= 0) {
+				set.add(prefix);
+				return;
+			}
+			for(char c = 'a'; c <= 'z'; c++) {
+				generateKeys(length - 1, prefix + c, set);
+			}
+			for(char c = 'A'; c <= 'Z'; c++) {
+				generateKeys(length - 1, prefix + c, set);
+			}
+		}
+
+		String stripComments(String s)
+		{
+			StringBuilder o = new StringBuilder();
+			for(int i = 0; i < s.length(); i++) {
+				char pC = ' ';
+				if(i - 1 >= 0)
+					pC = s.charAt(i - 1);
+				char ppC = ' ';
+				if(i - 2 >= 0)
+					ppC = s.charAt(i - 2);
+				char c = s.charAt(i);
+				char nC = ' ';
+				if(i + 1 < s.length())
+					nC = s.charAt(i + 1);
+				if(!isCommenting) {
+					if(c == '/' && nC == '/' && stringDepth == 0)
+						break;
+					if(c == '/' && nC == '*' && stringDepth == 0) {
+						isCommenting = true;
+						continue;
+					}
+					if(c == '"' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth) {
+						stringDepth--;
+					} else if(c == '"' && stringDepth == stringExpDepth) {
+						stringDepth++;
+					}
+					if(c == '[' && stringDepth == stringExpDepth)
+						arrayDepth[stringExpDepth]++;
+					else if(c == '[' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth)
+						stringExpDepth++;
+
+					if(c == ']' && arrayDepth[stringExpDepth] != 0)
+						arrayDepth[stringExpDepth]--;
+					else if(c == ']' && stringDepth > 0 && stringDepth == stringExpDepth)
+						stringExpDepth--;
+					if(c == '(' && stringDepth == stringExpDepth)
+						parenthesisDepth++;
+					if(c == ')' && stringDepth == stringExpDepth)
+						parenthesisDepth--;
+					o.append(c);
+				}
+				else {
+					if(c == '*' && nC == '/') {
+						isCommenting = false;
+						i++;
+					}
+				}
+
+			}
+			return o.toString();
+		}
+	}
+}
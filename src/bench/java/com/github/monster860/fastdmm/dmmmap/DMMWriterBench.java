@@ -0,0 +1,196 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.*;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+
+/**
+ * Saves the sample maps with the PrintStream based save DMM used to have (copied below) and with DMMWriter, checks
+ * the files are the same byte for byte, then times both.
+ *
+ * DMMWriter gets checked twice, once with every z-level loaded and once with the levels left unloaded, since those
+ * get streamed straight from the file contents. Then once more with the levels left unloaded in a map cache entry.
+ * The classic map gets one more check with the rows of every level split into two blocks in the wrong order, which
+ * can't be streamed and has to be read into a grid first.
+ *
+ * "gradlew benchMapSave" for the whole thing on station sized maps. With -Dbench.quick=true (what benchCheck
+ * does) it's small maps and only the check.
+ */
+public class DMMWriterBench {
+	public static void main(String[] args) throws Exception {
+		boolean quick = Boolean.getBoolean("bench.quick");
+		SampleMaps samples = quick ? new SampleMaps(48, 2, 300) : new SampleMaps(255, 6, 3000);
+		boolean lazy = DMM.lazyLevels;
+		String home = System.getProperty("user.home");
+		System.setProperty("user.home", samples.dir.getPath());
+		DMM.useMapCache = false;
+		try {
+			for(File file : samples.files()) {
+				DMM.lazyLevels = false;
+				DMM dmm = new DMM(file, samples.tree, null);
+				LegacyWriter legacy = new LegacyWriter(dmm);
+				File oldOut = new File(samples.dir, "old-" + file.getName());
+				File newOut = new File(samples.dir, "new-" + file.getName());
+				legacy.save(oldOut);
+				byte[] expected = Files.readAllBytes(oldOut.toPath());
+
+				dmm.file = newOut;
+				dmm.save();
+				compare(file.getName(), expected, Files.readAllBytes(newOut.toPath()));
+
+				DMM.lazyLevels = true;
+				DMM lazyDmm = new DMM(file, samples.tree, null);
+				lazyDmm.file = newOut;
+				lazyDmm.save();
+				compare(file.getName() + " (unloaded levels)", expected, Files.readAllBytes(newOut.toPath()));
+
+				DMM cachedDmm = DMMReaderBench.openFromCache(file, samples.tree);
+				DMM.useMapCache = false;
+				cachedDmm.file = newOut;
+				cachedDmm.save();
+				compare(file.getName() + " (unloaded levels from the cache)", expected, Files.readAllBytes(newOut.toPath()));
+
+				if(!dmm.isTGM) {
+					File shuffled = new File(samples.dir, "shuffled-" + file.getName());
+					swapHalves(file, shuffled);
+					DMM shuffledDmm = new DMM(shuffled, samples.tree, null);
+					shuffledDmm.file = newOut;
+					shuffledDmm.save();
+					compare(file.getName() + " (unloaded levels out of order)", expected, Files.readAllBytes(newOut.toPath()));
+				}
+				if(quick)
+					continue;
+
+				long old = DMMReaderBench.best(3, () -> legacy.save(oldOut));
+				long now = DMMReaderBench.best(5, dmm::save);
+				long unloaded = DMMReaderBench.best(5, lazyDmm::save);
+				double mb = expected.length / (1024.0 * 1024.0);
+				System.out.printf("%s (%d KB): old %d ms (%.1f MB/s), new %d ms (%.1f MB/s), %.1fx, new with levels unloaded %d ms%n",
+						file.getName(), expected.length / 1024, old / 1000000, mb / (old / 1e9), now / 1000000,
+						mb / (now / 1e9), old / (double)now, unloaded / 1000000);
+			}
+		} finally {
+			DMM.lazyLevels = lazy;
+			DMM.useMapCache = false;
+			System.setProperty("user.home", home);
+			samples.delete();
+		}
+	}
+
+	private static void compare(String what, byte[] expected, byte[] actual) {
+		int length = Math.min(expected.length, actual.length);
+		for(int i = 0; i < length; i++) {
+			if(expected[i] != actual[i])
+				throw new IllegalStateException(what + " saves differently from byte " + i + " on");
+		}
+		if(expected.length != actual.length)
+			throw new IllegalStateException(what + " saves " + actual.length + " bytes instead of " + expected.length);
+		System.out.println(what + ": same as the old save, " + actual.length + " bytes");
+	}
+
+	// Splits every map block of a classic map in two, with the bottom half first. Loads the same map.
+	private static void swapHalves(File in, File out) throws IOException {
+		List<String> lines = Files.readAllLines(in.toPath());
+		List<String> result = new ArrayList<>();
+		for(int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			if(!line.startsWith("(1,1,")) {
+				result.add(line);
+				continue;
+			}
+			String z = line.substring(5, line.indexOf(')'));
+			int end = i + 1;
+			while(!lines.get(end).equals("\"}"))
+				end++;
+			int half = (end - i - 1) / 2;
+			result.add("(1," + (half + 1) + "," + z + ") = {\"");
+			result.addAll(lines.subList(i + 1 + half, end));
+			result.add("\"}");
+			result.add("(1,1," + z + ") = {\"");
+			result.addAll(lines.subList(i + 1, i + 1 + half));
+			result.add("\"}");
+			i = end;
+		}
+		Files.write(out.toPath(), result);
+	}
+
+	/**
+	 * What DMM.save() did before DMMWriter, with the map and dictionary copied into the HashMap and BiMap DMM kept
+	 * them in back then.
+	 */
+	static class LegacyWriter {
+		final boolean isTGM;
+		final int minX, minY, minZ, maxX, maxY, maxZ;
+		final BiMap<String, TileInstance> instances = HashBiMap.create();
+		final Map<Location, String> map;
+
+		LegacyWriter(DMM dmm) {
+			isTGM = dmm.isTGM;
+			minX = dmm.minX;
+			minY = dmm.minY;
+			minZ = dmm.minZ;
+			maxX = dmm.maxX;
+			maxY = dmm.maxY;
+			maxZ = dmm.maxZ;
+			for(int id = 1; id < dmm.instances.idLimit(); id++) {
+				if(dmm.instances.get(id) != null)
+					instances.put(dmm.instances.getKey(id), dmm.instances.get(id));
+			}
+			map = new HashMap<>(dmm.map);
+		}
+
+		void save(File file) throws FileNotFoundException {
+			if(!file.exists())
+				try {
+					file.createNewFile();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			PrintStream ps = new PrintStream(file);
+			if(isTGM)
+				ps.println("//MAP CONVERTED BY dmm2tgm.py THIS HEADER COMMENT PREVENTS RECONVERSION, DO NOT REMOVE "); // Space at the end is intentional
+			List<String> instancesList = new ArrayList<>();
+			for(Map.Entry<String, TileInstance> ent : instances.entrySet()) {
+				if(ent.getValue().refCount <= 0)
+					continue;
+				instancesList.add("\"" + ent.getKey() + "\" = (" + (isTGM ? ent.getValue().toStringTGM() : ent.getValue().toString()) + ")");
+			}
+			Collections.sort(instancesList, (a, b) -> DMM.reverseCase(a).compareTo(DMM.reverseCase(b)));
+			instancesList.forEach(ps::println);
+			ps.println();
+
+			if(!isTGM) {
+				// Save normally
+				for(int z = minZ; z <= maxZ; z++) {
+					ps.println("(1,1," + z + ") = {\"");
+					for(int y = maxY; y >= minY; y--) {
+						for(int x = minX; x <= maxX; x++) {
+							ps.print(map.get(new Location(x, y, z)));
+						}
+						ps.println();
+					}
+					ps.println("\"}");
+					ps.println();
+				}
+			} else {
+				// Save using TGM
+				for(int z = minZ; z <= maxZ; z++) {
+					for(int x = minX; x <= maxX; x++) {
+						ps.println("(" + x + ",1," + z + ") = {\"");
+						for(int y = maxY; y >= minY; y--) {
+							ps.println(map.get(new Location(x, y, z)));
+						}
+						ps.println("\"}");
+					}
+				}
+			}
+			ps.close();
+		}
+	}
+}
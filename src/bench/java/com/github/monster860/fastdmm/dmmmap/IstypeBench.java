@@ -0,0 +1,253 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import com.github.monster860.fastdmm.objtree.ModifiedType;
+import com.github.monster860.fastdmm.objtree.ObjInstance;
+import com.github.monster860.fastdmm.objtree.ObjectTree;
+
+/**
+ * Makes up a deep object tree and big tiles of its types, some var edited, and checks istype by type ID against the
+ * walk up the parent chain istype used to do (copied below). Every type against a few hundred paths, by path and by
+ * Item, and every tile sorted by sortObjs against the old comparator. A few types get added after the tree is
+ * complete, those don't have IDs and take the walk.
+ *
+ * Then times sorting every tile, and filtering them: counting what on each tile is one of a set of types, the way
+ * the old code did it with paths and the way it does now with Items.
+ *
+ * "gradlew benchIstype" for the whole thing on 8000 types and 2000 tiles of 60 objects. With -Dbench.quick=true
+ * (what benchCheck does) it's 1000 types and 200 tiles of 20, and only the check.
+ */
+public class IstypeBench {
+	private static final String[] BASES = {"/obj", "/mob", "/turf", "/area", "/datum"};
+
+	public static void main(String[] args) throws IOException {
+		boolean quick = Boolean.getBoolean("bench.quick");
+		Random rand = new Random(1);
+		File dir = Files.createTempDirectory("fastdmm-bench").toFile();
+		try {
+			ObjectTree tree = tree(rand, quick ? 1000 : 8000);
+			tree.dmePath = new File(dir, "bench.dme").getPath();
+			// There's no such file, so it's an empty map to intern the var edited types in.
+			DMM dmm = new DMM(new File(dir, "bench.dmm"), tree, null);
+
+			List<ObjInstance> instances = new ArrayList<>(tree.items.values());
+			for(int i = 0; i < 5; i++)
+				instances.add(tree.getOrCreate("/obj/late" + i + "/sub"));
+			instances.add(tree.get("/obj/late0"));
+			int types = instances.size();
+			for(int i = 0; i < types / 2; i++) {
+				ObjectTree.Item parent = (ObjectTree.Item)instances.get(rand.nextInt(types));
+				Map<String, String> vars = new LinkedHashMap<>();
+				vars.put("dir", String.valueOf(1 << (i & 3)));
+				vars.put("name", "\"edited " + i + "\"");
+				instances.add(ModifiedType.fromParts(parent.path, vars, tree, dmm));
+			}
+			// A var edit of a type that isn't in the tree at all.
+			instances.add(ModifiedType.fromParts("/obj/missing", new LinkedHashMap<>(), tree, dmm));
+
+			List<String> paths = new ArrayList<>(Arrays.asList(BASES));
+			paths.add("/obj/late0");
+			paths.add("/obj/missing");
+			paths.add("/nothing");
+			List<ObjectTree.Item> all = new ArrayList<>(tree.items.values());
+			for(int i = 0; i < (quick ? 100 : 300); i++)
+				paths.add(all.get(rand.nextInt(all.size())).path);
+			long checked = checkIstype(tree, instances, paths);
+
+			List<List<ObjInstance>> tiles = new ArrayList<>();
+			int objects = quick ? 20 : 60;
+			for(int t = 0; t < (quick ? 200 : 2000); t++) {
+				List<ObjInstance> objs = new ArrayList<>();
+				for(int i = 0; i < objects; i++)
+					objs.add(instances.get(rand.nextInt(instances.size())));
+				tiles.add(objs);
+			}
+			for(List<ObjInstance> objs : tiles) {
+				List<ObjInstance> expected = new ArrayList<>(objs);
+				Legacy.sortObjs(expected);
+				List<ObjInstance> actual = sorted(objs, dmm);
+				for(int i = 0; i < expected.size(); i++) {
+					if(actual.get(i) != expected.get(i))
+						throw new IllegalStateException("Sorted differently: " + objs + " came out as " + actual
+								+ ", should be " + expected);
+				}
+			}
+			System.out.println(checked + " istype checks and " + tiles.size() + " sorted tiles of " + objects
+					+ " objects: same as walking up the parents");
+			if(quick)
+				return;
+
+			long oldSort = best(5, () -> {
+				long sum = 0;
+				for(List<ObjInstance> objs : tiles) {
+					List<ObjInstance> copy = new ArrayList<>(objs);
+					Legacy.sortObjs(copy);
+					sum += System.identityHashCode(copy.get(0));
+				}
+				return sum;
+			});
+			long newSort = best(5, () -> {
+				long sum = 0;
+				for(List<ObjInstance> objs : tiles)
+					sum += System.identityHashCode(sorted(objs, dmm).get(0));
+				return sum;
+			});
+			System.out.printf("sortObjs on %d tiles: old %.2f ms, new %.2f ms, %.1fx%n", tiles.size(), oldSort / 1e6,
+					newSort / 1e6, oldSort / (double)newSort);
+
+			List<String> filter = paths.subList(0, 200);
+			List<ObjectTree.Item> filterTypes = new ArrayList<>();
+			for(String path : filter)
+				filterTypes.add(tree.get(path));
+			long oldFilter = best(5, () -> {
+				long count = 0;
+				for(List<ObjInstance> objs : tiles) {
+					for(ObjInstance o : objs) {
+						for(String path : filter) {
+							if(Legacy.istype(o, path))
+								count++;
+						}
+					}
+				}
+				return count;
+			});
+			long pathFilter = best(5, () -> {
+				long count = 0;
+				for(List<ObjInstance> objs : tiles) {
+					for(ObjInstance o : objs) {
+						for(String path : filter) {
+							if(o.istype(path))
+								count++;
+						}
+					}
+				}
+				return count;
+			});
+			long itemFilter = best(5, () -> {
+				long count = 0;
+				for(List<ObjInstance> objs : tiles) {
+					for(ObjInstance o : objs) {
+						for(ObjectTree.Item type : filterTypes) {
+							if(o.istype(type))
+								count++;
+						}
+					}
+				}
+				return count;
+			});
+			System.out.printf("filtering %d tiles by %d types: old %.2f ms, by path %.2f ms, by Item %.2f ms%n",
+					tiles.size(), filter.size(), oldFilter / 1e6, pathFilter / 1e6, itemFilter / 1e6);
+		} finally {
+			SampleMaps.delete(dir);
+		}
+	}
+
+	/**
+	 * Types made up the way they pile up in a real codebase: each one a subtype of one made before it, so a few
+	 * levels down on average with some long chains.
+	 */
+	private static ObjectTree tree(Random rand, int count) {
+		ObjectTree tree = new ObjectTree();
+		tree.getOrCreate("");
+		tree.getOrCreate("/world");
+		List<String> paths = new ArrayList<>(Arrays.asList(BASES));
+		for(String path : BASES)
+			tree.getOrCreate(path);
+		for(int i = 0; i < count; i++) {
+			// Newer types are a bit more likely to get subtypes, which makes the chains longer.
+			int parent = Math.max(rand.nextInt(paths.size()), rand.nextInt(paths.size()));
+			String path = paths.get(parent) + "/t" + i;
+			tree.getOrCreate(path);
+			paths.add(path);
+		}
+		tree.completeTree();
+		return tree;
+	}
+
+	private static long checkIstype(ObjectTree tree, List<ObjInstance> instances, List<String> paths) {
+		long checked = 0;
+		for(String path : paths) {
+			ObjectTree.Item type = tree.get(path);
+			for(ObjInstance o : instances) {
+				boolean expected = Legacy.istype(o, path);
+				if(o.istype(path) != expected)
+					throw new IllegalStateException(o + " istype " + path + " should be " + expected);
+				if(type != null && o.istype(type) != expected)
+					throw new IllegalStateException(o + " istype the Item of " + path + " should be " + expected);
+				checked++;
+			}
+		}
+		return checked;
+	}
+
+	private static List<ObjInstance> sorted(List<ObjInstance> objs, DMM dmm) {
+		TileInstance ti = new TileInstance(new ArrayList<>(objs), dmm);
+		ti.sortObjs();
+		return ti.objs;
+	}
+
+	interface Run {
+		long run();
+	}
+
+	private static long best(int runs, Run run) {
+		long check = run.run();
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			if(run.run() != check)
+				throw new IllegalStateException("Different results from one run to the next");
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * istype and sortObjs the way they were before type IDs.
+	 */
+	static class Legacy {
+		static boolean istype(ObjInstance o, String path) {
+			if(o instanceof ModifiedType) {
+				ModifiedType mt = (ModifiedType)o;
+				return mt.parent != null && istype(mt.parent, path);
+			}
+			ObjectTree.Item item = (ObjectTree.Item)o;
+			if(item.path.equals(path))
+				return true;
+			if(item.parent != null)
+				return istype(item.parent, path);
+			return false;
+		}
+
+		static void sortObjs(List<ObjInstance> objs) {
+			Collections.sort(objs, (a, b) -> {
+				if (a == null && b == null) return 0;
+				if (a == null) return 1;
+				if (b == null) return -1;
+				int iA = 0;
+				int iB = 0;
+				if(istype(a, "/obj"))
+					iA = 1;
+				else if(istype(a, "/mob"))
+					iA = 2;
+				else if(istype(a, "/turf"))
+					iA = 3;
+				else if(istype(a, "/area"))
+					iA = 4;
+				if(istype(b, "/obj"))
+					iB = 1;
+				else if(istype(b, "/mob"))
+					iB = 2;
+				else if(istype(b, "/turf"))
+					iB = 3;
+				else if(istype(b, "/area"))
+					iB = 4;
+				return iA < iB ? -1 : (iA == iB ? 0 : 1);
+			});
+		}
+	}
+}
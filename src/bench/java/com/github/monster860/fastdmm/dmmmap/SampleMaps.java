@@ -0,0 +1,182 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.*;
+
+import com.github.monster860.fastdmm.objtree.ObjectTree;
+
+/**
+ * Made up maps for the benchmarks, the same map saved once in the classic format and once as TGM, plus an object
+ * tree with every type they use.
+ *
+ * The dictionary has the stuff that a loader can trip over in real maps: var edits, strings with ; { } ( ) // and
+ * escaped quotes in them, and one entry that's a duplicate of another under a different key.
+ */
+class SampleMaps {
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final int KEY_LEN = 3;
+
+	final File dir;
+	final File classic;
+	final File tgm;
+	final ObjectTree tree;
+
+	/**
+	 * @param size Width and height of the map.
+	 * @param levels How many z-levels.
+	 * @param entries How many dictionary entries, not counting the duplicate.
+	 */
+	SampleMaps(int size, int levels, int entries) throws IOException {
+		dir = Files.createTempDirectory("fastdmm-bench").toFile();
+		classic = new File(dir, "classic.dmm");
+		tgm = new File(dir, "tgm.dmm");
+
+		tree = new ObjectTree();
+		tree.getOrCreate("");
+		tree.getOrCreate("/world");
+		for(int i = 0; i < 200; i++)
+			tree.getOrCreate("/obj/item/thing" + i);
+		for(int i = 0; i < 50; i++)
+			tree.getOrCreate("/turf/floor/f" + i);
+		for(int i = 0; i < 20; i++)
+			tree.getOrCreate("/area/a" + i);
+		tree.completeTree();
+		tree.dmePath = new File(dir, "sample.dme").getPath();
+
+		Random rand = new Random(1);
+		List<List<String[]>> dictionary = new ArrayList<>();
+		for(int i = 0; i < entries; i++) {
+			List<String[]> objs = new ArrayList<>();
+			int count = rand.nextInt(4);
+			for(int j = 0; j < count; j++)
+				objs.add(obj(rand, i * 7 + j));
+			objs.add(new String[] {"/turf/floor/f" + (i % 50)});
+			objs.add(new String[] {"/area/a" + (i % 20)});
+			dictionary.add(objs);
+		}
+		dictionary.add(dictionary.get(5));
+		String[] keys = new String[dictionary.size()];
+		int keySpace = (int)Math.pow(LETTERS.length(), KEY_LEN);
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = key(i * 37 % keySpace);
+
+		int[][][] grid = new int[levels][size][size];
+		for(int z = 0; z < levels; z++) {
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++)
+					grid[z][y][x] = rand.nextInt(entries);
+			}
+		}
+		grid[0][0][0] = entries;
+
+		write(classic, false, dictionary, keys, grid);
+		write(tgm, true, dictionary, keys, grid);
+	}
+
+	List<File> files() {
+		return Arrays.asList(classic, tgm);
+	}
+
+	void delete() {
+		delete(dir);
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	// Half the time a plain type, otherwise one with a few vars edited.
+	private static String[] obj(Random rand, int i) {
+		String path = "/obj/item/thing" + (i % 200);
+		double r = rand.nextDouble();
+		if(r < .5)
+			return new String[] {path};
+		List<String> vars = new ArrayList<>();
+		vars.add(path);
+		vars.add("dir");
+		vars.add(String.valueOf(1 << rand.nextInt(4)));
+		if(r > .7) {
+			vars.add("name");
+			vars.add("\"odd; name \\\"q\\\" // not a comment {x} (y)\"");
+		}
+		if(r > .85) {
+			vars.add("pixel_x");
+			vars.add(String.valueOf(rand.nextInt(33) - 16));
+		}
+		return vars.toArray(new String[vars.size()]);
+	}
+
+	private static String key(int code) {
+		char[] key = new char[KEY_LEN];
+		for(int i = KEY_LEN - 1; i >= 0; i--) {
+			key[i] = LETTERS.charAt(code % LETTERS.length());
+			code /= LETTERS.length();
+		}
+		return new String(key);
+	}
+
+	private static String format(String[] obj, boolean tgm) {
+		if(obj.length == 1)
+			return obj[0];
+		StringBuilder sb = new StringBuilder(obj[0]);
+		sb.append(tgm ? "{\n\t" : "{");
+		for(int i = 1; i < obj.length; i += 2) {
+			if(i > 1)
+				sb.append(tgm ? ";\n\t" : "; ");
+			sb.append(obj[i]).append(" = ").append(obj[i + 1]);
+		}
+		sb.append(tgm ? "\n\t}" : "}");
+		return sb.toString();
+	}
+
+	private static void write(File file, boolean tgm, List<List<String[]>> dictionary, String[] keys, int[][][] grid) throws IOException {
+		Integer[] order = new Integer[keys.length];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		// Same order saving puts them in.
+		Arrays.sort(order, (a, b) -> DMM.reverseCase(keys[a]).compareTo(DMM.reverseCase(keys[b])));
+		try(Writer out = new BufferedWriter(new FileWriter(file))) {
+			if(tgm)
+				out.write(DMMReader.TGM_HEADER + " \n");
+			for(int i : order) {
+				StringBuilder objs = new StringBuilder();
+				for(String[] obj : dictionary.get(i)) {
+					if(objs.length() > 0)
+						objs.append(tgm ? ",\n" : ",");
+					objs.append(format(obj, tgm));
+				}
+				out.write("\"" + keys[i] + "\" = (" + (tgm ? "\n" : "") + objs + ")\n");
+			}
+			out.write("\n");
+			int size = grid[0].length;
+			for(int z = 0; z < grid.length; z++) {
+				if(!tgm) {
+					out.write("(1,1," + (z + 1) + ") = {\"\n");
+					for(int y = 0; y < size; y++) {
+						for(int x = 0; x < size; x++)
+							out.write(keys[grid[z][y][x]]);
+						out.write("\n");
+					}
+					out.write("\"}\n\n");
+				} else {
+					for(int x = 0; x < size; x++) {
+						out.write("(" + (x + 1) + ",1," + (z + 1) + ") = {\"\n");
+						for(int y = 0; y < size; y++)
+							out.write(keys[grid[z][y][x]] + "\n");
+						out.write("\"}\n");
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+/**
+ * Not a benchmark, just values ConstantEvaluator has to fold the way DM's compiler does. Mostly precedence around
+ * unary operators and **, which DM binds differently from most languages: -2 ** 2 is 4, not -4.
+ *
+ * Runs as part of benchCheck.
+ */
+public class ConstantEvaluatorCheck {
+	private static final String[][] CASES = {
+			{"-2 ** 2", "4"},
+			{"-2**2", "4"},
+			{"-(2 ** 2)", "-4"},
+			{"-2 ** 3", "-8"},
+			{"-TWO ** 2", "4"},
+			{"3 * -2 ** 2", "12"},
+			{"1 - 2 ** 2", "-3"},
+			{"2 ** 2 * 3", "12"},
+			{"2 ** -1", "0.5"},
+			{"2 ** 3 ** 2", "512"},
+			{"!1 ** 2", "0"},
+			{"-x ** 2", "-x ** 2"},
+			// Negative numbers stay as written.
+			{"-1", "-1"},
+			{"- 1.50", "- 1.50"},
+			{"(-1)", "-1"},
+	};
+
+	public static void main(String[] args) {
+		Map<String, String> globals = new HashMap<>();
+		globals.put("TWO", "2");
+		ConstantEvaluator evaluator = new ConstantEvaluator(globals);
+		List<String> problems = new ArrayList<>();
+		for(String[] c : CASES) {
+			String actual = evaluator.evaluate(c[0]);
+			if(!actual.equals(c[1]))
+				problems.add(c[0] + " -> " + actual + ", should be " + c[1]);
+		}
+		if(!problems.isEmpty())
+			throw new IllegalStateException("Folded wrong:\n" + String.join("\n", problems));
+		System.out.println(CASES.length + " values folded right");
+	}
+}
@@ -0,0 +1,250 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.github.monster860.fastdmm.objtree.ObjectTreeParser.Declaration;
+
+/**
+ * Makes up a big codebase, parses it once with the regex tokenization ObjectTreeParser used to have (copied below)
+ * and once with LineLexer, and checks both give the same declarations for every file and the same object tree.
+ * Then times stage 2 on its own over every line of the codebase, and the whole parse.
+ *
+ * "gradlew benchObjectTree" for the whole thing on 3000 files. With -Dbench.quick=true (what benchCheck does) it's
+ * 150 files and only the check.
+ */
+public class ObjectTreeParserBench {
+	public static void main(String[] args) throws Exception {
+		boolean quick = Boolean.getBoolean("bench.quick");
+		File dir = Files.createTempDirectory("fastdmm-bench").toFile();
+		try {
+			File dme = generate(dir, quick ? 150 : 3000);
+
+			// Parse with the lexer, keeping every file's lines to check the old tokenization against.
+			List<List<String>> files = Collections.synchronizedList(new ArrayList<>());
+			String newTree = dump(parse(dme, lines -> {
+				files.add(lines);
+				return ObjectTreeParser.lex(lines);
+			}));
+			String oldTree = dump(parse(dme, LegacyTokenizer::tokenize));
+
+			long lines = 0;
+			for(List<String> file : files) {
+				compare(file, LegacyTokenizer.tokenize(file), ObjectTreeParser.lex(file));
+				lines += file.size();
+			}
+			if(!oldTree.equals(newTree))
+				throw new IllegalStateException("The object tree comes out different with the old tokenization");
+			System.out.println(files.size() + " files, " + lines + " lines: same declarations and same tree as the old tokenization");
+			if(quick)
+				return;
+
+			long old = best(3, () -> {
+				for(List<String> file : files)
+					LegacyTokenizer.tokenize(file);
+			});
+			long now = best(3, () -> {
+				for(List<String> file : files)
+					ObjectTreeParser.lex(file);
+			});
+			System.out.printf("stage 2: old %d ms (%.2fM lines/s), new %d ms (%.2fM lines/s), %.1fx%n", old / 1000000,
+					lines / (old / 1e3), now / 1000000, lines / (now / 1e3), old / (double)now);
+
+			long oldParse = best(2, () -> parse(dme, LegacyTokenizer::tokenize));
+			long newParse = best(2, () -> parse(dme, ObjectTreeParser::lex));
+			System.out.printf("whole parse: old %d ms, new %d ms%n", oldParse / 1000000, newParse / 1000000);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	interface Run {
+		void run() throws IOException;
+	}
+
+	private static long best(int runs, Run run) throws IOException {
+		run.run();
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			run.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private static ObjectTree parse(File dme, Function<List<String>, List<Declaration>> tokenizer) throws IOException {
+		ObjectTreeParser parser = new ObjectTreeParser(new ObjectTree(), tokenizer);
+		parser.parseDME(dme);
+		parser.tree.completeTree();
+		return parser.tree;
+	}
+
+	private static String dump(ObjectTree tree) {
+		StringBuilder sb = new StringBuilder();
+		for(String path : new TreeSet<>(tree.items.keySet())) {
+			ObjectTree.Item item = tree.items.get(path);
+			sb.append(path).append(" parent=").append(item.parent == null ? null : item.parent.path);
+			sb.append(" id=").append(item.typeId).append(' ').append(item.vars).append(" subtypes=");
+			for(ObjectTree.Item subtype : item.subtypes)
+				sb.append(subtype.path).append(',');
+			sb.append('\n');
+		}
+		sb.append(tree.fileDirs).append(' ').append(tree.icon_size).append('\n');
+		return sb.toString();
+	}
+
+	private static void compare(List<String> lines, List<Declaration> expected, List<Declaration> actual) {
+		for(int i = 0; i < lines.size(); i++) {
+			Declaration a = expected.get(i);
+			Declaration b = actual.get(i);
+			if(!Objects.equals(a.directive, b.directive) || !Objects.equals(a.objectPath, b.objectPath)
+					|| !Objects.equals(a.varName, b.varName) || !Objects.equals(a.value, b.value))
+				throw new IllegalStateException("Tokenized differently: " + lines.get(i));
+		}
+	}
+
+	/**
+	 * A codebase shaped like a real one: each file has a few types with vars, var/tmp and var/static, procs with
+	 * default arguments, overrides of New(), block and line comments, multiline lists and strings, defines used in
+	 * later files and the odd #undef, nested include and missing file.
+	 */
+	private static File generate(File dir, int fileCount) throws IOException {
+		Random rand = new Random(1);
+		new File(dir, "code").mkdirs();
+		String[] kinds = {"obj", "turf", "mob", "area", "obj/item", "obj/machinery", "datum"};
+		List<String> defines = new ArrayList<>();
+		StringBuilder includes = new StringBuilder();
+		for(int f = 0; f < fileCount; f++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("// File ").append(f).append(" generated\n");
+			if(f % 7 == 0) {
+				defines.add("DEF_" + f);
+				sb.append("#define DEF_").append(f).append(' ').append(f).append('\n');
+				sb.append("#define STR_").append(f).append(" \"s").append(f).append("\"\n");
+			}
+			if(f % 23 == 5)
+				sb.append("#undef ").append(defines.get(rand.nextInt(defines.size()))).append('\n');
+			sb.append("/* block comment\n spanning lines = 5\n*/\n");
+			int types = 3 + rand.nextInt(10);
+			for(int o = 0; o < types; o++) {
+				String path = "/" + kinds[rand.nextInt(kinds.length)] + "/thing" + (f % 50) + "_" + o;
+				sb.append(path).append('\n');
+				sb.append("\tname = \"thing ").append(f).append(' ').append(o).append("\" // trailing comment\n");
+				sb.append("\tvar/power = ").append(defines.get(rand.nextInt(defines.size()))).append('\n');
+				sb.append("\tvar/list/stuff = list(\n\t\t1,\n\t\t2)\n");
+				sb.append("\tdesc = {\"multi\nline \\\"quoted\\\" desc\"}\n");
+				sb.append("\ticon_state = \"st\\\n").append(o).append("\"\n");
+				sb.append("\tvar/tmp/cache\n");
+				sb.append("\tvar/static/shared = STR_").append(7 * (f / 7)).append('\n');
+				sb.append("\tproc/do_thing(a = 1, b)\n\t\tvar/x = a + b\n\t\tif(x == 2)\n\t\t\treturn \"[x]\"\n");
+				sb.append('\n').append(path).append("/New()\n\t..()\n\tcolor = \"#fff\"\n");
+				sb.append(path).append("/sub\n\tlayer = ").append(o).append(" /* inline */ + 1\n");
+			}
+			if(f % 97 == 3) {
+				try(Writer out = new FileWriter(new File(dir, "code/nested_" + f + ".dm"))) {
+					out.write("/obj/nested" + f + "\n\tname = \"nested\"\n\tvar/p = DEF_0\n");
+				}
+				sb.append("#include \"nested_").append(f).append(".dm\"\n");
+			}
+			try(Writer out = new FileWriter(new File(dir, "code/file" + f + ".dm"))) {
+				out.write(sb.toString());
+			}
+			includes.append("#include \"code\\file").append(f).append(".dm\"\n");
+		}
+		try(Writer out = new FileWriter(new File(dir, "world.dm"))) {
+			out.write("/world\n\ticon_size = 32\n\tturf = /turf\n");
+		}
+		File dme = new File(dir, "bench.dme");
+		try(Writer out = new FileWriter(dme)) {
+			out.write("// DME\n#define FILE_DIR \"icons\"\n#define DEBUG\n// BEGIN_INCLUDE\n#include \"world.dm\"\n" + includes
+					+ "#include \"missing.dm\"\n#include \"interface.dmf\"\n// END_INCLUDE\n");
+		}
+		return dme;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Stage 2 the way it was before LineLexer.
+	 */
+	static class LegacyTokenizer {
+		private static final Pattern EQUALS_PATTERN = Pattern.compile("=");
+
+		static List<Declaration> tokenize(List<String> lines) {
+			List<Declaration> declarations = new ArrayList<>(lines.size());
+			ArrayList<String> pathTree = new ArrayList<>();
+			for (String line : lines) {
+				// #include, #define, and #undef get handled in order when applying
+				if (line.trim().startsWith("#")) {
+					declarations.add(new Declaration(line.trim()));
+					continue;
+				}
+				// How far is this line indented?
+				int level = 0;
+				for (int j = 0; j < line.length(); j++) {
+					if (line.charAt(j) == ' ')
+						level++;
+					else
+						break;
+				}
+				// Rebuild the path tree.
+				for (int j = pathTree.size(); j <= level; j++)
+					pathTree.add("");
+				pathTree.set(level, ObjectTreeParser.cleanPath(line.trim()));
+				if (pathTree.size() > level + 1)
+					for (int j = pathTree.size() - 1; j > level; j--)
+						pathTree.remove(j);
+				String fullPath = "";
+				for (String c : pathTree)
+					fullPath += c;
+				// Now, split it again, and rebuild it again, but only figure out how big the object itself is.
+				String[] divided = fullPath.split("\\/");
+				String affectedObjectPath = "";
+				for (String item : divided) {
+					if (item.isEmpty()) {
+						continue;
+					}
+					if (item.equalsIgnoreCase("static") || item.equalsIgnoreCase("global") || item.equalsIgnoreCase("tmp"))
+						continue;
+					if (item.equals("proc") || item.equals("verb") || item.equals("var")) {
+						break;
+					}
+					if (item.contains("=") || item.contains("(")) {
+						break;
+					}
+					affectedObjectPath += "/" + item;
+				}
+				Declaration declaration = new Declaration(affectedObjectPath, null, null);
+				declarations.add(declaration);
+				if (fullPath.contains("(") && fullPath.indexOf("(") < fullPath.lastIndexOf("/"))
+					continue;
+				fullPath = fullPath.replaceAll("/tmp", ""); // Let's avoid giving a shit about whether the var is tmp, static, or global.
+				fullPath = fullPath.replaceAll("/static", "");
+				fullPath = fullPath.replaceAll("/global", "");
+				// Parse the var definitions.
+				if (fullPath.contains("var/") ||
+						(fullPath.contains("=") && (!fullPath.contains("(") || fullPath.indexOf("(") > fullPath.indexOf("=")))) {
+					String[] split = EQUALS_PATTERN.split(fullPath, 2);
+					declaration.varName = split[0].substring(split[0].lastIndexOf("/") + 1, split[0].length()).trim();
+					if (split.length > 1)
+						declaration.value = split[1].trim();
+				}
+			}
+			return declarations;
+		}
+	}
+}
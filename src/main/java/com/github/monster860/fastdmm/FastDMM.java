@@ -12,6 +12,9 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -23,7 +26,11 @@ import com.github.monster860.fastdmm.dmirender.DMI;
 import com.github.monster860.fastdmm.dmirender.IconState;
 import com.github.monster860.fastdmm.dmirender.IconSubstate;
 import com.github.monster860.fastdmm.dmirender.RenderInstance;
+import com.github.monster860.fastdmm.dmirender.RenderQueue;
+import com.github.monster860.fastdmm.dmirender.SpriteBatch;
+import com.github.monster860.fastdmm.dmirender.TextureAtlas;
 import com.github.monster860.fastdmm.dmmmap.DMM;
+import com.github.monster860.fastdmm.dmmmap.DMMWriter;
 import com.github.monster860.fastdmm.dmmmap.Location;
 import com.github.monster860.fastdmm.dmmmap.TileInstance;
 import com.github.monster860.fastdmm.editing.*;
@@ -39,10 +46,13 @@ import com.github.monster860.fastdmm.editing.ui.EmptyTabPanel;
 import com.github.monster860.fastdmm.editing.ui.NoDmeTreeModel;
 import com.github.monster860.fastdmm.editing.ui.ObjectTreeRenderer;
 import com.github.monster860.fastdmm.editing.ui.TileInspectorPanel;
+import com.github.monster860.fastdmm.objtree.DmeWatcher;
+import com.github.monster860.fastdmm.objtree.FilteredObjectTree;
 import com.github.monster860.fastdmm.objtree.InstancesRenderer;
 import com.github.monster860.fastdmm.objtree.ModifiedType;
 import com.github.monster860.fastdmm.objtree.ObjInstance;
 import com.github.monster860.fastdmm.objtree.ObjectTree;
+import com.github.monster860.fastdmm.objtree.ObjectTreeCache;
 import com.github.monster860.fastdmm.objtree.ObjectTreeParser;
 import com.github.monster860.fastdmm.attached.AttachedTileService;
 import com.github.monster860.fastdmm.attached.AttachedTilesDialog;
@@ -61,7 +71,14 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 	public File dme;
 	public DMM dmm;
 	public List<DMM> loadedMaps = new ArrayList<DMM>();
-	public Map<String, ModifiedType> modifiedTypes = new HashMap<>();
+	public Map<String, ModifiedType> modifiedTypes = new ConcurrentHashMap<>(); // Concurrent because maps intern into it from several threads while loading
+	
+	// Saves run one at a time on here so editing doesn't stop while a big map is written out
+	private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "FastDMM map saver");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	private Stack<Undoable> undostack = new Stack<Undoable>();
 	private Stack<Undoable> redostack = new Stack<Undoable>();
@@ -121,6 +138,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 	private JMenuItem menuItemOpen;
 	private JMenuItem menuItemSave;
 	private JMenuItem menuItemExpand;
+	private JMenuItem menuItemCompact;
 	private JMenuItem menuItemMapImage;
 	private JMenuItem menuItemUndo;
 	private JMenuItem menuItemRedo;
@@ -129,6 +147,8 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 	private JPopupMenu currPopup;
 
 	public JTree objTreeVis;
+	private DmeWatcher dmeWatcher;
+	private JTextField objTreeSearch;
 	public JList<ObjInstance> instancesVis;
 
 	SortedSet<String> filters;
@@ -373,6 +393,17 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 			});
 			objTreePanel.add(new JScrollPane(objTreeVis));
 
+			// Quick search over type paths and names, Enter picks the best match
+			objTreeSearch = new JTextField();
+			objTreeSearch.setToolTipText("Search types by path or name. Enter selects the best match.");
+			objTreeSearch.getDocument().addDocumentListener(new DocumentListener() {
+				@Override public void insertUpdate(DocumentEvent e) { filterObjectTree(); }
+				@Override public void removeUpdate(DocumentEvent e) { filterObjectTree(); }
+				@Override public void changedUpdate(DocumentEvent e) { filterObjectTree(); }
+			});
+			objTreeSearch.addActionListener(e -> selectBestObjectMatch());
+			objTreePanel.add(objTreeSearch, BorderLayout.NORTH);
+
 			leftTabs = new JTabbedPane();
 			leftTabs.addTab("Objects", objTreePanel);
 			// Prefabs tab (initialized before DME load; manager attached later)
@@ -565,6 +596,56 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 			menuItemExpand.setEnabled(false);
 			menu.add(menuItemExpand);
 
+			menuItemCompact = new JMenuItem("Compact Instances");
+			menuItemCompact.setActionCommand("compact");
+			menuItemCompact.addActionListener(FastDMM.this);
+			menuItemCompact.setEnabled(false);
+			menu.add(menuItemCompact);
+
+			JCheckBoxMenuItem parallelLoadingItem = new JCheckBoxMenuItem("Parallel Map Loading", DMM.parallelLoading);
+			parallelLoadingItem.addItemListener(e -> DMM.parallelLoading = parallelLoadingItem.isSelected());
+			menu.add(parallelLoadingItem);
+
+			JCheckBoxMenuItem lazyLevelsItem = new JCheckBoxMenuItem("Load Z-Levels On Demand", DMM.lazyLevels);
+			lazyLevelsItem.addItemListener(e -> DMM.lazyLevels = lazyLevelsItem.isSelected());
+			menu.add(lazyLevelsItem);
+
+			JCheckBoxMenuItem mapCacheItem = new JCheckBoxMenuItem("Cache Parsed Maps", DMM.useMapCache);
+			mapCacheItem.addItemListener(e -> DMM.useMapCache = mapCacheItem.isSelected());
+			menu.add(mapCacheItem);
+
+			JCheckBoxMenuItem parallelParsingItem = new JCheckBoxMenuItem("Parallel Object Tree Parsing", ObjectTreeParser.parallelParsing);
+			parallelParsingItem.addItemListener(e -> ObjectTreeParser.parallelParsing = parallelParsingItem.isSelected());
+			menu.add(parallelParsingItem);
+
+			JCheckBoxMenuItem objectTreeCacheItem = new JCheckBoxMenuItem("Cache Object Tree", ObjectTreeCache.enabled);
+			objectTreeCacheItem.addItemListener(e -> ObjectTreeCache.enabled = objectTreeCacheItem.isSelected());
+			menu.add(objectTreeCacheItem);
+
+			JCheckBoxMenuItem watchDmeItem = new JCheckBoxMenuItem("Reload Types When Code Changes", DmeWatcher.enabled);
+			watchDmeItem.addItemListener(e -> {
+				DmeWatcher.enabled = watchDmeItem.isSelected();
+				watchDme();
+			});
+			menu.add(watchDmeItem);
+
+			JCheckBoxMenuItem spriteBatchItem = new JCheckBoxMenuItem("Batch Sprite Drawing", SpriteBatch.enabled);
+			spriteBatchItem.addItemListener(e -> SpriteBatch.enabled = spriteBatchItem.isSelected());
+			menu.add(spriteBatchItem);
+
+			JCheckBoxMenuItem textureAtlasItem = new JCheckBoxMenuItem("Pack Icons Into Atlases", TextureAtlas.enabled);
+			textureAtlasItem.addItemListener(e -> TextureAtlas.enabled = textureAtlasItem.isSelected());
+			menu.add(textureAtlasItem);
+
+			JCheckBoxMenuItem viewportCacheItem = new JCheckBoxMenuItem("Cache Map Rendering", ViewportCache.enabled);
+			viewportCacheItem.addItemListener(e -> {
+				ViewportCache.enabled = viewportCacheItem.isSelected();
+				viewportCache.invalidate();
+				if (!ViewportCache.enabled && viewportZoom < ViewportCache.OVERVIEW_BELOW_ZOOM)
+					viewportZoom = ViewportCache.OVERVIEW_BELOW_ZOOM;
+			});
+			menu.add(viewportCacheItem);
+
 			menu.addSeparator();
 
 			// Attached Tiles moved to Objects tree context menu
@@ -621,6 +702,33 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		});
 	}
 
+	private void filterObjectTree() {
+		if(objTree == null)
+			return;
+		String query = objTreeSearch.getText().trim();
+		if(query.isEmpty()) {
+			objTreeVis.setModel(objTree);
+			return;
+		}
+		FilteredObjectTree filtered = new FilteredObjectTree(objTree, query);
+		objTreeVis.setModel(filtered);
+		filtered.expandMatches(objTreeVis);
+	}
+
+	private void selectBestObjectMatch() {
+		String query = objTreeSearch.getText().trim();
+		if(objTree == null || query.isEmpty())
+			return;
+		for(ObjectTree.Item item : objTree.getSearchIndex().search(query, 50)) {
+			TreePath path = objTree.pathTo(item);
+			if(path != null) {
+				objTreeVis.setSelectionPath(path);
+				objTreeVis.scrollPathToVisible(path);
+				return;
+			}
+		}
+	}
+
 	@Override
 	public void valueChanged(TreeSelectionEvent arg0) {
 		if (arg0.getPath().getLastPathComponent() instanceof ObjectTree.Item) {
@@ -670,22 +778,13 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 					}
 				}
 			}
+			viewportCache.invalidate();
 		} else if ("open_dme".equals(e.getActionCommand())) {
 			openDME();
 		} else if ("open".equals(e.getActionCommand())) {
 			openDMM();
 		} else if ("save".equals(e.getActionCommand())) {
-			try {
-				synchronized(this) {
-					placementMode.flush(this);
-				}
-				dmm.save();
-			} catch (Exception ex) {
-				StringWriter sw = new StringWriter();
-				PrintWriter pw = new PrintWriter(sw);
-				ex.printStackTrace(pw);
-				JOptionPane.showMessageDialog(FastDMM.this, sw.getBuffer(), "Error", JOptionPane.ERROR_MESSAGE);
-			}
+			saveInBackground(dmm);
 		} else if ("new".equals(e.getActionCommand())) {
 			statusstring = " ";
 			selection.setText(statusstring);
@@ -721,6 +820,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 					dmm = new DMM(new File(dme.getParentFile(), usePath), objTree, this);
 					dmm.setSize(1, 1, 1, maxX, maxY, maxZ);
 					menuItemExpand.setEnabled(true);
+					menuItemCompact.setEnabled(true);
 					menuItemMapImage.setEnabled(true);
 						currentZ = Math.max(dmm.minZ, Math.min(dmm.maxZ, 1));
 						dmm.storedZ = currentZ;
@@ -760,6 +860,15 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 				currentZ = Math.max(dmm.minZ, Math.min(dmm.maxZ, currentZ));
 				updateZSpinnerBounds();
 			}
+		} else if ("compact".equals(e.getActionCommand())) {
+			if (dmm == null)
+				return;
+			int removed;
+			synchronized (this) {
+				placementMode.flush(this);
+				removed = dmm.compactInstances();
+			}
+			selection.setText("Removed " + removed + " unused instances");
 		} else if("mapimage".equals(e.getActionCommand())) {
 			JFileChooser fc = new JFileChooser();
 			if (fc.getChoosableFileFilters().length > 0)
@@ -788,6 +897,10 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		statusstring = " ";
 		selection.setText(statusstring);
 		synchronized (this) {
+			if(dmeWatcher != null) {
+				dmeWatcher.close();
+				dmeWatcher = null;
+			}
 			objTree = null;
 			dmm = null;
 			if (selMode) {
@@ -801,11 +914,12 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		menuItemSave.setEnabled(false);
 		menuItemNew.setEnabled(false);
 		menuItemExpand.setEnabled(false);
+		menuItemCompact.setEnabled(false);
 		menuRecent.setEnabled(false);
 		menuRecentMaps.setEnabled(false);
 		menuItemMapImage.setEnabled(false);
 		menuRecentMaps.setVisible(false);
-		modifiedTypes = new HashMap<>();
+		modifiedTypes = new ConcurrentHashMap<>();
 		while(editorTabs.getTabCount() > 0)
 			editorTabs.removeTabAt(0);
 		loadedMaps.clear();
@@ -813,14 +927,25 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		new Thread() {
 			public void run() {
 				try {
-					ObjectTreeParser parser = new ObjectTreeParser();
-					parser.modalParent = FastDMM.this;
-					parser.parseDME(dme);
-					parser.tree.completeTree();
-					final ObjectTree builtTree = parser.tree;
+					ObjectTreeCache cache = ObjectTreeCache.enabled ? new ObjectTreeCache(dme) : null;
+					ObjectTree tree = cache != null ? cache.loadTree() : null;
+					if(tree == null) {
+						ObjectTreeParser parser = new ObjectTreeParser();
+						parser.modalParent = FastDMM.this;
+						parser.cache = cache;
+						parser.parseDME(dme);
+						parser.tree.completeTree();
+						tree = parser.tree;
+						if(cache != null)
+							cache.store(parser);
+					}
+					final ObjectTree builtTree = tree;
+					// Here rather than on the first keystroke in the search box
+					builtTree.getSearchIndex();
 					javax.swing.SwingUtilities.invokeLater(() -> {
 						objTree = builtTree;
 						objTree.dmePath = dme.getAbsolutePath();
+						objTreeSearch.setText("");
 						objTreeVis.setModel(objTree);
 						// Load attached tile rules for this environment
 						attachedService.load(dme.getParentFile());
@@ -832,6 +957,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 						menuRecentMaps.setVisible(true);
 						// Context menu is always available on the Objects tree; nothing to enable here
 						areMenusFrozen = false;
+						watchDme();
 					});
 				} catch (Exception ex) {
 					StringWriter sw = new StringWriter();
@@ -854,6 +980,68 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		}.start();
 	}
 
+	// Starts or stops watching the open environment's code, going by the option.
+	private synchronized void watchDme() {
+		if(dmeWatcher != null) {
+			dmeWatcher.close();
+			dmeWatcher = null;
+		}
+		if(!DmeWatcher.enabled || dme == null || objTree == null)
+			return;
+		try {
+			dmeWatcher = new DmeWatcher(dme, this::reloadObjectTree);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Runs on the watcher thread after .dm files have changed. Parses the environment again, with the declaration
+	// cache only the files that changed get read, and merges the result into the open tree so the open maps stay.
+	private void reloadObjectTree() {
+		File reloadDme;
+		ObjectTree live;
+		synchronized (this) {
+			reloadDme = dme;
+			live = objTree;
+		}
+		if(reloadDme == null || live == null)
+			return;
+		try {
+			ObjectTreeCache cache = ObjectTreeCache.enabled ? new ObjectTreeCache(reloadDme) : null;
+			ObjectTreeParser parser = new ObjectTreeParser();
+			parser.modalParent = this;
+			parser.cache = cache;
+			parser.parseDME(reloadDme);
+			parser.tree.completeTree();
+			if(cache != null)
+				cache.store(parser);
+			ObjectTree fresh = parser.tree;
+			SwingUtilities.invokeLater(() -> {
+				synchronized (FastDMM.this) {
+					// Opened something else in the meantime
+					if(objTree != live)
+						return;
+					if(objTree.update(fresh) == 0)
+						return;
+					// Cached icons, layers and so on may have come from vars that just changed
+					for(ObjectTree.Item item : objTree.items.values())
+						item.clearCachedVars();
+					for(ModifiedType mt : modifiedTypes.values())
+						mt.clearCachedVars();
+					for(DMM map : loadedMaps)
+						map.instances.forEachInstance(TileInstance::clearCaches);
+					viewportCache.invalidate();
+				}
+				// The tree model doesn't send change events, so give the view the tree again
+				objTreeVis.setModel(null);
+				filterObjectTree();
+			});
+		} catch(Exception ex) {
+			// Most likely someone's halfway through an edit, the next save will try again.
+			ex.printStackTrace();
+		}
+	}
+
 	private void openDME() {
 		JFileChooser fc = new JFileChooser();
 		if (fc.getChoosableFileFilters().length > 0)
@@ -900,6 +1088,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 				currentZ = Math.max(newDmm.minZ, Math.min(newDmm.maxZ, newDmm.storedZ));
 				updateZSpinnerBounds();
 				menuItemExpand.setEnabled(true);
+				menuItemCompact.setEnabled(true);
 				menuItemMapImage.setEnabled(true);
 			} catch (Exception ex) {
 				StringWriter sw = new StringWriter();
@@ -908,6 +1097,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 				JOptionPane.showMessageDialog(FastDMM.this, sw.getBuffer(), "Error", JOptionPane.ERROR_MESSAGE);
 				dmm = null;
 				menuItemExpand.setEnabled(false);
+				menuItemCompact.setEnabled(false);
 				menuItemMapImage.setEnabled(false);
 			} finally {
 				areMenusFrozen = false;
@@ -998,6 +1188,10 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 	}
 
 	private Map<String, DMI> dmis = new HashMap<>();
+	TextureAtlas textureAtlas = new TextureAtlas();
+	ViewportCache viewportCache = new ViewportCache(this);
+	// Set when getDmi hands out the placeholder because it's already loaded an icon this frame.
+	boolean iconsPending = false;
 	public DMI interface_dmi;
 	// Attached tiles service
 	public AttachedTileService attachedService = new AttachedTileService(this);
@@ -1005,11 +1199,15 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 	public DMI getDmi(String name, boolean doInitGL) {
 		if (dmis.containsKey(name)) {
 			DMI dmi = dmis.get(name);
-			if (dmi != null && doInitGL && dmi.glID == -1)
-				dmi.createGL();
+			if (dmi != null && doInitGL) {
+				if (dmi.glID == -1)
+					dmi.createGL(textureAtlas);
+				textureAtlas.touch(dmi);
+			}
 			return dmi;
 		} else {
 			if (hasLoadedImageThisFrame && doInitGL) {
+				iconsPending = true;
 				return interface_dmi;
 			} else {
 				hasLoadedImageThisFrame = true;
@@ -1023,7 +1221,7 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 				e.printStackTrace();
 			}
 			if (dmi != null && doInitGL) {
-				dmi.createGL();
+				dmi.createGL(textureAtlas);
 			}
 			if (dmi == null)
 				dmi = interface_dmi;
@@ -1067,8 +1265,10 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 				viewportZoom *= 2;
 			else if (dwheel < 0)
 				viewportZoom /= 2;
-			if (viewportZoom < 8)
-				viewportZoom = 8;
+			// Past 8 it's the overview, which needs the chunk cache
+			int minZoom = ViewportCache.enabled ? 1 : ViewportCache.OVERVIEW_BELOW_ZOOM;
+			if (viewportZoom < minZoom)
+				viewportZoom = minZoom;
 			if (viewportZoom > 128)
 				viewportZoom = 128;
 		}
@@ -1294,6 +1494,11 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		});
 	}
 
+	private SpriteBatch spriteBatch = new SpriteBatch();
+	private RenderQueue emptyQueue = new RenderQueue(0);
+	// Reused every frame so a frame with nothing going on doesn't allocate.
+	private Set<RenderInstance> previewInstances = new TreeSet<>();
+
 	private void loop() {
 
 		// Set the clear color
@@ -1325,32 +1530,46 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 			glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
 			hasLoadedImageThisFrame = false;
-			Set<RenderInstance> rendInstanceSet = buildViewport(true,
-					(int)Math.floor(viewportX - xScrOff - 2),
-					(int)Math.ceil(viewportX + xScrOff + 2),
-					(int)Math.floor(viewportY - yScrOff - 2),
-					(int)Math.ceil(viewportY + yScrOff + 2), currentZ, true);
-					
+			textureAtlas.nextFrame();
+			int minx = (int)Math.floor(viewportX - xScrOff - 2);
+			int maxx = (int)Math.ceil(viewportX + xScrOff + 2);
+			int miny = (int)Math.floor(viewportY - yScrOff - 2);
+			int maxy = (int)Math.ceil(viewportY + yScrOff + 2);
+			// Map sprites come from the cache already sorted, only the placement previews get sorted every frame.
+			RenderQueue mapQueue = emptyQueue;
+			Set<RenderInstance> rendInstanceSet;
+			if (ViewportCache.enabled && dme != null && dmm != null) {
+				synchronized (this) {
+					dmm.loadLevel(currentZ);
+					if (viewportZoom < ViewportCache.OVERVIEW_BELOW_ZOOM)
+						viewportCache.drawOverview(dmm, minx, maxx, miny, maxy, currentZ, objTree.icon_size);
+					else
+						mapQueue = viewportCache.get(dmm, minx, maxx, miny, maxy, currentZ);
+				}
+				rendInstanceSet = previewInstances;
+				rendInstanceSet.clear();
+				visualizeEditing(rendInstanceSet, mapQueue.size);
+			} else {
+				rendInstanceSet = buildViewport(true, minx, maxx, miny, maxy, currentZ, true);
+			}
 
-			for (RenderInstance ri : rendInstanceSet) {
-				glColor3f(ri.color.getRed() / 255f, ri.color.getGreen() / 255f, ri.color.getBlue() / 255f);
-				glBindTexture(GL_TEXTURE_2D, ri.substate.dmi.glID);
-
-				glPushMatrix();
-				glTranslatef(ri.x, ri.y, 0);
-				glBegin(GL_QUADS);
-				glTexCoord2f(ri.substate.x2, ri.substate.y1);
-				glVertex3f(-.5f + (ri.substate.dmi.width / (float) objTree.icon_size),
-						-.5f + (ri.substate.dmi.height / (float) objTree.icon_size), 0);
-				glTexCoord2f(ri.substate.x1, ri.substate.y1);
-				glVertex3f(-.5f, -.5f + (ri.substate.dmi.height / (float) objTree.icon_size), 0);
-				glTexCoord2f(ri.substate.x1, ri.substate.y2);
-				glVertex3f(-.5f, -.5f, 0);
-				glTexCoord2f(ri.substate.x2, ri.substate.y2);
-				glVertex3f(-.5f + (ri.substate.dmi.width / (float) objTree.icon_size), -.5f, 0);
-				glEnd();
-				glPopMatrix();
+			spriteBatch.ensureCapacity(mapQueue.size + rendInstanceSet.size());
+			spriteBatch.begin(objTree != null ? objTree.icon_size : 32);
+			Iterator<RenderInstance> extras = rendInstanceSet.isEmpty() ? null : rendInstanceSet.iterator();
+			RenderInstance extra = extras != null ? extras.next() : null;
+			for (int i = 0; i < mapQueue.size; i++) {
+				int index = mapQueue.sorted(i);
+				while (extra != null && mapQueue.compareTo(index, extra) > 0) {
+					spriteBatch.draw(extra);
+					extra = extras.hasNext() ? extras.next() : null;
+				}
+				spriteBatch.draw(mapQueue, index);
 			}
+			while (extra != null) {
+				spriteBatch.draw(extra);
+				extra = extras.hasNext() ? extras.next() : null;
+			}
+			spriteBatch.end();
 
 			glBindTexture(GL_TEXTURE_2D, -1);
 			glColor4f(1, 1, 1, .25f);
@@ -1378,88 +1597,96 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		Location l = new Location(1, 1, zlev);
 		if (dme != null && dmm != null) {
 			synchronized (this) {
+				// Levels left unloaded on open get filled in the first time they're looked at
+				dmm.loadLevel(zlev);
 				for (int x = minx; x <= maxx; x++) {
 					for (int y = miny; y <= maxy; y++) {
 						l.x = x;
 						l.y = y;
-						String instanceID = dmm.map.get(l);
-						if (instanceID == null)
-							continue;
-						TileInstance instance = dmm.instances.get(instanceID);
+						TileInstance instance = dmm.map.getInstance(x, y, zlev);
 						if (instance == null)
 							continue;
-						for (ObjInstance oInstance : instance.getLayerSorted()) {
-							if (oInstance == null)
-								continue;
-							boolean valid = inFilter(oInstance);
-							if (!valid)
-								continue;
-							DMI dmi = getDmi(oInstance.getIcon(), glIcons);
-							if (dmi == null)
-								continue;
-							String iconState = oInstance.getIconState();
-							IconSubstate substate = dmi.getIconState(iconState).getSubstate(oInstance.getDir());
-
-							RenderInstance ri = new RenderInstance(currCreationIndex++);
-							ri.layer = oInstance.getLayer();
-							ri.plane = oInstance.getPlane();
-							ri.x = x + (oInstance.getPixelX() / (float) objTree.icon_size);
-							ri.y = y + (oInstance.getPixelY() / (float) objTree.icon_size);
-							ri.substate = substate;
-							ri.color = oInstance.getColor();
-
-							rendInstanceSet.add(ri);
-						}
-						if(editingElements) {
-							int dirs = 0;
-							for (int i = 0; i < 4; i++) {
-								int cdir = IconState.indexToDirArray[i];
-								Location l2 = l.getStep(cdir);
-								String instId = dmm.map.get(l2);
-								if (instId == null) {
-									dirs |= cdir;
-									continue;
-								}
-								TileInstance instance2 = dmm.instances.get(instId);
-								if (instance2 == null) {
-									dirs |= cdir;
-									continue;
-								}
-								// Compare area by typeString; ignore transient nulls (handled by instId/instance2 checks above)
-								ObjInstance a1 = instance.getArea();
-								ObjInstance a2 = instance2.getArea();
-								String a1t = (a1 != null) ? a1.typeString() : null;
-								String a2t = (a2 != null) ? a2.typeString() : null;
-								if (a1t != null && a2t != null && !a1t.equals(a2t)) {
-									dirs |= cdir;
-								}
-							}
-							if (dirs != 0) {
-								RenderInstance ri = new RenderInstance(currCreationIndex++);
-								ri.plane = 101;
-								ri.x = x;
-								ri.y = y;
-								ri.substate = interface_dmi.getIconState("" + dirs).getSubstate(2);
-								ri.color = new Color(200, 200, 200);
-								
-								rendInstanceSet.add(ri);
-							}
-						}
+						currCreationIndex = addTileRenderInstances(rendInstanceSet, instance, l, editingElements, glIcons, currCreationIndex);
 					}
 				}
 			}
 		}
 		
 		if(editingElements) {
-			if (currPlacementHandler != null) {
-				currCreationIndex = currPlacementHandler.visualize(rendInstanceSet, currCreationIndex);
-			}
-			
-			currCreationIndex = placementMode.visualize(rendInstanceSet, currCreationIndex);
+			visualizeEditing(rendInstanceSet, currCreationIndex);
 		}
 		return rendInstanceSet;
 	}
 
+	// Placement previews and the like, drawn over the map.
+	private int visualizeEditing(Set<RenderInstance> rendInstanceSet, int currCreationIndex) {
+		if (currPlacementHandler != null) {
+			currCreationIndex = currPlacementHandler.visualize(rendInstanceSet, currCreationIndex);
+		}
+		
+		return placementMode.visualize(rendInstanceSet, currCreationIndex);
+	}
+
+	/**
+	 * Makes the render instances for one tile and adds them to out.
+	 * @return The next creation index.
+	 */
+	int addTileRenderInstances(Collection<RenderInstance> out, TileInstance instance, Location l, boolean editingElements, boolean glIcons, int creationIndex) {
+		for (ObjInstance oInstance : instance.getLayerSorted()) {
+			if (oInstance == null)
+				continue;
+			boolean valid = inFilter(oInstance);
+			if (!valid)
+				continue;
+			DMI dmi = getDmi(oInstance.getIcon(), glIcons);
+			if (dmi == null)
+				continue;
+			String iconState = oInstance.getIconState();
+			IconSubstate substate = dmi.getIconState(iconState).getSubstate(oInstance.getDir());
+
+			RenderInstance ri = new RenderInstance(creationIndex++);
+			ri.layer = oInstance.getLayer();
+			ri.plane = oInstance.getPlane();
+			ri.x = l.x + (oInstance.getPixelX() / (float) objTree.icon_size);
+			ri.y = l.y + (oInstance.getPixelY() / (float) objTree.icon_size);
+			ri.substate = substate;
+			ri.color = oInstance.getColor();
+
+			out.add(ri);
+		}
+		if(editingElements) {
+			int dirs = 0;
+			for (int i = 0; i < 4; i++) {
+				int cdir = IconState.indexToDirArray[i];
+				Location l2 = l.getStep(cdir);
+				TileInstance instance2 = dmm.map.getInstance(l2.x, l2.y, l2.z);
+				if (instance2 == null) {
+					dirs |= cdir;
+					continue;
+				}
+				// Compare area by typeString; ignore transient nulls (handled by the instance2 check above)
+				ObjInstance a1 = instance.getArea();
+				ObjInstance a2 = instance2.getArea();
+				String a1t = (a1 != null) ? a1.typeString() : null;
+				String a2t = (a2 != null) ? a2.typeString() : null;
+				if (a1t != null && a2t != null && !a1t.equals(a2t)) {
+					dirs |= cdir;
+				}
+			}
+			if (dirs != 0) {
+				RenderInstance ri = new RenderInstance(creationIndex++);
+				ri.plane = 101;
+				ri.x = l.x;
+				ri.y = l.y;
+				ri.substate = interface_dmi.getIconState("" + dirs).getSubstate(2);
+				ri.color = new Color(200, 200, 200);
+				
+				out.add(ri);
+			}
+		}
+		return creationIndex;
+	}
+
 	private void addToRecent(File dme, DMM dmm) {
 		String path = System.getProperty("user.home") + File.separator + ".fastdmm" + File.separator + "recent.json";
 		File file = new File(path);
@@ -1734,6 +1961,45 @@ public class FastDMM extends JFrame implements ActionListener, TreeSelectionList
 		menuItemRedo.setEnabled(false);
 	}
 	
+	// Keys the undo/redo history could still put back into the map. See DMM.compactInstances.
+	public void collectUndoKeys(DMM map, Set<String> keys) {
+		for(Undoable action : undostack) {
+			if(action instanceof DMMDiff)
+				((DMMDiff)action).collectKeys(map, keys);
+		}
+		for(Undoable action : redostack) {
+			if(action instanceof DMMDiff)
+				((DMMDiff)action).collectKeys(map, keys);
+		}
+	}
+	
+	public void saveInBackground(DMM map) {
+		if(map == null)
+			return;
+		final DMMWriter writer;
+		// Snapshot under the same lock the placement code and renderer use, so the copy is consistent.
+		synchronized(this) {
+			placementMode.flush(this);
+			writer = map.snapshotForSave();
+		}
+		final String name = writer.getFile().getName();
+		selection.setText("Saving " + name + "...");
+		saveExecutor.execute(() -> {
+			try {
+				writer.write(percent -> SwingUtilities.invokeLater(() -> selection.setText("Saving " + name + "... " + percent + "%")));
+				SwingUtilities.invokeLater(() -> selection.setText("Saved " + name));
+			} catch (Exception ex) {
+				StringWriter sw = new StringWriter();
+				PrintWriter pw = new PrintWriter(sw);
+				ex.printStackTrace(pw);
+				SwingUtilities.invokeLater(() -> {
+					selection.setText("Saving " + name + " failed");
+					JOptionPane.showMessageDialog(FastDMM.this, sw.getBuffer(), "Error", JOptionPane.ERROR_MESSAGE);
+				});
+			}
+		});
+	}
+	
 	public boolean undoAction(){
 		if(undostack.empty()) {
 			return false;
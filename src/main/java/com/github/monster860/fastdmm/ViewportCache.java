@@ -0,0 +1,336 @@
+package com.github.monster860.fastdmm;
+
+import java.util.*;
+
+import com.github.monster860.fastdmm.dmirender.DMI;
+import com.github.monster860.fastdmm.dmirender.IconSubstate;
+import com.github.monster860.fastdmm.dmirender.ImpostorPainter;
+import com.github.monster860.fastdmm.dmirender.RenderInstance;
+import com.github.monster860.fastdmm.dmirender.RenderQueue;
+import com.github.monster860.fastdmm.dmmmap.DMM;
+import com.github.monster860.fastdmm.dmmmap.Location;
+import com.github.monster860.fastdmm.dmmmap.TileGrid;
+import com.github.monster860.fastdmm.dmmmap.TileInstance;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * The map part of the viewport, kept between frames so a frame where nothing happened doesn't have to go through
+ * every tile again.
+ *
+ * The map is split up into 16x16 chunks, each keeping the sprites its tiles made and the instance IDs they
+ * were made from (plus the ring of tiles around it, which the area borders look at). When the map's been changed
+ * since a chunk was last looked at, its IDs are checked against the map and it's only rebuilt if one of them is
+ * different. The sorted queue of everything visible is only redone when a chunk was rebuilt or the viewport moved
+ * onto different chunks. A frame where neither happens doesn't allocate anything.
+ *
+ * Zoomed out past OVERVIEW_BELOW_ZOOM the chunks are drawn from small pictures of themselves instead, see
+ * drawOverview.
+ *
+ * Creation indexes are handed out in the same x then y order buildViewport goes in, so things on the same plane and
+ * layer still come out in the same order they used to.
+ *
+ * Only touched from the render loop, with the editor lock held.
+ */
+public class ViewportCache {
+	// Toggled from the Options menu.
+	public static boolean enabled = true;
+
+	private static final int CHUNK_BITS = 4;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	// Chunks kept around past the ones on screen, so panning back and forth doesn't rebuild them.
+	private static final int SPARE_CHUNKS = 256;
+	// Zoomed in closer than this draws sprites, further out draws the overview.
+	public static final int OVERVIEW_BELOW_ZOOM = 8;
+	// At zoom 4 that's one texture pixel per screen pixel.
+	private static final int OVERVIEW_PIXELS_PER_TILE = 4;
+	private static final long OVERVIEW_BUDGET_NANOS = 8000000;
+
+	private final FastDMM editor;
+	private final Map<Long, Chunk> chunks = new HashMap<>();
+	// The chunks on screen, x major, so a frame doesn't have to look them up.
+	private Chunk[] visible = new Chunk[0];
+	private final RenderQueue queue = new RenderQueue();
+	private final RenderQueue impostorQueue = new RenderQueue();
+	private ImpostorPainter painter;
+	private int painterIconSize;
+	private boolean sortedValid = false;
+	private volatile boolean invalidated = false;
+
+	private DMM dmm;
+	private int z;
+	private int minCx, maxCx, minCy, maxCy;
+
+	public ViewportCache(FastDMM editor) {
+		this.editor = editor;
+	}
+
+	/**
+	 * Throws everything away, for when something other than the map changes what tiles look like (filters, the
+	 * object tree).
+	 */
+	public void invalidate() {
+		invalidated = true;
+	}
+
+	/**
+	 * @return Sprites of every chunk touching the area, sorted. Stays valid until the next call.
+	 */
+	RenderQueue get(DMM dmm, int minx, int maxx, int miny, int maxy, int zlev) {
+		show(dmm, minx, maxx, miny, maxy, zlev);
+		TileGrid map = dmm.map;
+		int modCount = map.getModCount();
+		int discards = dmm.instances.getDiscardCount();
+		for(Chunk chunk : visible) {
+			if(chunk.needsBuild(map, modCount, discards))
+				chunk.build(map, modCount, discards);
+			chunk.prepareIcons();
+		}
+
+		if(!sortedValid) {
+			queue.clear();
+			int creationIndex = 0;
+			int rows = maxCy - minCy + 1;
+			for(int c = 0; c < visible.length; c += rows) {
+				for(int lx = 0; lx < CHUNK_SIZE; lx++) {
+					for(int cy = 0; cy < rows; cy++) {
+						Chunk chunk = visible[c + cy];
+						int end = chunk.tileStart[lx * CHUNK_SIZE + CHUNK_SIZE];
+						for(int i = chunk.tileStart[lx * CHUNK_SIZE]; i < end; i++)
+							queue.add(chunk.x[i], chunk.y[i], chunk.substates[i], chunk.colors[i], chunk.planes[i], chunk.layers[i], creationIndex++);
+					}
+				}
+			}
+			queue.sort();
+			sortedValid = true;
+		}
+		return queue;
+	}
+
+	/**
+	 * Draws the area zoomed way out: every chunk gets painted into a small texture once (and again when it changes)
+	 * and drawn as one quad. Chunks are built and painted for a few milliseconds each frame at most, so zooming out
+	 * over a big map fills in over a few frames instead of freezing. The ones that aren't ready yet are left out, or
+	 * drawn from their old picture if they had one.
+	 */
+	void drawOverview(DMM dmm, int minx, int maxx, int miny, int maxy, int zlev, int iconSize) {
+		show(dmm, minx, maxx, miny, maxy, zlev);
+		if(painter == null || painter.tiles != CHUNK_SIZE || painterIconSize != iconSize) {
+			painter = new ImpostorPainter(CHUNK_SIZE, OVERVIEW_PIXELS_PER_TILE, iconSize);
+			painterIconSize = iconSize;
+			for(Chunk chunk : chunks.values())
+				chunk.impostorCurrent = false;
+		}
+		TileGrid map = dmm.map;
+		int modCount = map.getModCount();
+		int discards = dmm.instances.getDiscardCount();
+		long deadline = System.nanoTime() + OVERVIEW_BUDGET_NANOS;
+		for(Chunk chunk : visible) {
+			if(System.nanoTime() > deadline)
+				break;
+			if(chunk.needsBuild(map, modCount, discards))
+				chunk.build(map, modCount, discards);
+			if(!chunk.impostorCurrent)
+				chunk.paintImpostor();
+		}
+
+		glColor3f(1, 1, 1);
+		for(Chunk chunk : visible) {
+			if(chunk.impostor == -1)
+				continue;
+			float x1 = (chunk.cx << CHUNK_BITS) - .5f;
+			float y1 = (chunk.cy << CHUNK_BITS) - .5f;
+			float x2 = x1 + CHUNK_SIZE;
+			float y2 = y1 + CHUNK_SIZE;
+			glBindTexture(GL_TEXTURE_2D, chunk.impostor);
+			glBegin(GL_QUADS);
+			glTexCoord2f(1, 1);
+			glVertex3f(x2, y2, 0);
+			glTexCoord2f(0, 1);
+			glVertex3f(x1, y2, 0);
+			glTexCoord2f(0, 0);
+			glVertex3f(x1, y1, 0);
+			glTexCoord2f(1, 0);
+			glVertex3f(x2, y1, 0);
+			glEnd();
+		}
+	}
+
+	// Works out which chunks are on screen, throwing the old ones away if anything changed.
+	private void show(DMM dmm, int minx, int maxx, int miny, int maxy, int zlev) {
+		boolean reset = dmm != this.dmm || zlev != z || invalidated;
+		if(reset) {
+			invalidated = false;
+			for(Chunk chunk : chunks.values())
+				chunk.dispose();
+			chunks.clear();
+			painter = null;
+			sortedValid = false;
+			this.dmm = dmm;
+			z = zlev;
+		}
+		int nMinCx = minx >> CHUNK_BITS, nMaxCx = maxx >> CHUNK_BITS;
+		int nMinCy = miny >> CHUNK_BITS, nMaxCy = maxy >> CHUNK_BITS;
+		if(reset || nMinCx != minCx || nMaxCx != maxCx || nMinCy != minCy || nMaxCy != maxCy) {
+			minCx = nMinCx;
+			maxCx = nMaxCx;
+			minCy = nMinCy;
+			maxCy = nMaxCy;
+			sortedValid = false;
+			visible = new Chunk[(maxCx - minCx + 1) * (maxCy - minCy + 1)];
+			if(chunks.size() > visible.length + SPARE_CHUNKS) {
+				chunks.values().removeIf(c -> {
+					if(c.cx >= minCx && c.cx <= maxCx && c.cy >= minCy && c.cy <= maxCy)
+						return false;
+					c.dispose();
+					return true;
+				});
+			}
+			int i = 0;
+			for(int cx = minCx; cx <= maxCx; cx++) {
+				for(int cy = minCy; cy <= maxCy; cy++)
+					visible[i++] = chunks.computeIfAbsent(key(cx, cy), k -> new Chunk((int)(k >> 32), (int)(long)k));
+			}
+		}
+	}
+
+	private static Long key(int cx, int cy) {
+		return ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	private class Chunk {
+		final int cx, cy;
+		// Instance IDs of the chunk's tiles and the ring around it, x major.
+		final int[] ids = new int[(CHUNK_SIZE + 2) * (CHUNK_SIZE + 2)];
+		// The sprites, tile by tile in the order they were made. Null until it's built.
+		float[] x, y, layers;
+		int[] planes, colors;
+		IconSubstate[] substates;
+		// Where each tile's sprites start, x major, with the end at the end.
+		final int[] tileStart = new int[CHUNK_SIZE * CHUNK_SIZE + 1];
+		DMI[] dmis;
+		// Some icon hadn't loaded yet and got the placeholder, so it has to be built again.
+		boolean incomplete;
+		int modCount;
+		int discards;
+		// Texture of the chunk painted small for the overview, or -1.
+		int impostor = -1;
+		boolean impostorCurrent = false;
+
+		Chunk(int cx, int cy) {
+			this.cx = cx;
+			this.cy = cy;
+		}
+
+		// ID's get reused once instances are discarded, so after that the ones remembered here can't be trusted.
+		boolean needsBuild(TileGrid map, int modCount, int discards) {
+			if(substates == null || incomplete || this.discards != discards)
+				return true;
+			if(this.modCount == modCount)
+				return false;
+			if(changed(map))
+				return true;
+			this.modCount = modCount;
+			return false;
+		}
+
+		boolean changed(TileGrid map) {
+			int x0 = (cx << CHUNK_BITS) - 1;
+			int y0 = (cy << CHUNK_BITS) - 1;
+			int i = 0;
+			for(int tx = x0; tx < x0 + CHUNK_SIZE + 2; tx++) {
+				for(int ty = y0; ty < y0 + CHUNK_SIZE + 2; ty++) {
+					if(ids[i++] != map.getId(tx, ty, z))
+						return true;
+				}
+			}
+			return false;
+		}
+
+		void build(TileGrid map, int modCount, int discards) {
+			this.modCount = modCount;
+			this.discards = discards;
+			sortedValid = false;
+			impostorCurrent = false;
+			int x0 = cx << CHUNK_BITS;
+			int y0 = cy << CHUNK_BITS;
+			int slot = 0;
+			for(int tx = x0 - 1; tx < x0 + CHUNK_SIZE + 1; tx++) {
+				for(int ty = y0 - 1; ty < y0 + CHUNK_SIZE + 1; ty++)
+					ids[slot++] = map.getId(tx, ty, z);
+			}
+
+			editor.iconsPending = false;
+			List<RenderInstance> out = new ArrayList<>();
+			Location l = new Location(0, 0, z);
+			int t = 0;
+			for(int lx = 0; lx < CHUNK_SIZE; lx++) {
+				for(int ly = 0; ly < CHUNK_SIZE; ly++) {
+					tileStart[t++] = out.size();
+					TileInstance instance = map.getInstance(x0 + lx, y0 + ly, z);
+					if(instance == null)
+						continue;
+					l.x = x0 + lx;
+					l.y = y0 + ly;
+					editor.addTileRenderInstances(out, instance, l, true, true, 0);
+				}
+			}
+			tileStart[t] = out.size();
+			incomplete = editor.iconsPending;
+
+			int n = out.size();
+			x = new float[n];
+			y = new float[n];
+			layers = new float[n];
+			planes = new int[n];
+			colors = new int[n];
+			substates = new IconSubstate[n];
+			Set<DMI> used = Collections.newSetFromMap(new IdentityHashMap<>());
+			for(int i = 0; i < n; i++) {
+				RenderInstance ri = out.get(i);
+				x[i] = ri.x;
+				y[i] = ri.y;
+				layers[i] = ri.layer;
+				planes[i] = ri.plane;
+				colors[i] = ri.color.getRGB() & 0xFFFFFF;
+				substates[i] = ri.substate;
+				used.add(ri.substate.dmi);
+			}
+			dmis = used.toArray(new DMI[0]);
+		}
+
+		void paintImpostor() {
+			// Sorted on its own, the order within one chunk is the same as in the whole viewport.
+			RenderQueue sprites = impostorQueue;
+			sprites.clear();
+			for(int i = 0; i < substates.length; i++)
+				sprites.add(x[i], y[i], substates[i], colors[i], planes[i], layers[i], i);
+			sprites.sort();
+			painter.clear();
+			float x0 = cx << CHUNK_BITS;
+			float y0 = cy << CHUNK_BITS;
+			for(int i = 0; i < sprites.size; i++) {
+				int s = sprites.sorted(i);
+				painter.paint(sprites.x[s] - x0, sprites.y[s] - y0, sprites.substate[s], sprites.color[s]);
+			}
+			sprites.clear();
+			impostor = painter.upload(impostor);
+			impostorCurrent = true;
+		}
+
+		void dispose() {
+			if(impostor != -1)
+				glDeleteTextures(impostor);
+			impostor = -1;
+		}
+
+		// Icons can get thrown out of the atlas while a chunk sits there, this puts them back and keeps them in.
+		void prepareIcons() {
+			for(DMI dmi : dmis) {
+				if(dmi.glID == -1)
+					dmi.createGL(editor.textureAtlas);
+				editor.textureAtlas.touch(dmi);
+			}
+		}
+	}
+}
@@ -162,6 +162,10 @@ public class AttachedTileService {
     // Tile key at current origin (not used for skip anymore; we compare against root)
     String originKey = editor.dmm.map.get(origin);
 
+        // Look the base types up once, the checks below run for every object on every neighbor
+        com.github.monster860.fastdmm.objtree.ObjectTree.Item currentBase = (base != null) ? editor.objTree.get(base.typeString()) : null;
+        com.github.monster860.fastdmm.objtree.ObjectTree.Item rootBase = (rootBaseType != null) ? editor.objTree.get(rootBaseType) : null;
+
         for (Map.Entry<String, List<String>> entry : byDir.entrySet()) {
             String dir = entry.getKey();
             Location l = neighbors.get(dir);
@@ -180,7 +184,7 @@ public class AttachedTileService {
             if (currentBaseType != null && !currentBaseType.isEmpty()) {
                 boolean neighborHasCurrentBase = false;
                 for (ObjInstance oi : ti.objs) {
-                    if (oi != null && oi.istype(currentBaseType)) { neighborHasCurrentBase = true; break; }
+                    if (oi != null && oi.istype(currentBase)) { neighborHasCurrentBase = true; break; }
                 }
                 if (neighborHasCurrentBase) continue;
             }
@@ -190,7 +194,7 @@ public class AttachedTileService {
             if (rootBaseType != null && !rootBaseType.isEmpty()) {
                 boolean neighborHasRootBase = false;
                 for (ObjInstance oi : ti.objs) {
-                    if (oi != null && oi.istype(rootBaseType)) { neighborHasRootBase = true; break; }
+                    if (oi != null && oi.istype(rootBase)) { neighborHasRootBase = true; break; }
                 }
                 if (neighborHasRootBase) continue;
             }
@@ -199,13 +203,13 @@ public class AttachedTileService {
                 if (typePath == null || typePath.trim().isEmpty()) continue;
                 // Already present?
                 boolean exists = false;
-                for (ObjInstance i : ti.objs) {
-                    if (i != null && i.istype(typePath)) { exists = true; break; }
-                }
-                if (exists) continue;
                 // Get template
                 com.github.monster860.fastdmm.objtree.ObjectTree.Item item = editor.objTree.get(typePath);
                 if (item == null) continue;
+                for (ObjInstance i : ti.objs) {
+                    if (i != null && i.istype(item)) { exists = true; break; }
+                }
+                if (exists) continue;
                 // Turf/Area: allow, but skip exact same type duplicates
                 boolean isTurf = item.path.startsWith("/turf");
                 boolean isArea = item.path.startsWith("/area");
@@ -213,7 +217,7 @@ public class AttachedTileService {
                     boolean sameTypeExists = false;
                     for (ObjInstance i : ti.objs) {
                         if (i == null) continue;
-                        if (i.istype(item.path)) { sameTypeExists = true; break; }
+                        if (i.istype(item)) { sameTypeExists = true; break; }
                     }
                     if (sameTypeExists) continue;
                 }
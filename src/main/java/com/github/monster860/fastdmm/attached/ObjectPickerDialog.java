@@ -2,6 +2,7 @@ package com.github.monster860.fastdmm.attached;
 
 import com.github.monster860.fastdmm.FastDMM;
 import com.github.monster860.fastdmm.editing.ui.ObjectTreeRenderer;
+import com.github.monster860.fastdmm.objtree.FilteredObjectTree;
 import com.github.monster860.fastdmm.objtree.ObjectTree;
 import com.github.monster860.fastdmm.objtree.ObjectTree.Item;
 
@@ -81,6 +82,7 @@ public class ObjectPickerDialog extends JDialog {
             @Override public void removeUpdate(DocumentEvent e) { applyFilter(search.getText()); }
             @Override public void changedUpdate(DocumentEvent e) { applyFilter(search.getText()); }
         });
+        search.addActionListener(e -> selectBestMatch());
     }
 
     private void collapseAll() {
@@ -95,100 +97,27 @@ public class ObjectPickerDialog extends JDialog {
             collapseAll();
             return;
         }
-        // Wrap the model with a filter that only exposes matching nodes
-        tree.setModel(new FilteredTreeModel(editor.objTree, query));
-        expandAll();
+        // Only show matching nodes, worked out once per query from the tree's search index
+        FilteredObjectTree filtered = new FilteredObjectTree(editor.objTree, query);
+        tree.setModel(filtered);
+        filtered.expandMatches(tree);
     }
 
-    private void expandAll() {
-        int oldCount = -1;
-        while (tree.getRowCount() != oldCount) {
-            oldCount = tree.getRowCount();
-            for (int i = 0; i < oldCount; i++) tree.expandRow(i);
-        }
-    }
-
-    private Item findFirstMatch(String query) {
-        ObjectTree ot = editor.objTree;
-        if (ot == null) return null;
-        // Prefer common roots
-        String[] roots = new String[]{"/obj","/turf","/area","/mob"};
-        for (String r : roots) {
-            for (Item it : ot.items.values()) {
-                if (it.path != null && it.path.startsWith(r) && it.path.toLowerCase().contains(query)) return it;
+    // Enter in the search box selects the best match
+    private void selectBestMatch() {
+        String query = search.getText().trim();
+        if (query.isEmpty() || editor.objTree == null) return;
+        for (Item it : editor.objTree.getSearchIndex().search(query, 50)) {
+            TreePath path = editor.objTree.pathTo(it);
+            if (path != null) {
+                tree.setSelectionPath(path);
+                tree.scrollPathToVisible(path);
+                return;
             }
         }
-        for (Item it : ot.items.values()) {
-            if (it.path != null && it.path.toLowerCase().contains(query)) return it;
-        }
-        return null;
-    }
-
-    private TreePath buildPath(Item item) {
-        java.util.List<Object> nodes = new ArrayList<>();
-        nodes.add(item);
-        Item cur = item.parent;
-        while (cur != null) {
-            nodes.add(0, cur);
-            cur = cur.parent;
-        }
-        nodes.add(0, editor.objTree); // root
-        return new TreePath(nodes.toArray());
     }
 
     public List<String> getSelectedTypePaths() {
         return result;
     }
-
-    /**
-     * TreeModel that filters ObjectTree items by a case-insensitive substring match on their type path.
-     * Only nodes that match or have matching descendants are exposed.
-     */
-    private static class FilteredTreeModel implements TreeModel {
-        private final ObjectTree base;
-        private final String q;
-
-        FilteredTreeModel(ObjectTree base, String queryLower) {
-            this.base = base;
-            this.q = queryLower;
-        }
-
-        @Override public Object getRoot() { return base.getRoot(); }
-        @Override public Object getChild(Object parent, int index) { return filteredChildren(parent).get(index); }
-        @Override public int getChildCount(Object parent) { return filteredChildren(parent).size(); }
-        @Override public boolean isLeaf(Object node) { return filteredChildren(node).isEmpty(); }
-        @Override public void valueForPathChanged(TreePath path, Object newValue) { /* no-op */ }
-        @Override public int getIndexOfChild(Object parent, Object child) { return filteredChildren(parent).indexOf(child); }
-        @Override public void addTreeModelListener(javax.swing.event.TreeModelListener l) { /* no dynamic changes */ }
-        @Override public void removeTreeModelListener(javax.swing.event.TreeModelListener l) { }
-
-        private java.util.List<Object> filteredChildren(Object parent) {
-            java.util.List<Object> out = new java.util.ArrayList<>();
-            if (parent == base) {
-                int count = base.getChildCount(parent);
-                for (int i = 0; i < count; i++) {
-                    Object ch = base.getChild(parent, i);
-                    if (matchesOrHasMatches(ch)) out.add(ch);
-                }
-            } else if (parent instanceof ObjectTree.Item) {
-                ObjectTree.Item it = (ObjectTree.Item) parent;
-                for (ObjectTree.Item sub : it.subtypes) {
-                    if (matchesOrHasMatches(sub)) out.add(sub);
-                }
-            }
-            return out;
-        }
-
-        private boolean matchesOrHasMatches(Object node) {
-            if (node instanceof ObjectTree.Item) {
-                ObjectTree.Item it = (ObjectTree.Item) node;
-                if (it.path != null && it.path.toLowerCase().contains(q)) return true;
-                for (ObjectTree.Item sub : it.subtypes) if (matchesOrHasMatches(sub)) return true;
-            } else if (node == base) {
-                int count = base.getChildCount(node);
-                for (int i = 0; i < count; i++) if (matchesOrHasMatches(base.getChild(node, i))) return true;
-            }
-            return false;
-        }
-    }
 }
@@ -36,6 +36,8 @@ public class DMI {
 
     public int glID = -1;
     public BufferedImage image;
+    // Last frame it was drawn, for the atlas to work out which pages are still wanted.
+    int lastUsedFrame = 0;
 
     public DMI(InputStream inputStream) throws IOException {
 
@@ -205,6 +207,27 @@ public class DMI {
             return defaultState;
     }
 
+    // Points every substate's UVs at the sheet, u0/v0 being its corner in the texture and uScale/vScale its size.
+    void setUVs(float u0, float v0, float uScale, float vScale) {
+        for (IconState is : iconStates.values()) {
+            for (IconSubstate substate : is.substates) {
+                substate.setUVs(u0, v0, uScale, vScale);
+            }
+        }
+    }
+
+    /**
+     * Packs the icon into the atlas if it fits, or gives it its own texture like createGL() if it doesn't.
+     */
+    public void createGL(TextureAtlas atlas) {
+        if (image == null || glID != -1)
+            return;
+        if (atlas == null || !TextureAtlas.enabled || !atlas.add(this)) {
+            setUVs(0, 0, 1, 1);
+            createGL();
+        }
+    }
+
     public void createGL() {
         if (image == null || glID != -1)
             return;
@@ -28,16 +28,23 @@ public class IconSubstate implements Icon {
 		this.index = index;
 		x = (index % dmi.cols);
 		y = (int) Math.floor((float)index / (float)dmi.cols);
-		x1 = ((float)x / (float)dmi.cols) + UV_MARGIN;
-		y1 = ((float)y / (float)dmi.rows) + UV_MARGIN;
-		x2 = ((float)(x + 1) / (float)dmi.cols) - UV_MARGIN;
-		y2 = ((float)(y + 1) / (float)dmi.rows) - UV_MARGIN;
+		setUVs(0, 0, 1, 1);
 		i_x1 = x * dmi.width;
 		i_y1 = y * dmi.height;
 		i_x2 = (x+1) * dmi.width - 1;
 		i_y2 = (y+1) * dmi.height - 1;
 	}
 
+	/**
+	 * Points the UVs at where the sheet is in the texture: u0/v0 is its corner and uScale/vScale its size, in UVs.
+	 */
+	void setUVs(float u0, float v0, float uScale, float vScale) {
+		x1 = u0 + (((float)x / (float)dmi.cols) + UV_MARGIN) * uScale;
+		y1 = v0 + (((float)y / (float)dmi.rows) + UV_MARGIN) * vScale;
+		x2 = u0 + (((float)(x + 1) / (float)dmi.cols) - UV_MARGIN) * uScale;
+		y2 = v0 + (((float)(y + 1) / (float)dmi.rows) - UV_MARGIN) * vScale;
+	}
+
 	@Override
 	public int getIconHeight() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,177 @@
+package com.github.monster860.fastdmm.dmirender;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL14;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Paints a block of map into a small picture on the CPU, a few pixels per tile, for showing the map zoomed way out
+ * with one quad per block instead of a quad per sprite.
+ *
+ * Icons get shrunk down once (averaging their pixels) and kept, after that painting a sprite is just blending a
+ * handful of pixels. Sprites sticking out past the block get cut off, nobody can tell at that size.
+ *
+ * Painting can happen anywhere, uploading is GL thread only.
+ */
+public class ImpostorPainter {
+	public final int pixelsPerTile;
+	public final int tiles;
+	private final int size;
+	private final int iconSize;
+	// ARGB, bottom row first like GL wants it.
+	private final int[] pixels;
+	private final ByteBuffer upload;
+	private final Map<IconSubstate, Shrunk> shrunk = new IdentityHashMap<>();
+
+	public ImpostorPainter(int tiles, int pixelsPerTile, int iconSize) {
+		this.tiles = tiles;
+		this.pixelsPerTile = pixelsPerTile;
+		this.iconSize = iconSize;
+		size = tiles * pixelsPerTile;
+		pixels = new int[size * size];
+		upload = BufferUtils.createByteBuffer(size * size * 4);
+	}
+
+	public void clear() {
+		Arrays.fill(pixels, 0);
+	}
+
+	/**
+	 * @param x Where the sprite is, in tiles from the block's bottom left tile, like RenderInstance.x.
+	 * @param y Same for y.
+	 * @param color 0xRRGGBB
+	 */
+	public void paint(float x, float y, IconSubstate substate, int color) {
+		Shrunk s = shrunk.get(substate);
+		if(s == null) {
+			s = new Shrunk(substate);
+			shrunk.put(substate, s);
+		}
+		if(s.pixels == null)
+			return;
+		int left = Math.round(x * pixelsPerTile);
+		int bottom = Math.round(y * pixelsPerTile);
+		int rm = (color >> 16) & 0xFF;
+		int gm = (color >> 8) & 0xFF;
+		int bm = color & 0xFF;
+		for(int row = 0; row < s.height; row++) {
+			// Shrunk pictures go top down.
+			int py = bottom + s.height - 1 - row;
+			if(py < 0 || py >= size)
+				continue;
+			for(int col = 0; col < s.width; col++) {
+				int px = left + col;
+				if(px < 0 || px >= size)
+					continue;
+				int src = s.pixels[row * s.width + col];
+				int sa = src >>> 24;
+				if(sa == 0)
+					continue;
+				int sr = ((src >> 16) & 0xFF) * rm / 255;
+				int sg = ((src >> 8) & 0xFF) * gm / 255;
+				int sb = (src & 0xFF) * bm / 255;
+				int i = py * size + px;
+				int dst = pixels[i];
+				int da = dst >>> 24;
+				if(sa == 255 || da == 0) {
+					pixels[i] = (sa << 24) | (sr << 16) | (sg << 8) | sb;
+					continue;
+				}
+				// Plain "over" without premultiplied alpha.
+				int keep = da * (255 - sa) / 255;
+				int oa = sa + keep;
+				int or = (sr * sa + ((dst >> 16) & 0xFF) * keep) / oa;
+				int og = (sg * sa + ((dst >> 8) & 0xFF) * keep) / oa;
+				int ob = (sb * sa + (dst & 0xFF) * keep) / oa;
+				pixels[i] = (oa << 24) | (or << 16) | (og << 8) | ob;
+			}
+		}
+	}
+
+	/**
+	 * Puts the picture into a texture, making one if glID is -1.
+	 * @return The texture.
+	 */
+	public int upload(int glID) {
+		if(glID == -1) {
+			glID = glGenTextures();
+			glBindTexture(GL_TEXTURE_2D, glID);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+			glTexParameteri(GL_TEXTURE_2D, GL14.GL_GENERATE_MIPMAP, GL_TRUE);
+		} else {
+			glBindTexture(GL_TEXTURE_2D, glID);
+		}
+		upload.clear();
+		for(int pixel : pixels) {
+			upload.put((byte)((pixel >> 16) & 0xFF));
+			upload.put((byte)((pixel >> 8) & 0xFF));
+			upload.put((byte)(pixel & 0xFF));
+			upload.put((byte)((pixel >> 24) & 0xFF));
+		}
+		upload.flip();
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, size, size, 0, GL_RGBA, GL_UNSIGNED_BYTE, upload);
+		return glID;
+	}
+
+	/**
+	 * @return The picture as it stands, ARGB, bottom row first.
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	// An icon frame shrunk down to the painter's scale.
+	private class Shrunk {
+		final int width;
+		final int height;
+		final int[] pixels;
+
+		Shrunk(IconSubstate substate) {
+			DMI dmi = substate.dmi;
+			width = Math.max(1, Math.round(dmi.width * pixelsPerTile / (float)iconSize));
+			height = Math.max(1, Math.round(dmi.height * pixelsPerTile / (float)iconSize));
+			BufferedImage image = dmi.image;
+			if(image == null || substate.i_x1 + dmi.width > image.getWidth() || substate.i_y1 + dmi.height > image.getHeight()) {
+				pixels = null;
+				return;
+			}
+			int[] src = image.getRGB(substate.i_x1, substate.i_y1, dmi.width, dmi.height, null, 0, dmi.width);
+			pixels = new int[width * height];
+			for(int oy = 0; oy < height; oy++) {
+				int y1 = oy * dmi.height / height;
+				int y2 = Math.max(y1 + 1, (oy + 1) * dmi.height / height);
+				for(int ox = 0; ox < width; ox++) {
+					int x1 = ox * dmi.width / width;
+					int x2 = Math.max(x1 + 1, (ox + 1) * dmi.width / width);
+					// Colors weighted by alpha, so see-through pixels don't darken the edges.
+					long a = 0, r = 0, g = 0, b = 0;
+					for(int sy = y1; sy < y2; sy++) {
+						for(int sx = x1; sx < x2; sx++) {
+							int p = src[sy * dmi.width + sx];
+							int pa = p >>> 24;
+							a += pa;
+							r += ((p >> 16) & 0xFF) * pa;
+							g += ((p >> 8) & 0xFF) * pa;
+							b += (p & 0xFF) * pa;
+						}
+					}
+					int count = (x2 - x1) * (y2 - y1);
+					if(a == 0)
+						continue;
+					pixels[oy * width + ox] = ((int)(a / count) << 24) | ((int)(r / a) << 16) | ((int)(g / a) << 8) | (int)(b / a);
+				}
+			}
+		}
+	}
+}
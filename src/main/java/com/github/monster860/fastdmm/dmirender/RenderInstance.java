@@ -17,16 +17,16 @@ public class RenderInstance implements Comparable<RenderInstance> {
 	
 	@Override
 	public int compareTo(RenderInstance o) {
-		float cnA = plane;
-		float cnB = o.plane;
-		if(cnA == cnB) {
-			cnA = layer;
-			cnB = o.layer;
+		if(plane != o.plane)
+			return plane < o.plane ? -1 : 1;
+		if(layer != o.layer) {
+			// Float.compare so NaN goes after everything (and ties with NaN) instead of comparing as bigger both ways.
+			// -0 and 0 don't get here, they're the same layer.
+			int c = Float.compare(layer, o.layer);
+			if(c != 0)
+				return c;
 		}
-		if(cnA == cnB) {
-			cnA = creationIndex;
-			cnB = o.creationIndex;
-		}
-		return cnA < cnB ? -1 : (cnA == cnB ? 0 : 1);
+		// Compared as ints, floats stop being exact past 16 million or so.
+		return Integer.compare(creationIndex, o.creationIndex);
 	}
 }
@@ -0,0 +1,171 @@
+package com.github.monster860.fastdmm.dmirender;
+
+import java.util.Arrays;
+
+/**
+ * Sprites to draw, kept as parallel arrays instead of a RenderInstance and a Color each, and put in order with a
+ * radix sort instead of a TreeSet. Orders the same as RenderInstance.compareTo: plane, then layer, then creation index.
+ *
+ * The arrays only ever grow, so once it's as big as the biggest frame, clearing and refilling it every frame doesn't
+ * allocate anything.
+ */
+public class RenderQueue {
+	public int size = 0;
+	public float[] x;
+	public float[] y;
+	public IconSubstate[] substate;
+	// 0xRRGGBB
+	public int[] color;
+	public int[] plane;
+	public float[] layer;
+	public int[] creationIndex;
+
+	private long[] keys;
+	// Indexes in sorted order after sort(), and somewhere to put them while sorting.
+	private int[] order;
+	private int[] scratch;
+	private final int[] counts = new int[8 * 256];
+	// Whether things were added in creation index order, which means that pass can be skipped.
+	private boolean inCreationOrder = true;
+
+	public RenderQueue() {
+		this(1024);
+	}
+
+	public RenderQueue(int capacity) {
+		x = new float[capacity];
+		y = new float[capacity];
+		substate = new IconSubstate[capacity];
+		color = new int[capacity];
+		plane = new int[capacity];
+		layer = new float[capacity];
+		creationIndex = new int[capacity];
+		keys = new long[capacity];
+		order = new int[capacity];
+		scratch = new int[capacity];
+	}
+
+	public void clear() {
+		// Let go of the substates so icons that aren't used any more can go.
+		Arrays.fill(substate, 0, size, null);
+		size = 0;
+		inCreationOrder = true;
+	}
+
+	public void add(float x, float y, IconSubstate substate, int color, int plane, float layer, int creationIndex) {
+		if(size == this.x.length)
+			grow();
+		int i = size++;
+		this.x[i] = x;
+		this.y[i] = y;
+		this.substate[i] = substate;
+		this.color[i] = color;
+		this.plane[i] = plane;
+		this.layer[i] = layer;
+		this.creationIndex[i] = creationIndex;
+		if(i > 0 && creationIndex < this.creationIndex[i - 1])
+			inCreationOrder = false;
+	}
+
+	public void add(RenderInstance ri) {
+		add(ri.x, ri.y, ri.substate, ri.color.getRGB() & 0xFFFFFF, ri.plane, ri.layer, ri.creationIndex);
+	}
+
+	private void grow() {
+		int capacity = Math.max(16, x.length * 2);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		substate = Arrays.copyOf(substate, capacity);
+		color = Arrays.copyOf(color, capacity);
+		plane = Arrays.copyOf(plane, capacity);
+		layer = Arrays.copyOf(layer, capacity);
+		creationIndex = Arrays.copyOf(creationIndex, capacity);
+		keys = new long[capacity];
+		order = new int[capacity];
+		scratch = new int[capacity];
+	}
+
+	/**
+	 * @return Index of the sprite that's i-th in order. Only good after sort().
+	 */
+	public int sorted(int i) {
+		return order[i];
+	}
+
+	/**
+	 * Compares the sprite at the index to a RenderInstance the same way RenderInstance.compareTo would.
+	 */
+	public int compareTo(int index, RenderInstance o) {
+		if(plane[index] != o.plane)
+			return plane[index] < o.plane ? -1 : 1;
+		if(layer[index] != o.layer) {
+			int c = Float.compare(layer[index], o.layer);
+			if(c != 0)
+				return c;
+		}
+		return Integer.compare(creationIndex[index], o.creationIndex);
+	}
+
+	public void sort() {
+		int n = size;
+		for(int i = 0; i < n; i++)
+			order[i] = i;
+		// Least significant first, and every pass keeps the order of the last one for ties, so doing creation index
+		// and then plane and layer together comes out ordered by all three.
+		if(!inCreationOrder) {
+			for(int i = 0; i < n; i++)
+				keys[i] = creationIndex[i] ^ 0x80000000L;
+			radixSort(4);
+		}
+		for(int i = 0; i < n; i++)
+			keys[i] = ((long)(plane[i] ^ 0x80000000) << 32) | (sortableBits(layer[i]) & 0xFFFFFFFFL);
+		radixSort(8);
+	}
+
+	// Float bits flipped around so they sort the same as unsigned ints as they do as floats. NaN comes out as one
+	// value above infinity, like Float.compare.
+	private static int sortableBits(float f) {
+		if(f == 0)
+			f = 0; // -0 is the same layer as 0
+		int bits = Float.floatToIntBits(f);
+		return bits ^ ((bits >> 31) | 0x80000000);
+	}
+
+	// Stable sort of order by the lowest bytes of keys, one byte a pass.
+	private void radixSort(int bytes) {
+		int n = size;
+		if(n < 2)
+			return;
+		int[] counts = this.counts;
+		Arrays.fill(counts, 0, bytes * 256, 0);
+		for(int i = 0; i < n; i++) {
+			long key = keys[i];
+			for(int b = 0; b < bytes; b++)
+				counts[(b << 8) | (int)((key >>> (b << 3)) & 0xFF)]++;
+		}
+		int[] from = order;
+		int[] to = scratch;
+		for(int b = 0; b < bytes; b++) {
+			int base = b << 8;
+			// Everything has the same byte here, nothing would move.
+			if(counts[base | (int)((keys[0] >>> (b << 3)) & 0xFF)] == n)
+				continue;
+			int sum = 0;
+			for(int d = 0; d < 256; d++) {
+				int c = counts[base | d];
+				counts[base | d] = sum;
+				sum += c;
+			}
+			int shift = b << 3;
+			for(int i = 0; i < n; i++) {
+				int index = from[i];
+				to[counts[base | (int)((keys[index] >>> shift) & 0xFF)]++] = index;
+			}
+			int[] swap = from;
+			from = to;
+			to = swap;
+		}
+		order = from;
+		scratch = to;
+	}
+}
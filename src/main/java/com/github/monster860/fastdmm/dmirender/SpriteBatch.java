@@ -0,0 +1,174 @@
+package com.github.monster860.fastdmm.dmirender;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Draws RenderInstances as quads out of vertex arrays instead of a glBegin/glEnd per sprite.
+ *
+ * Sprites are drawn in the order they're given and piled into one glDrawArrays until the texture changes, so the
+ * order comes out exactly the same as drawing them one by one, it's just a lot fewer calls. A sorted viewport has long
+ * runs of the same texture (floors, walls, cables) so most frames end up as a few hundred draws instead of tens of
+ * thousands of calls.
+ *
+ * The arrays are kept between frames and only ever grow. GL thread only.
+ */
+public class SpriteBatch {
+	// Toggled from the Options menu. Off draws every sprite on its own like it used to, for drivers that mess up.
+	public static boolean enabled = true;
+
+	private static final int VERTS_PER_QUAD = 4;
+
+	private float[] vertices;
+	private float[] texCoords;
+	private float[] colors;
+	private FloatBuffer vertexBuffer;
+	private FloatBuffer texCoordBuffer;
+	private FloatBuffer colorBuffer;
+
+	private int quads = 0;
+	private int texture = -1;
+	private float iconSize = 32;
+
+	// enabled as of begin(), so flipping it in the menu mid frame doesn't leave the client arrays on.
+	private boolean batching = true;
+
+	public SpriteBatch() {
+		this(4096);
+	}
+
+	public SpriteBatch(int capacity) {
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		vertices = new float[capacity * VERTS_PER_QUAD * 2];
+		texCoords = new float[capacity * VERTS_PER_QUAD * 2];
+		colors = new float[capacity * VERTS_PER_QUAD * 3];
+		vertexBuffer = BufferUtils.createFloatBuffer(vertices.length);
+		texCoordBuffer = BufferUtils.createFloatBuffer(texCoords.length);
+		colorBuffer = BufferUtils.createFloatBuffer(colors.length);
+	}
+
+	private int capacity() {
+		return vertices.length / (VERTS_PER_QUAD * 2);
+	}
+
+	/**
+	 * @param iconSize world.icon_size, sprites bigger than that stick out up and to the right like in BYOND.
+	 */
+	public void begin(int iconSize) {
+		this.iconSize = iconSize;
+		quads = 0;
+		texture = -1;
+		batching = enabled;
+		if(batching) {
+			glEnableClientState(GL_VERTEX_ARRAY);
+			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+			glEnableClientState(GL_COLOR_ARRAY);
+		}
+	}
+
+	public void draw(RenderInstance ri) {
+		draw(ri.x, ri.y, ri.substate, ri.color.getRGB());
+	}
+
+	public void draw(RenderQueue queue, int index) {
+		draw(queue.x[index], queue.y[index], queue.substate[index], queue.color[index]);
+	}
+
+	/**
+	 * @param color 0xRRGGBB, anything above that is ignored.
+	 */
+	public void draw(float x, float y, IconSubstate s, int color) {
+		int glID = s.dmi.glID;
+		float r = ((color >> 16) & 0xFF) / 255f;
+		float g = ((color >> 8) & 0xFF) / 255f;
+		float b = (color & 0xFF) / 255f;
+		float x1 = x - .5f;
+		float y1 = y - .5f;
+		float x2 = x1 + s.dmi.width / iconSize;
+		float y2 = y1 + s.dmi.height / iconSize;
+
+		if(!batching) {
+			glColor3f(r, g, b);
+			glBindTexture(GL_TEXTURE_2D, glID);
+			glBegin(GL_QUADS);
+			glTexCoord2f(s.x2, s.y1);
+			glVertex3f(x2, y2, 0);
+			glTexCoord2f(s.x1, s.y1);
+			glVertex3f(x1, y2, 0);
+			glTexCoord2f(s.x1, s.y2);
+			glVertex3f(x1, y1, 0);
+			glTexCoord2f(s.x2, s.y2);
+			glVertex3f(x2, y1, 0);
+			glEnd();
+			return;
+		}
+
+		if(glID != texture || quads == capacity()) {
+			flush();
+			if(glID != texture) {
+				glBindTexture(GL_TEXTURE_2D, glID);
+				texture = glID;
+			}
+		}
+
+		int v = quads * VERTS_PER_QUAD * 2;
+		vertices[v] = x2;     vertices[v + 1] = y2;
+		vertices[v + 2] = x1; vertices[v + 3] = y2;
+		vertices[v + 4] = x1; vertices[v + 5] = y1;
+		vertices[v + 6] = x2; vertices[v + 7] = y1;
+		texCoords[v] = s.x2;     texCoords[v + 1] = s.y1;
+		texCoords[v + 2] = s.x1; texCoords[v + 3] = s.y1;
+		texCoords[v + 4] = s.x1; texCoords[v + 5] = s.y2;
+		texCoords[v + 6] = s.x2; texCoords[v + 7] = s.y2;
+		int c = quads * VERTS_PER_QUAD * 3;
+		for(int i = 0; i < VERTS_PER_QUAD; i++, c += 3) {
+			colors[c] = r;
+			colors[c + 1] = g;
+			colors[c + 2] = b;
+		}
+		quads++;
+	}
+
+	/**
+	 * Draws whatever's been queued so far.
+	 */
+	public void flush() {
+		if(quads == 0)
+			return;
+		vertexBuffer.clear();
+		vertexBuffer.put(vertices, 0, quads * VERTS_PER_QUAD * 2).flip();
+		texCoordBuffer.clear();
+		texCoordBuffer.put(texCoords, 0, quads * VERTS_PER_QUAD * 2).flip();
+		colorBuffer.clear();
+		colorBuffer.put(colors, 0, quads * VERTS_PER_QUAD * 3).flip();
+		glVertexPointer(2, 0, vertexBuffer);
+		glTexCoordPointer(2, 0, texCoordBuffer);
+		glColorPointer(3, 0, colorBuffer);
+		glDrawArrays(GL_QUADS, 0, quads * VERTS_PER_QUAD);
+		quads = 0;
+	}
+
+	public void end() {
+		if(batching) {
+			flush();
+			glDisableClientState(GL_VERTEX_ARRAY);
+			glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+			glDisableClientState(GL_COLOR_ARRAY);
+		}
+	}
+
+	/**
+	 * Makes room for at least this many sprites before the next flush, so a big frame doesn't get split up. Only
+	 * call between flushes.
+	 */
+	public void ensureCapacity(int sprites) {
+		if(sprites > capacity() && quads == 0)
+			allocate(Math.max(sprites, capacity() * 2));
+	}
+}
@@ -0,0 +1,184 @@
+package com.github.monster860.fastdmm.dmirender;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL14;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Packs whole DMI sheets into a few big textures, so sprites from different icons can go in the same SpriteBatch draw
+ * instead of every DMI being its own texture.
+ *
+ * Sheets are put on shelves (rows as tall as the first sheet on them) with their edge pixels smeared out into a border
+ * around them, so neither filtering nor the first couple of mipmap levels pick up whatever's next to them. Pages stop
+ * at mipmap level 2, that's as small as the viewport zoom goes, anything smaller would bleed.
+ *
+ * There's only so many pages. When a sheet doesn't fit anywhere and there's no room for another page, the page that
+ * went the longest without being drawn from is cleared out and reused. The DMIs on it go back to having no texture
+ * and get packed again whenever they're next drawn. Sheets too big to share a page just get their own texture.
+ *
+ * GL thread only.
+ */
+public class TextureAtlas {
+	// Toggled from the Options menu. Only changes what happens to icons loaded after.
+	public static boolean enabled = true;
+
+	private static final int PAGE_SIZE = 2048;
+	private static final int PADDING = 4;
+	// 2048x2048 RGBA with mipmaps is ~21MB, so this is ~130MB of pages before old ones start getting reused.
+	private static final int MAX_PAGES = 6;
+
+	private final List<Page> pages = new ArrayList<>();
+	private int size = -1;
+	private int frame = 0;
+
+	/**
+	 * Call once a frame, before anything is drawn.
+	 */
+	public void nextFrame() {
+		frame++;
+	}
+
+	/**
+	 * Marks the DMI as used this frame, so the page it's on doesn't get reused from under it.
+	 */
+	public void touch(DMI dmi) {
+		dmi.lastUsedFrame = frame;
+	}
+
+	/**
+	 * Puts the DMI into a page and points its glID and UVs at it.
+	 * @return false if it's too big to go in a page, the caller gives it its own texture then.
+	 */
+	boolean add(DMI dmi) {
+		if(size < 0)
+			size = Math.min(PAGE_SIZE, glGetInteger(GL_MAX_TEXTURE_SIZE));
+		BufferedImage image = dmi.image;
+		int w = align(image.getWidth() + PADDING * 2);
+		int h = align(image.getHeight() + PADDING * 2);
+		// Anything taking up more than half a page would waste most of one.
+		if(w > size || h > size / 2)
+			return false;
+
+		touch(dmi);
+		for(Page page : pages) {
+			if(page.place(dmi, w, h))
+				return true;
+		}
+		Page page;
+		if(pages.size() < MAX_PAGES || (page = leastRecentlyUsed()) == null) {
+			page = new Page();
+			pages.add(page);
+		} else {
+			page.clear();
+		}
+		return page.place(dmi, w, h);
+	}
+
+	// Page that hasn't been drawn from for the longest, leaving out anything drawn from this frame or last since
+	// those sprites could already be queued up.
+	private Page leastRecentlyUsed() {
+		Page oldest = null;
+		int oldestFrame = frame - 1;
+		for(Page page : pages) {
+			int used = page.lastUsedFrame();
+			if(used < oldestFrame) {
+				oldest = page;
+				oldestFrame = used;
+			}
+		}
+		return oldest;
+	}
+
+	private static int align(int i) {
+		return (i + 3) & ~3;
+	}
+
+	private class Page {
+		final int glID;
+		final List<DMI> dmis = new ArrayList<>();
+		// Each shelf is {y, height, x of the free space}
+		final List<int[]> shelves = new ArrayList<>();
+		int nextShelfY = 0;
+
+		Page() {
+			glID = glGenTextures();
+			glBindTexture(GL_TEXTURE_2D, glID);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+			glTexParameteri(GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, 2);
+			glTexParameteri(GL_TEXTURE_2D, GL14.GL_GENERATE_MIPMAP, GL_TRUE);
+			// Starts out see-through, so empty space is just empty.
+			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, size, size, 0, GL_RGBA, GL_UNSIGNED_BYTE, BufferUtils.createByteBuffer(size * size * 4));
+		}
+
+		int lastUsedFrame() {
+			int used = Integer.MIN_VALUE;
+			for(DMI dmi : dmis)
+				used = Math.max(used, dmi.lastUsedFrame);
+			return used;
+		}
+
+		boolean place(DMI dmi, int w, int h) {
+			for(int[] shelf : shelves) {
+				if(h <= shelf[1] && shelf[2] + w <= size) {
+					put(dmi, shelf[2], shelf[0]);
+					shelf[2] += w;
+					return true;
+				}
+			}
+			if(nextShelfY + h > size)
+				return false;
+			shelves.add(new int[] {nextShelfY, h, w});
+			put(dmi, 0, nextShelfY);
+			nextShelfY += h;
+			return true;
+		}
+
+		private void put(DMI dmi, int x, int y) {
+			BufferedImage image = dmi.image;
+			int iw = image.getWidth();
+			int ih = image.getHeight();
+			int pw = iw + PADDING * 2;
+			int ph = ih + PADDING * 2;
+			int[] pixels = image.getRGB(0, 0, iw, ih, null, 0, iw);
+			ByteBuffer buffer = BufferUtils.createByteBuffer(pw * ph * 4);
+			for(int py = 0; py < ph; py++) {
+				int sy = Math.min(Math.max(py - PADDING, 0), ih - 1);
+				for(int px = 0; px < pw; px++) {
+					int sx = Math.min(Math.max(px - PADDING, 0), iw - 1);
+					int pixel = pixels[sy * iw + sx];
+					buffer.put((byte)((pixel >> 16) & 0xFF));
+					buffer.put((byte)((pixel >> 8) & 0xFF));
+					buffer.put((byte)(pixel & 0xFF));
+					buffer.put((byte)((pixel >> 24) & 0xFF));
+				}
+			}
+			buffer.flip();
+			glBindTexture(GL_TEXTURE_2D, glID);
+			glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, pw, ph, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+
+			dmi.glID = glID;
+			dmi.setUVs((x + PADDING) / (float)size, (y + PADDING) / (float)size, iw / (float)size, ih / (float)size);
+			dmis.add(dmi);
+		}
+
+		void clear() {
+			for(DMI dmi : dmis) {
+				dmi.glID = -1;
+				dmi.setUVs(0, 0, 1, 1);
+			}
+			dmis.clear();
+			shelves.clear();
+			nextShelfY = 0;
+		}
+	}
+}
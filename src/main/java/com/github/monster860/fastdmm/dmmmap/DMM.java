@@ -1,35 +1,30 @@
 package com.github.monster860.fastdmm.dmmmap;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.*;
-
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.github.monster860.fastdmm.FastDMM;
 import com.github.monster860.fastdmm.editing.DMMDiff;
+import com.github.monster860.fastdmm.objtree.ModifiedType;
 import com.github.monster860.fastdmm.objtree.ObjectTree;
 
-// DMM loader - Where you will get confused by all the regex.
+// DMM loader - The actual parsing lives in DMMReader now, so less regex to get confused by.
 
 public class DMM {
-	// Parser shit goes here.
-	boolean isCommenting = false;
-	int parenthesisDepth = 0;
-	int stringDepth = 0;
-	int stringExpDepth = 0;
-	int parenthesesDepth = 0;
-	int[] arrayDepth = new int[50];
-	
 	public FastDMM editor;
+	// Only used when there's no editor, see getModifiedTypes.
+	private final Map<String, ModifiedType> modifiedTypes = new ConcurrentHashMap<>();
+	
+	// Parse big tile dictionaries on the fork-join pool. Toggled from the Options menu.
+	public static boolean parallelLoading = true;
+	// Only fill in z-levels when they're looked at. Toggled from the Options menu.
+	public static boolean lazyLevels = true;
+	// Keep a binary copy of parsed maps in ~/.fastdmm/cache. Off by default, toggled from the Options menu.
+	public static boolean useMapCache = false;
 	
 	public int minX = 1;
 	public int minY = 1;
@@ -39,13 +34,16 @@ public class DMM {
 	public int maxZ = 1;
 	
 	public int keyLen = 0;
-	public BiMap<String, TileInstance> instances = HashBiMap.create();
-	public Map<Location, String> map = new HashMap<>();
-	public List<String> unusedKeys = new ArrayList<>();
+	public InstanceTable instances = new InstanceTable();
+	public TileGrid map = new TileGrid(instances);
+	public KeyAllocator keys = new KeyAllocator(0);
 	private Stack<DMMDiff> diffStack = new Stack<DMMDiff>();
 	
 	public ObjectTree objTree;
 	
+	// Still holds the file contents (or cache entry) while some z-levels haven't been loaded yet.
+	LevelSource levelSource;
+	
 	public File file;
 	boolean isTGM = false;
 	
@@ -68,129 +66,63 @@ public class DMM {
         relPath = pathRelative.toString();
 		
 		if(!file.exists()) {
-			
-			Set<String> unusedKeysSet = new TreeSet<>();
-			generateKeys(keyLen, "", unusedKeysSet);
-			unusedKeys = new ArrayList<>(unusedKeysSet);
-			
 			keyLen = 1;
-			
+			keys = new KeyAllocator(keyLen);
 			return;
 		}
-		BufferedReader br = new BufferedReader(new FileReader(file));
-		String line = null;
-		String runOn = "";
-		Set<String> unusedKeysSet = new HashSet<>();
-		
-		Map<String, String> substitutions = new TreeMap<>();
-		
-		while ((line = br.readLine()) != null) {
-			line = line.trim();
-			if(Pattern.matches("//MAP CONVERTED BY dmm2tgm.py THIS HEADER COMMENT PREVENTS RECONVERSION, DO NOT REMOVE", line))
-				isTGM = true;
-			if(Pattern.matches("\\((\\d*) ?, ?(\\d*) ?, ?(\\d*) ?\\) ?= ?\\{\"", line)) {
-				br.reset();
-				break;
-			}
-			br.mark(100);
-			line = stripComments(line);
-			line = runOn + line;
-			if(!line.trim().isEmpty()) {
-				if(line.endsWith("\\")) {
-					line = line.substring(0, line.length() - 1);
-					runOn = line;
-				} else if(parenthesisDepth > 0) {
-					runOn = line;
-				} else {
-					runOn = "";
-					Matcher m = Pattern.compile("\"([a-zA-Z]*)\" ?= ?\\((.+)\\)").matcher(line);
-					if(m.find()) {
-						TileInstance ti = TileInstance.fromString(m.group(2), objTree, this);
-						
-						// Handle cases where DM put in duplicate instances.
-						if(instances.inverse().containsKey(ti)) {
-							substitutions.put(m.group(1), instances.inverse().get(ti));
-							continue;
-						}
-						instances.put(m.group(1), TileInstance.fromString(m.group(2), objTree, this));
-						if(keyLen == 0) {
-							keyLen = m.group(1).length();
-							// Generate all the instance ID's
-							generateKeys(keyLen, "", unusedKeysSet);
-						}
-						unusedKeysSet.remove(m.group(1));
-					}
-				}
-			}
+		LevelSource levels = useMapCache ? MapCache.load(this, file) : null;
+		if(levels == null) {
+			DMMReader reader = new DMMReader(this);
+			reader.read(file);
+			if(useMapCache)
+				MapCache.store(this, file, reader);
+			levels = reader;
 		}
-        unusedKeys.addAll(unusedKeysSet);
-		
-		Map<Location, String> reverseMap = new HashMap<>();
-		
-		int partX = -1;
-		int partY = -1;
-		int partZ = -1;
-		int cursorX = 0;
-		int cursorY = 0;
-		
-		while((line = br.readLine()) != null) {
-			line = line.trim();
-			if(partX == -1) {
-				Matcher m = Pattern.compile("\\((\\d*) ?, ?(\\d*) ?, ?(\\d*) ?\\) ?= ?\\{\"").matcher(line);
-				if(m.find()) {
-					partX = Integer.parseInt(m.group(1));
-					partY = Integer.parseInt(m.group(2));
-					partZ = Integer.parseInt(m.group(3));
-					cursorX = 0;
-					cursorY = 0;
-				}
-				continue;
-			}
-			if(Pattern.matches("\"}", line)) {
-				partX = -1;
-				partY = -1;
-				partZ = -1;
-				continue;
-			}
-			for(int i = 0; i < line.length(); i += keyLen) {
-				Location loc = new Location(cursorX + partX, cursorY + partY, partZ) ;
-				String key = line.substring(i, i+keyLen);
-				if(substitutions.containsKey(key))
-					key = substitutions.get(key);
-				reverseMap.put(loc, key);
-				
-				if(loc.x > maxX) {
-					maxX = loc.x;
-				}
-				if(loc.y > maxY) {
-					maxY = loc.y;
-				}
-				if(loc.z > maxZ) {
-					maxZ = loc.z;
-				}
-				if(loc.x < minX) {
-					minX = loc.x;
-				}
-				if(loc.y < minY) {
-					minY = loc.y;
-				}
-				if(loc.z < minZ) {
-					minZ = loc.z;
-				}
-				
-				cursorX++;
-			}
-			cursorX = 0;
-			cursorY += 1;
-		}
-		
-		br.close();
-		
-		for(Map.Entry<Location, String> entry : reverseMap.entrySet()) {
-			putMap(new Location(entry.getKey().x, maxY+minY-entry.getKey().y, entry.getKey().z), entry.getValue(), false);
+		if(lazyLevels && levels.getUnloadedLevels().size() > 1) {
+			levelSource = levels;
+			loadLevel(Math.max(minZ, Math.min(maxZ, storedZ)));
+		} else {
+			for(int z : new ArrayList<>(levels.getUnloadedLevels()))
+				levels.loadLevel(z);
 		}
 	}
 	
+	/**
+	 * @return Where var-edited types from this map get interned: the editor's, or the map's own if it was opened
+	 *         without an editor (like the benchmarks do).
+	 */
+	public Map<String, ModifiedType> getModifiedTypes() {
+		return editor != null ? editor.modifiedTypes : modifiedTypes;
+	}
+	
+	public boolean isLevelLoaded(int z) {
+		return levelSource == null || levelSource.isLoaded(z);
+	}
+	
+	// Fills in a z-level that was left unloaded on open. Callers need to hold the editor lock like with any other map change.
+	public void loadLevel(int z) {
+		if(levelSource == null)
+			return;
+		levelSource.loadLevel(z);
+		if(levelSource.allLoaded())
+			levelSource = null;
+	}
+	
+	public void loadAllLevels() {
+		while(levelSource != null)
+			loadLevel(levelSource.getUnloadedLevels().iterator().next());
+	}
+	
+	// Loader version of putMap: goes by instance ID and doesn't record a diff.
+	void loadTile(int x, int y, int z, int id) {
+		TileInstance old = instances.get(map.setId(x, y, z, id));
+		if(old != null)
+			old.refCount--;
+		TileInstance ti = instances.get(id);
+		if(ti != null)
+			ti.refCount++;
+	}
+	
 	public void putMap(Location l, String key) {
 		putMap(l, key, true);
 	}
@@ -214,52 +146,13 @@ public class DMM {
 		}
 	}
 	
-	public void save() throws FileNotFoundException {
-		if(!file.exists())
-			try {
-				file.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		PrintStream ps = new PrintStream(file);
-		if(isTGM)
-			ps.println("//MAP CONVERTED BY dmm2tgm.py THIS HEADER COMMENT PREVENTS RECONVERSION, DO NOT REMOVE "); // Space at the end is intentional
-		List<String> instancesList = new ArrayList<>();
-		for(Map.Entry<String, TileInstance> ent : instances.entrySet()) {
-			if(ent.getValue().refCount <= 0)
-				continue;
-			instancesList.add("\"" + ent.getKey() + "\" = (" + (isTGM ? ent.getValue().toStringTGM() : ent.getValue().toString()) + ")");
-		}
-		Collections.sort(instancesList, (a, b) -> reverseCase(a).compareTo(reverseCase(b)));
-        instancesList.forEach(ps::println);
-		ps.println();
-		
-		if(!isTGM) {
-			// Save normally
-			for(int z = minZ; z <= maxZ; z++) {
-				ps.println("(1,1," + z + ") = {\"");
-				for(int y = maxY; y >= minY; y--) {
-					for(int x = minX; x <= maxX; x++) {
-						ps.print(map.get(new Location(x, y, z)));
-					}
-					ps.println();
-				}
-				ps.println("\"}");
-				ps.println();
-			}
-		} else {
-			// Save using TGM
-			for(int z = minZ; z <= maxZ; z++) {
-				for(int x = minX; x <= maxX; x++) {
-					ps.println("(" + x + ",1," + z + ") = {\"");
-					for(int y = maxY; y >= minY; y--) {
-						ps.println(map.get(new Location(x, y, z)));
-					}
-					ps.println("\"}");
-				}
-			}
-		}
-		ps.close();
+	public void save() throws IOException {
+		snapshotForSave().write(null);
+	}
+	
+	// Grabs what's needed to save the map as it is right now. The returned writer can be run on any thread.
+	public DMMWriter snapshotForSave() {
+		return new DMMWriter(this);
 	}
 	
 	public static String reverseCase(String text)
@@ -284,16 +177,18 @@ public class DMM {
 	
 	public String getKeyForInstance(TileInstance ti) {
 		if (ti == null) return null;
-		if(instances.inverse().containsKey(ti)) {
-			return instances.inverse().get(ti);
+		String existing = instances.keyOf(ti);
+		if(existing != null) {
+			return existing;
 		}
-		if(unusedKeys.size() == 0)
+		if(keys.freeCount() == 0)
+			compactInstances();
+		if(keys.freeCount() == 0)
 			expandKeys();
-		if(unusedKeys.size() > 0) {
-			// Picking a key randomly reduces chances of merge conflicts, especially if this map editor is used a lot over time.
-			// And we all know how much of a pain *those* are.
-			String key = unusedKeys.get(rand.nextInt(unusedKeys.size()));
-			unusedKeys.remove(key);
+		// Picking a key randomly reduces chances of merge conflicts, especially if this map editor is used a lot over time.
+		// And we all know how much of a pain *those* are.
+		String key = keys.allocate(rand);
+		if(key != null) {
 			// Assign the instance
 			diffStack.push(new DMMDiff.InstanceDiff(this, key, ti));
 			instances.put(key, ti);
@@ -303,45 +198,62 @@ public class DMM {
 		return null;
 	}
 	
-	public void generateKeys(int length, String prefix, Set<String> set) {
-		if(length <= 0) {
-			set.add(prefix);
-			return;
-		}
-		for(char c = 'a'; c <= 'z'; c++) {
-			generateKeys(length - 1, prefix + c, set);
-		}
-		for(char c = 'A'; c <= 'Z'; c++) {
-			generateKeys(length - 1, prefix + c, set);
+	/**
+	 * Throws away instances that no tile uses any more and gives their keys and ID's back, so a long editing session
+	 * doesn't eat the whole key space and force expandKeys, or grow the instance table. Instances that something in
+	 * the undo or redo history (or a diff that hasn't been popped yet) could bring back by key are kept, as are the
+	 * file's own instances while some z-levels are still unloaded. Instances whose key was already taken away by
+	 * undoing their creation go too: redoing it puts the instance back under a new ID. Callers need to hold the
+	 * editor lock.
+	 *
+	 * @return How many instances were thrown away.
+	 */
+	public int compactInstances() {
+		Set<String> pinned = new HashSet<>();
+		for(DMMDiff diff : diffStack)
+			diff.collectKeys(this, pinned);
+		if(editor != null)
+			editor.collectUndoKeys(this, pinned);
+		BitSet fileInstances = new BitSet();
+		if(levelSource != null)
+			levelSource.collectInstances(fileInstances);
+		
+		int removed = 0;
+		for(int id = 1; id < instances.idLimit(); id++) {
+			TileInstance ti = instances.held(id);
+			if(ti == null || ti.refCount > 0 || fileInstances.get(id))
+				continue;
+			String key = instances.getKey(id);
+			if(key != null && pinned.contains(key))
+				continue;
+			instances.discard(id);
+			if(key != null)
+				keys.release(key);
+			removed++;
 		}
+		return removed;
 	}
 	
 	// All warranties on merge conflicts and diff size are now void if you call this method.
 	public void expandKeys() {
 		keyLen++;
-		Set<String> unusedKeysSet = new TreeSet<>();
-		generateKeys(keyLen, "", unusedKeysSet);
-		ArrayList<String> newUnusedKeys = new ArrayList<>(unusedKeysSet);
-		BiMap<String, TileInstance> newInstances = HashBiMap.create();
-		Map<Location, String> newMap = new HashMap<>();
-		Map<String, String> substitutions = new HashMap<>();
-		for(Map.Entry<String, TileInstance> instance : instances.entrySet()) {
-			String newKey = newUnusedKeys.get(rand.nextInt(newUnusedKeys.size()));
-			newUnusedKeys.remove(newKey);
-			substitutions.put(instance.getKey(), newKey);
-			newInstances.put(newKey, instance.getValue());
-		}
-		for(Map.Entry<Location, String> mapInst : map.entrySet()) {
-			newMap.put(mapInst.getKey(), substitutions.get(mapInst.getValue()));
+		KeyAllocator newAllocator = new KeyAllocator(keyLen);
+		// The map holds instance ID's, so only the keys need to change.
+		String[] oldKeys = instances.getKeys();
+		String[] newKeys = new String[oldKeys.length];
+		for(int id = 1; id < oldKeys.length; id++) {
+			if(oldKeys[id] == null)
+				continue;
+			newKeys[id] = newAllocator.allocate(rand);
 		}
 		
-		diffStack.push(new DMMDiff.ExpandKeysDiff(this, map, newMap, instances, newInstances, unusedKeys, newUnusedKeys, keyLen-1, keyLen));
-		instances = newInstances;
-		map = newMap;
-		unusedKeys = newUnusedKeys;
+		diffStack.push(new DMMDiff.ExpandKeysDiff(this, oldKeys, newKeys, keys, newAllocator, keyLen-1, keyLen));
+		instances.setKeys(newKeys);
+		keys = newAllocator;
 	}
 	
 	public void setSize(int nMinX, int nMinY, int nMinZ, int nMaxX, int nMaxY, int nMaxZ) {
+		loadAllLevels();
 		minX = nMinX;
 		minY = nMinY;
 		minZ = nMinZ;
@@ -380,58 +292,6 @@ public class DMM {
 		}
 	}
 	
-	public String stripComments(String s)
-	{
-		StringBuilder o = new StringBuilder();
-		for(int i = 0; i < s.length(); i++) {
-			char pC = ' ';
-			if(i - 1 >= 0)
-				pC = s.charAt(i - 1);
-			char ppC = ' ';
-			if(i - 2 >= 0)
-				ppC = s.charAt(i - 2);
-			char c = s.charAt(i);
-			char nC = ' ';
-			if(i + 1 < s.length())
-				nC = s.charAt(i + 1);
-			if(!isCommenting) {
-				if(c == '/' && nC == '/' && stringDepth == 0)
-					break;
-				if(c == '/' && nC == '*' && stringDepth == 0) {
-					isCommenting = true;
-					continue;
-				}
-				if(c == '"' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth) {
-					stringDepth--;
-				} else if(c == '"' && stringDepth == stringExpDepth) {
-					stringDepth++;
-				}
-				if(c == '[' && stringDepth == stringExpDepth)
-					arrayDepth[stringExpDepth]++;
-				else if(c == '[' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth)
-					stringExpDepth++;
-				
-				if(c == ']' && arrayDepth[stringExpDepth] != 0)
-					arrayDepth[stringExpDepth]--;
-				else if(c == ']' && stringDepth > 0 && stringDepth == stringExpDepth)
-					stringExpDepth--;
-				if(c == '(' && stringDepth == stringExpDepth)
-					parenthesisDepth++;
-				if(c == ')' && stringDepth == stringExpDepth)
-					parenthesisDepth--;
-				o.append(c);
-			}
-			else {
-				if(c == '*' && nC == '/') {
-					isCommenting = false;
-					i++;
-				}
-			}
-				
-		}
-		return o.toString();
-	}
-	
 	public DMMDiff popDiffs(){
 		if(diffStack.empty()){
 			return null;
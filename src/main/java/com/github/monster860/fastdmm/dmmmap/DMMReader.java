@@ -0,0 +1,557 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.monster860.fastdmm.objtree.ModifiedType;
+import com.github.monster860.fastdmm.objtree.ObjInstance;
+
+/**
+ * Single-pass reader for classic and TGM map files.
+ *
+ * The whole file is decoded into one char buffer and walked with an index, so there's no per-line regex,
+ * no comment-stripping copy and no substring per map cell. The result is the same instances/map state the
+ * old line based loader produced.
+ *
+ * The dictionary is always parsed right away. The map blocks are only indexed (where they are and how big), and
+ * each z-level gets filled in when loadLevel is called for it. When levels are loaded lazily the DMM keeps the
+ * reader around until every level has been loaded.
+ */
+class DMMReader extends LevelSource {
+	static final String TGM_HEADER = "//MAP CONVERTED BY dmm2tgm.py THIS HEADER COMMENT PREVENTS RECONVERSION, DO NOT REMOVE";
+
+	// Below this many dictionary entries it isn't worth waking up the pool.
+	static final int PARALLEL_THRESHOLD = 512;
+	static final int PARALLEL_CHUNK = 128;
+
+	private char[] buf;
+	private int pos;
+	private int end;
+
+	// Dictionary keys and the instance ID they resolve to (duplicates point at the first identical instance)
+	private int[] keyCodes = new int[256];
+	private int[] keyTargets = new int[256];
+	private int keyCount = 0;
+	// Index into the above by key code, for key lengths short enough that it fits (3 letters is 140608 entries).
+	// Saves a binary search per map cell.
+	private int[] keyIndex;
+	private static final int KEY_INDEX_LIMIT = 52 * 52 * 52;
+
+	// Map blocks: header coordinates and where the first row starts.
+	private int[] blockX = new int[16];
+	private int[] blockY = new int[16];
+	private int[] blockZ = new int[16];
+	private int[] blockStart = new int[16];
+	private int blockCount = 0;
+
+	// Fixed at load time; expandKeys changes dmm.keyLen but not what's in the file.
+	private int fileKeyLen;
+	private int flip;
+
+	// All of the above is set up by read() and never changes after.
+
+	DMMReader(DMM dmm) {
+		super(dmm);
+	}
+
+	void read(File file) throws IOException {
+		// Reading the bytes in one go instead of mapping the file; a mapped file can't be written over on Windows
+		// until the buffer gets collected, and we save back to the same file.
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		CharBuffer chars = Charset.defaultCharset().newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.decode(bytes);
+		buf = chars.array();
+		pos = chars.arrayOffset() + chars.position();
+		end = chars.arrayOffset() + chars.limit();
+
+		readDictionary();
+		sortKeys();
+		fileKeyLen = dmm.keyLen;
+		indexGrid();
+		flip = dmm.maxY + dmm.minY;
+		dmm.map.reserve(dmm.minX, dmm.minY, dmm.minZ, dmm.maxX, dmm.maxY, dmm.maxZ);
+	}
+
+	// Tiles in levels that haven't been loaded can only point at instances from the file's dictionary.
+	@Override
+	void collectInstances(BitSet ids) {
+		for(int i = 0; i < keyCount; i++)
+			ids.set(keyTargets[i]);
+	}
+
+	// In the order the cells are in the file. Cells whose key isn't in the dictionary are skipped.
+	@Override
+	void forEachCell(int z, CellConsumer consumer) {
+		int keyLen = fileKeyLen;
+		for(int b = 0; b < blockCount; b++) {
+			if(blockZ[b] != z)
+				continue;
+			int i = blockStart[b];
+			int cursorY = 0;
+			while(i < end) {
+				int lineEnd = lineEnd(i);
+				int lineStart = skipSpaces(i, lineEnd);
+				int trimmedEnd = trimEnd(lineStart, lineEnd);
+				i = nextLine(lineEnd);
+				if(isBlockEnd(lineStart, trimmedEnd))
+					break;
+				int cursorX = 0;
+				for(int c = lineStart; keyLen > 0 && c + keyLen <= trimmedEnd; c += keyLen) {
+					int keyIndex = findKey(c, keyLen);
+					if(keyIndex >= 0)
+						consumer.accept(cursorX + blockX[b], flip - (cursorY + blockY[b]), keyTargets[keyIndex]);
+					cursorX++;
+				}
+				cursorY++;
+			}
+		}
+	}
+
+	private void readDictionary() {
+		// First find where every entry starts and ends, then parse them. The parsing is the expensive part and
+		// every entry can be parsed on its own, so big dictionaries get spread over the fork-join pool.
+		List<String> keys = new ArrayList<>();
+		List<Integer> starts = new ArrayList<>();
+		while(pos < end) {
+			char c = buf[pos];
+			if(c == '/' && pos + 1 < end && buf[pos + 1] == '/') {
+				int lineEnd = lineEnd(pos);
+				if(TGM_HEADER.contentEquals(CharBuffer.wrap(buf, pos, lineEnd - pos).toString().trim()))
+					dmm.isTGM = true;
+				pos = lineEnd;
+			} else if(c == '/' && pos + 1 < end && buf[pos + 1] == '*') {
+				skipBlockComment();
+			} else if(c == '"') {
+				findEntry(keys, starts);
+			} else if(c == '(') {
+				// First map block. The dictionary is done.
+				break;
+			} else {
+				pos++;
+			}
+		}
+
+		TileInstance[] parsed = new TileInstance[keys.size()];
+		if(DMM.parallelLoading && parsed.length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+			ForkJoinPool.commonPool().invoke(new ParseTask(starts, parsed, 0, parsed.length));
+		} else {
+			for(int i = 0; i < parsed.length; i++)
+				parsed[i] = parseEntry(starts.get(i));
+		}
+
+		// Merge in file order so duplicates resolve to the same key every time.
+		Map<TileInstance, String> seen = new HashMap<>();
+		for(int i = 0; i < parsed.length; i++) {
+			String key = keys.get(i);
+			TileInstance ti = parsed[i];
+			// Handle cases where DM put in duplicate instances.
+			String existing = seen.get(ti);
+			if(existing != null) {
+				addKey(key, dmm.instances.getId(existing));
+				continue;
+			}
+			seen.put(ti, key);
+			dmm.instances.put(key, ti);
+			addKey(key, dmm.instances.getId(key));
+			if(dmm.keyLen == 0) {
+				dmm.keyLen = key.length();
+				dmm.keys = new KeyAllocator(dmm.keyLen);
+			}
+			dmm.keys.markUsed(key);
+		}
+	}
+
+	// Reads the "key" = ( part of an entry and skips over the rest of it.
+	private void findEntry(List<String> keys, List<Integer> starts) {
+		int keyStart = ++pos;
+		while(pos < end && isLetter(buf[pos]))
+			pos++;
+		int keyEnd = pos;
+		if(pos >= end || buf[pos] != '"') {
+			pos = lineEnd(pos);
+			return;
+		}
+		pos++;
+		skipSpaces();
+		if(pos >= end || buf[pos] != '=') {
+			pos = lineEnd(pos);
+			return;
+		}
+		pos++;
+		skipSpaces();
+		if(pos >= end || buf[pos] != '(') {
+			pos = lineEnd(pos);
+			return;
+		}
+		pos++;
+		keys.add(new String(buf, keyStart, keyEnd - keyStart));
+		starts.add(pos);
+
+		// The entry ends at the first ) outside of a var list. Parentheses inside var values don't count.
+		int braceDepth = 0;
+		while(pos < end) {
+			char c = buf[pos];
+			if(c == '"') {
+				pos = skipString(pos);
+				continue;
+			}
+			pos++;
+			if(c == '{')
+				braceDepth++;
+			else if(c == '}')
+				braceDepth--;
+			else if(c == ')' && braceDepth <= 0)
+				return;
+		}
+	}
+
+	private TileInstance parseEntry(int start) {
+		List<ObjInstance> objs = new ArrayList<>();
+		new EntryParser(start).readObjects(objs);
+		return new TileInstance(objs, dmm);
+	}
+
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Integer> starts;
+		private final TileInstance[] out;
+		private final int from;
+		private final int to;
+
+		ParseTask(List<Integer> starts, TileInstance[] out, int from, int to) {
+			this.starts = starts;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= PARALLEL_CHUNK) {
+				for(int i = from; i < to; i++)
+					out[i] = parseEntry(starts.get(i));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ParseTask(starts, out, from, mid), new ParseTask(starts, out, mid, to));
+		}
+	}
+
+	// Parses the object list of one entry. Has its own cursor so several can run at once.
+	private class EntryParser {
+		private int pos;
+
+		EntryParser(int pos) {
+			this.pos = pos;
+		}
+
+		// Reads "/path{a = b; c = d},/path2" up to and including the closing parenthesis.
+		void readObjects(List<ObjInstance> objs) {
+			while(pos < end) {
+				skipWhitespace();
+				if(pos >= end)
+					return;
+				char c = buf[pos];
+				if(c == ')') {
+					pos++;
+					return;
+				}
+				if(c == ',') {
+					pos++;
+					continue;
+				}
+				if(!isPathChar(c)) {
+					pos++;
+					continue;
+				}
+				int pathStart = pos;
+				while(pos < end && isPathChar(buf[pos]))
+					pos++;
+				String path = new String(buf, pathStart, pos - pathStart);
+				skipWhitespace();
+				if(pos < end && buf[pos] == '{') {
+					pos++;
+					Map<String, String> vars = new LinkedHashMap<>();
+					readVars(vars);
+					objs.add(ModifiedType.fromParts(path, vars, dmm.objTree, dmm));
+				} else {
+					objs.add(dmm.objTree.get(path));
+				}
+			}
+		}
+
+		// Reads "a = b; c = "d"" up to and including the closing brace.
+		void readVars(Map<String, String> vars) {
+			while(pos < end) {
+				skipWhitespace();
+				if(pos >= end)
+					return;
+				char c = buf[pos];
+				if(c == '}') {
+					pos++;
+					return;
+				}
+				if(c == ';' || !isWordChar(c)) {
+					pos++;
+					continue;
+				}
+				int nameStart = pos;
+				while(pos < end && isWordChar(buf[pos]))
+					pos++;
+				int nameEnd = pos;
+				skipWhitespace();
+				if(pos >= end || buf[pos] != '=')
+					continue;
+				pos++;
+				skipWhitespace();
+				int valStart = pos;
+				int braceDepth = 0;
+				while(pos < end) {
+					c = buf[pos];
+					if(c == ';' || (c == '}' && braceDepth == 0))
+						break;
+					if(c == '{')
+						braceDepth++;
+					else if(c == '}')
+						braceDepth--;
+					if(c == '"') {
+						pos = skipString(pos);
+						continue;
+					}
+					pos++;
+				}
+				int valEnd = pos;
+				while(valEnd > valStart && Character.isWhitespace(buf[valEnd - 1]))
+					valEnd--;
+				vars.put(new String(buf, nameStart, nameEnd - nameStart), new String(buf, valStart, valEnd - valStart));
+				if(pos < end && buf[pos] == ';')
+					pos++;
+			}
+		}
+
+		private void skipWhitespace() {
+			while(pos < end && Character.isWhitespace(buf[pos]))
+				pos++;
+		}
+	}
+
+	// Finds every map block and works out the map bounds, without looking up any keys.
+	private void indexGrid() {
+		int keyLen = dmm.keyLen;
+		int[] header = new int[3];
+		while(pos < end) {
+			// Block header: (x,y,z) = {"
+			int lineEnd = lineEnd(pos);
+			int start = skipSpaces(pos, lineEnd);
+			pos = nextLine(lineEnd);
+			if(start >= lineEnd || buf[start] != '(' || !readBlockHeader(start, lineEnd, header))
+				continue;
+			addBlock(header[0], header[1], header[2], pos);
+			addLevel(header[2]);
+			int cursorY = 0;
+			while(pos < end) {
+				lineEnd = lineEnd(pos);
+				int lineStart = skipSpaces(pos, lineEnd);
+				int trimmedEnd = trimEnd(lineStart, lineEnd);
+				pos = nextLine(lineEnd);
+				if(isBlockEnd(lineStart, trimmedEnd))
+					break;
+				int cells = keyLen > 0 ? (trimmedEnd - lineStart) / keyLen : 0;
+				if(cells > 0) {
+					updateBounds(header[0], cursorY + header[1], header[2]);
+					updateBounds(header[0] + cells - 1, cursorY + header[1], header[2]);
+				}
+				cursorY++;
+			}
+		}
+	}
+
+	private void addBlock(int x, int y, int z, int start) {
+		if(blockCount == blockStart.length) {
+			blockX = Arrays.copyOf(blockX, blockCount * 2);
+			blockY = Arrays.copyOf(blockY, blockCount * 2);
+			blockZ = Arrays.copyOf(blockZ, blockCount * 2);
+			blockStart = Arrays.copyOf(blockStart, blockCount * 2);
+		}
+		blockX[blockCount] = x;
+		blockY[blockCount] = y;
+		blockZ[blockCount] = z;
+		blockStart[blockCount] = start;
+		blockCount++;
+	}
+
+	private int trimEnd(int lineStart, int lineEnd) {
+		while(lineEnd > lineStart && buf[lineEnd - 1] <= ' ')
+			lineEnd--;
+		return lineEnd;
+	}
+
+	private boolean isBlockEnd(int lineStart, int trimmedEnd) {
+		return trimmedEnd - lineStart == 2 && buf[lineStart] == '"' && buf[lineStart + 1] == '}';
+	}
+
+	private boolean readBlockHeader(int i, int lineEnd, int[] out) {
+		i++;
+		for(int n = 0; n < 3; n++) {
+			i = skipSpaces(i, lineEnd);
+			int value = 0;
+			while(i < lineEnd && buf[i] >= '0' && buf[i] <= '9') {
+				value = value * 10 + (buf[i] - '0');
+				i++;
+			}
+			out[n] = value;
+			i = skipSpaces(i, lineEnd);
+			char expected = n < 2 ? ',' : ')';
+			if(i >= lineEnd || buf[i] != expected)
+				return false;
+			i++;
+		}
+		i = skipSpaces(i, lineEnd);
+		if(i >= lineEnd || buf[i] != '=')
+			return false;
+		i = skipSpaces(i + 1, lineEnd);
+		return i + 1 < lineEnd && buf[i] == '{' && buf[i + 1] == '"';
+	}
+
+	private void updateBounds(int x, int y, int z) {
+		if(x > dmm.maxX)
+			dmm.maxX = x;
+		if(y > dmm.maxY)
+			dmm.maxY = y;
+		if(z > dmm.maxZ)
+			dmm.maxZ = z;
+		if(x < dmm.minX)
+			dmm.minX = x;
+		if(y < dmm.minY)
+			dmm.minY = y;
+		if(z < dmm.minZ)
+			dmm.minZ = z;
+	}
+
+	// Key table. Keys are turned into their base 52 number so grid cells can be looked up without a substring.
+
+	private void addKey(String key, int target) {
+		int code = KeyAllocator.keyCode(key);
+		if(code < 0)
+			return;
+		if(keyCount == keyCodes.length) {
+			keyCodes = Arrays.copyOf(keyCodes, keyCount * 2);
+			keyTargets = Arrays.copyOf(keyTargets, keyCount * 2);
+		}
+		keyCodes[keyCount] = code;
+		keyTargets[keyCount] = target;
+		keyCount++;
+	}
+
+	private void sortKeys() {
+		Integer[] order = new Integer[keyCount];
+		for(int i = 0; i < keyCount; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(keyCodes[a], keyCodes[b]));
+		int[] sortedCodes = new int[keyCount];
+		int[] sortedTargets = new int[keyCount];
+		for(int i = 0; i < keyCount; i++) {
+			sortedCodes[i] = keyCodes[order[i]];
+			sortedTargets[i] = keyTargets[order[i]];
+		}
+		keyCodes = sortedCodes;
+		keyTargets = sortedTargets;
+
+		int space = 1;
+		for(int i = 0; i < dmm.keyLen && space <= KEY_INDEX_LIMIT; i++)
+			space *= 52;
+		if(dmm.keyLen > 0 && space <= KEY_INDEX_LIMIT) {
+			keyIndex = new int[space];
+			Arrays.fill(keyIndex, -1);
+			for(int i = 0; i < keyCount; i++) {
+				if(keyCodes[i] < space)
+					keyIndex[keyCodes[i]] = i;
+			}
+		}
+	}
+
+	private int findKey(int start, int len) {
+		int code = 0;
+		for(int i = start; i < start + len; i++) {
+			int digit = KeyAllocator.keyDigit(buf[i]);
+			if(digit < 0)
+				return -1;
+			code = code * 52 + digit;
+		}
+		if(keyIndex != null)
+			return keyIndex[code];
+		int index = Arrays.binarySearch(keyCodes, 0, keyCount, code);
+		return index >= 0 ? index : -1;
+	}
+
+	// Scanning helpers
+
+	private int skipString(int i) {
+		i++;
+		while(i < end) {
+			char c = buf[i];
+			if(c == '\\') {
+				i += 2;
+				continue;
+			}
+			i++;
+			if(c == '"')
+				return i;
+		}
+		return end;
+	}
+
+	private void skipBlockComment() {
+		pos += 2;
+		while(pos + 1 < end && !(buf[pos] == '*' && buf[pos + 1] == '/'))
+			pos++;
+		pos = Math.min(end, pos + 2);
+	}
+
+	private void skipSpaces() {
+		pos = skipSpaces(pos, end);
+	}
+
+	private int skipSpaces(int i, int limit) {
+		while(i < limit && (buf[i] == ' ' || buf[i] == '\t'))
+			i++;
+		return i;
+	}
+
+	private int lineEnd(int i) {
+		while(i < end && buf[i] != '\n' && buf[i] != '\r')
+			i++;
+		return i;
+	}
+
+	private int nextLine(int lineEnd) {
+		if(lineEnd < end && buf[lineEnd] == '\r')
+			lineEnd++;
+		if(lineEnd < end && buf[lineEnd] == '\n')
+			lineEnd++;
+		return lineEnd;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isWordChar(char c) {
+		return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private static boolean isPathChar(char c) {
+		return isWordChar(c) || c == '/';
+	}
+}
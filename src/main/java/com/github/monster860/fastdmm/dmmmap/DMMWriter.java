@@ -0,0 +1,259 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes a map out in the classic or TGM format.
+ *
+ * The output is byte for byte what the old PrintStream based save produced, it's just written through one big
+ * buffer straight from the grid's instance ID's.
+ *
+ * Creating the writer takes a snapshot of the map (the bounds, a copy of the grid, the keys and instances), which
+ * is cheap. After that write() never reads the DMM, so it can run on another thread while editing carries on. The
+ * one thing it shares with the editor is the LevelSource holding the levels that weren't loaded yet, and of that it
+ * only uses forEachCell, which reads what the source was set up with and never changes after. The grid copy shares
+ * the DMM's instance table, but only its instance ID's get read.
+ *
+ * Z-levels that were never loaded are streamed straight from the original file contents (or the cache entry the
+ * map was opened from) while writing, so saving doesn't load them into the map or build a grid for them. Only a
+ * level that isn't laid out the way it gets written (say, split over several blocks by hand) is read into a grid
+ * first.
+ */
+public class DMMWriter {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String NL = System.lineSeparator();
+
+	private final File file;
+	private final boolean isTGM;
+	private final int minX, minY, minZ, maxX, maxY, maxZ;
+	private final TileGrid map;
+	private final String[] keys;
+	private final TileInstance[] all;
+	private final TileInstance[] used;
+	private final LevelSource levelSource;
+	private final Set<Integer> unloadedLevels;
+	// Unloaded levels that are laid out in the file in the order they get written, so they can be streamed.
+	private final Set<Integer> streamedLevels = new HashSet<>();
+	private final Map<Integer, int[]> decodedLevels = new HashMap<>();
+
+	DMMWriter(DMM dmm) {
+		file = dmm.file;
+		isTGM = dmm.isTGM;
+		minX = dmm.minX;
+		minY = dmm.minY;
+		minZ = dmm.minZ;
+		maxX = dmm.maxX;
+		maxY = dmm.maxY;
+		maxZ = dmm.maxZ;
+		map = dmm.map.copy();
+		// Key of every instance ID, so the grid loops don't go through the instance table for every tile.
+		keys = new String[dmm.instances.idLimit()];
+		all = new TileInstance[keys.length];
+		used = new TileInstance[keys.length];
+		for(int id = 1; id < keys.length; id++) {
+			keys[id] = dmm.instances.getKey(id);
+			TileInstance ti = dmm.instances.get(id);
+			all[id] = ti;
+			if(ti != null && ti.refCount > 0)
+				used[id] = ti;
+		}
+		levelSource = dmm.levelSource;
+		unloadedLevels = levelSource != null ? new TreeSet<>(levelSource.getUnloadedLevels()) : Collections.emptySet();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes the snapshot to the map's file. The file is written under a temporary name next to it and moved over
+	 * the real one at the end, so a crash halfway through never leaves a broken map behind.
+	 *
+	 * @param progress Gets told the percentage done as z-levels get written. Can be null.
+	 */
+	public void write(IntConsumer progress) throws IOException {
+		// Not File.createTempFile, that makes the file owner-only and the map would end up that way after the move.
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		// Unloaded levels only count towards the dictionary once they've been read, so go through them first.
+		for(int z : unloadedLevels) {
+			OrderCheck check = new OrderCheck();
+			levelSource.forEachCell(z, check);
+			if(check.matches())
+				streamedLevels.add(z);
+			else
+				decodedLevels.put(z, levelSource.decodeLevel(z, minX, minY, maxX, maxY));
+		}
+		try {
+			try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), Charset.defaultCharset()), BUFFER_SIZE)) {
+				if(isTGM) {
+					out.write(DMMReader.TGM_HEADER);
+					out.write(' '); // Space at the end is intentional
+					out.write(NL);
+				}
+				writeDictionary(out);
+				out.write(NL);
+				if(!isTGM)
+					writeClassicGrid(out, progress);
+				else
+					writeTGMGrid(out, progress);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private void writeDictionary(Writer out) throws IOException {
+		List<String[]> entries = new ArrayList<>();
+		for(int id = 1; id < keys.length; id++) {
+			TileInstance ti = used[id];
+			if(ti == null)
+				continue;
+			// Sorting whole lines by reverseCase only ever got decided inside the quoted key, since keys are unique.
+			// So the sort key can be worked out once per entry instead of twice per comparison.
+			entries.add(new String[] {DMM.reverseCase(keys[id]) + '"', keys[id], isTGM ? ti.toStringTGM() : ti.toString()});
+		}
+		entries.sort((a, b) -> a[0].compareTo(b[0]));
+		for(String[] entry : entries) {
+			out.write('"');
+			out.write(entry[1]);
+			out.write("\" = (");
+			out.write(entry[2]);
+			out.write(')');
+			out.write(NL);
+		}
+	}
+
+	private void writeClassicGrid(Writer out, IntConsumer progress) throws IOException {
+		for(int z = minZ; z <= maxZ; z++) {
+			out.write("(1,1," + z + ") = {\"");
+			out.write(NL);
+			writeLevel(z, (x, y, id) -> {
+				writeKey(out, id);
+				if(x == maxX)
+					out.write(NL);
+			});
+			out.write("\"}");
+			out.write(NL);
+			out.write(NL);
+			reportProgress(progress, z);
+		}
+	}
+
+	private void writeTGMGrid(Writer out, IntConsumer progress) throws IOException {
+		for(int z = minZ; z <= maxZ; z++) {
+			int level = z;
+			writeLevel(z, (x, y, id) -> {
+				if(y == maxY) {
+					out.write("(" + x + ",1," + level + ") = {\"");
+					out.write(NL);
+				}
+				writeKey(out, id);
+				out.write(NL);
+				if(y == minY) {
+					out.write("\"}");
+					out.write(NL);
+				}
+			});
+			reportProgress(progress, z);
+		}
+	}
+
+	private interface CellWriter {
+		void write(int x, int y, int id) throws IOException;
+	}
+
+	// Goes through a z-level in the order it gets written: rows top to bottom for classic, columns left to right
+	// for TGM.
+	private void writeLevel(int z, CellWriter cells) throws IOException {
+		if(streamedLevels.contains(z)) {
+			try {
+				levelSource.forEachCell(z, (x, y, id) -> {
+					try {
+						cells.write(x, y, id);
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return;
+		}
+		int[] decoded = decodedLevels.get(z);
+		int width = maxX - minX + 1;
+		if(!isTGM) {
+			for(int y = maxY; y >= minY; y--) {
+				for(int x = minX; x <= maxX; x++)
+					cells.write(x, y, decoded != null ? decoded[(y - minY) * width + x - minX] : map.getId(x, y, z));
+			}
+		} else {
+			for(int x = minX; x <= maxX; x++) {
+				for(int y = maxY; y >= minY; y--)
+					cells.write(x, y, decoded != null ? decoded[(y - minY) * width + x - minX] : map.getId(x, y, z));
+			}
+		}
+	}
+
+	/**
+	 * Marks the instances a level in the file uses, and checks its cells come in the order writeLevel goes in with
+	 * every cell there once. Anything this editor saved is like that.
+	 */
+	private class OrderCheck implements LevelSource.CellConsumer {
+		private int x = minX;
+		private int y = maxY;
+		private boolean inOrder = true;
+
+		@Override
+		public void accept(int cellX, int cellY, int id) {
+			if(id > 0 && id < used.length && used[id] == null)
+				used[id] = all[id];
+			if(!inOrder)
+				return;
+			if(cellX != x || cellY != y) {
+				inOrder = false;
+				return;
+			}
+			if(!isTGM) {
+				if(++x > maxX) {
+					x = minX;
+					y--;
+				}
+			} else if(--y < minY) {
+				y = maxY;
+				x++;
+			}
+		}
+
+		boolean matches() {
+			return inOrder && (isTGM ? x > maxX : y < minY);
+		}
+	}
+
+	private void reportProgress(IntConsumer progress, int z) {
+		if(progress != null)
+			progress.accept((z - minZ + 1) * 100 / (maxZ - minZ + 1));
+	}
+
+	private void writeKey(Writer out, int id) throws IOException {
+		String key = id > 0 && id < keys.length ? keys[id] : null;
+		// Empty tiles have always come out as "null". Not pretty, but it's what the old save wrote.
+		out.write(key != null ? key : "null");
+	}
+}
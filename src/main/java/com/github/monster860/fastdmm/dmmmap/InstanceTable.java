@@ -0,0 +1,200 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The tile instances of a map.
+ *
+ * Every instance gets a dense int ID, which is what the TileGrid stores. The DMM keys ("aaa", "aab"...) are just
+ * a name attached to an ID, used when saving and by code that still passes keys around. Instances with the same
+ * contents resolve to the same ID through TileInstance's cached content hash, so asking "do we already have this
+ * tile" doesn't build any strings.
+ */
+public class InstanceTable {
+	private TileInstance[] instances = new TileInstance[64];
+	private String[] keys = new String[64];
+	private int nextId = 1; // 0 is the empty tile
+	// ID's freed by discard, handed out again before new ones.
+	private int[] freeIds = new int[16];
+	private int freeCount = 0;
+	private int discardCount = 0;
+
+	private Map<String, Integer> ids = new HashMap<>();
+	private Map<TileInstance, Integer> byContent = new HashMap<>();
+
+	public TileInstance get(String key) {
+		if(key == null)
+			return null;
+		Integer id = ids.get(key);
+		return id == null ? null : instances[id];
+	}
+
+	/**
+	 * @return The instance with the ID, or null if the ID doesn't currently have a key.
+	 */
+	public TileInstance get(int id) {
+		if(id <= 0 || id >= nextId || keys[id] == null)
+			return null;
+		return instances[id];
+	}
+
+	/**
+	 * @return The instance with the ID, even if its key has been taken away by remove. Null if the slot is empty.
+	 */
+	public TileInstance held(int id) {
+		if(id <= 0 || id >= nextId)
+			return null;
+		return instances[id];
+	}
+
+	/**
+	 * @return The key for the ID, or null if the ID doesn't currently have one.
+	 */
+	public String getKey(int id) {
+		if(id <= 0 || id >= nextId)
+			return null;
+		return keys[id];
+	}
+
+	/**
+	 * @return The ID for the key, or 0 if there's no instance with that key.
+	 */
+	public int getId(String key) {
+		if(key == null)
+			return 0;
+		Integer id = ids.get(key);
+		return id == null ? 0 : id;
+	}
+
+	/**
+	 * Finds the key of an instance with the same contents as the given one.
+	 *
+	 * @return The key, or null if there's no such instance.
+	 */
+	public String keyOf(TileInstance ti) {
+		Integer id = byContent.get(ti);
+		return id == null ? null : keys[id];
+	}
+
+	public boolean containsKey(String key) {
+		return key != null && ids.containsKey(key);
+	}
+
+	public void put(String key, TileInstance ti) {
+		int id = ti.id;
+		if(id <= 0 || id >= nextId || instances[id] != ti) {
+			if(freeCount > 0) {
+				id = freeIds[--freeCount];
+			} else {
+				if(nextId == instances.length) {
+					instances = Arrays.copyOf(instances, nextId * 2);
+					keys = Arrays.copyOf(keys, nextId * 2);
+				}
+				id = nextId++;
+			}
+			instances[id] = ti;
+			ti.id = id;
+		}
+		remove(key);
+		if(keys[id] != null)
+			ids.remove(keys[id]);
+		keys[id] = key;
+		ids.put(key, id);
+		byContent.put(ti, id);
+	}
+
+	/**
+	 * Takes the key away from its instance. The instance keeps its ID, so putting it back later (undo) revives
+	 * every tile that still points at it.
+	 */
+	public TileInstance remove(String key) {
+		Integer id = ids.remove(key);
+		if(id == null)
+			return null;
+		keys[id] = null;
+		TileInstance ti = instances[id];
+		Integer contentId = byContent.get(ti);
+		if(contentId != null && contentId.intValue() == id)
+			byContent.remove(ti);
+		return ti;
+	}
+
+	/**
+	 * Forgets the instance with the ID for good: its key goes and the slot is emptied so the instance can be
+	 * collected. Only for instances nothing can point at any more (see DMM.compactInstances).
+	 *
+	 * The ID gets handed to the next new instance, so anything that remembers ID's to tell whether a tile changed
+	 * needs to check getDiscardCount too.
+	 *
+	 * @return The key it had, or null.
+	 */
+	public String discard(int id) {
+		if(id <= 0 || id >= nextId || instances[id] == null)
+			return null;
+		String key = keys[id];
+		if(key != null)
+			remove(key);
+		instances[id] = null;
+		if(freeCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		freeIds[freeCount++] = id;
+		discardCount++;
+		return key;
+	}
+
+	/**
+	 * @return How many instances have been discarded so far. When this changes an ID can mean a different instance
+	 *         than it did before.
+	 */
+	public int getDiscardCount() {
+		return discardCount;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Runs for every instance still held, including ones that currently don't have a key.
+	 */
+	public void forEachInstance(Consumer<TileInstance> action) {
+		for(int id = 1; id < nextId; id++) {
+			if(instances[id] != null)
+				action.accept(instances[id]);
+		}
+	}
+
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(ids.keySet());
+	}
+
+	/**
+	 * @return One more than the highest ID handed out, for looping over IDs.
+	 */
+	public int idLimit() {
+		return nextId;
+	}
+
+	/**
+	 * @return A copy of the key of every ID, indexed by ID.
+	 */
+	public String[] getKeys() {
+		return Arrays.copyOf(keys, nextId);
+	}
+
+	/**
+	 * Renames every instance at once. Used when expanding keys and undoing that.
+	 */
+	public void setKeys(String[] newKeys) {
+		ids.clear();
+		byContent.clear();
+		for(int id = 1; id < nextId; id++) {
+			keys[id] = id < newKeys.length ? newKeys[id] : null;
+			if(keys[id] == null)
+				continue;
+			ids.put(keys[id], id);
+			byContent.put(instances[id], id);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hands out unused DMM keys of one length.
+ *
+ * A key is just a base-52 number (a-z then A-Z, same order as DM writes them), so the whole key space is an index
+ * range and "is this key taken" is one bit. Nothing ever builds the list of every possible key, which for 4 letter
+ * keys would be 7 million strings.
+ */
+public class KeyAllocator {
+	// Random guesses before falling back to a scan. Only matters once the key space is nearly full.
+	private static final int PROBES = 16;
+
+	private final int keyLen;
+	private final int space;
+	private final BitSet used = new BitSet();
+	private int usedCount = 0;
+
+	/**
+	 * @param keyLen Length of the keys. 0 gives an allocator with no keys at all, which is what a map without a
+	 *               dictionary starts with.
+	 */
+	public KeyAllocator(int keyLen) {
+		if(keyLen > 5) // 52^6 doesn't fit in an int.
+			throw new IllegalArgumentException("Keys longer than 5 characters aren't supported");
+		this.keyLen = keyLen;
+		int space = keyLen > 0 ? 1 : 0;
+		for(int i = 0; i < keyLen; i++)
+			space *= 52;
+		this.space = space;
+	}
+
+	public int getKeyLen() {
+		return keyLen;
+	}
+
+	public int freeCount() {
+		return space - usedCount;
+	}
+
+	public boolean isUsed(String key) {
+		int code = codeOf(key);
+		return code >= 0 && used.get(code);
+	}
+
+	/**
+	 * Marks a key as taken. Keys of another length are ignored.
+	 */
+	public void markUsed(String key) {
+		int code = codeOf(key);
+		if(code < 0 || used.get(code))
+			return;
+		used.set(code);
+		usedCount++;
+	}
+
+	/**
+	 * Gives a key back so it can be handed out again. Keys of another length are ignored.
+	 */
+	public void release(String key) {
+		int code = codeOf(key);
+		if(code < 0 || !used.get(code))
+			return;
+		used.clear(code);
+		usedCount--;
+	}
+
+	/**
+	 * Takes a random free key. Random rather than the next one in line, so two people adding tiles to the same map
+	 * are unlikely to both pick the same key and end up with a merge conflict.
+	 *
+	 * @return The key, or null if every key of this length is taken.
+	 */
+	public String allocate(Random rand) {
+		if(freeCount() <= 0)
+			return null;
+		int code = -1;
+		for(int i = 0; i < PROBES && code < 0; i++) {
+			int guess = rand.nextInt(space);
+			if(!used.get(guess))
+				code = guess;
+		}
+		if(code < 0) {
+			code = used.nextClearBit(rand.nextInt(space));
+			if(code >= space)
+				code = used.nextClearBit(0);
+		}
+		used.set(code);
+		usedCount++;
+		return keyString(code, keyLen);
+	}
+
+	private int codeOf(String key) {
+		if(key == null || key.length() != keyLen || keyLen == 0)
+			return -1;
+		return keyCode(key);
+	}
+
+	/**
+	 * @return The base-52 value of the key, or -1 if it has characters that can't be in a key or is too long.
+	 */
+	public static int keyCode(String key) {
+		if(key.length() > 5)
+			return -1;
+		int code = 0;
+		for(int i = 0; i < key.length(); i++) {
+			int digit = keyDigit(key.charAt(i));
+			if(digit < 0)
+				return -1;
+			code = code * 52 + digit;
+		}
+		return code;
+	}
+
+	public static int keyDigit(char c) {
+		if(c >= 'a' && c <= 'z')
+			return c - 'a';
+		if(c >= 'A' && c <= 'Z')
+			return c - 'A' + 26;
+		return -1;
+	}
+
+	public static String keyString(int code, int keyLen) {
+		char[] chars = new char[keyLen];
+		for(int i = keyLen - 1; i >= 0; i--) {
+			int digit = code % 52;
+			chars[i] = (char)(digit < 26 ? 'a' + digit : 'A' + digit - 26);
+			code /= 52;
+		}
+		return new String(chars);
+	}
+}
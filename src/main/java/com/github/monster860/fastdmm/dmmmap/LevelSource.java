@@ -0,0 +1,73 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.util.*;
+
+/**
+ * Where the tiles of z-levels that haven't been loaded yet come from: the map file (DMMReader) or a cache entry
+ * (MapCache). The DMM keeps one around until every level has been put into the map.
+ *
+ * forEachCell only reads what the source was set up with, which never changes after, so the save thread can go
+ * through levels while the editor loads others. Which levels are loaded belongs to the editor thread.
+ */
+abstract class LevelSource {
+	protected final DMM dmm;
+	private final Set<Integer> unloadedLevels = new TreeSet<>();
+
+	LevelSource(DMM dmm) {
+		this.dmm = dmm;
+	}
+
+	interface CellConsumer {
+		void accept(int x, int y, int id);
+	}
+
+	/**
+	 * Goes through the cells of a z-level with the instance ID of each. Cells with no instance may be skipped.
+	 */
+	abstract void forEachCell(int z, CellConsumer consumer);
+
+	/**
+	 * Marks the ID of every instance the unloaded levels could use. They don't count towards ref counts yet.
+	 */
+	abstract void collectInstances(BitSet ids);
+
+	protected void addLevel(int z) {
+		unloadedLevels.add(z);
+	}
+
+	boolean isLoaded(int z) {
+		return !unloadedLevels.contains(z);
+	}
+
+	boolean allLoaded() {
+		return unloadedLevels.isEmpty();
+	}
+
+	Set<Integer> getUnloadedLevels() {
+		return Collections.unmodifiableSet(unloadedLevels);
+	}
+
+	/**
+	 * Puts every tile of the z-level into the map. Does nothing if it's already been loaded.
+	 */
+	void loadLevel(int z) {
+		if(!unloadedLevels.remove(z))
+			return;
+		forEachCell(z, (x, y, id) -> dmm.loadTile(x, y, z, id));
+	}
+
+	/**
+	 * Reads the instance ID's of a z-level into an array, rows from minY up, without touching the map or any ref
+	 * counts. Cells outside the bounds are left out. Only goes through forEachCell, so it's fine to call from the
+	 * save thread with the bounds from its snapshot.
+	 */
+	int[] decodeLevel(int z, int minX, int minY, int maxX, int maxY) {
+		int width = maxX - minX + 1;
+		int[] ids = new int[width * (maxY - minY + 1)];
+		forEachCell(z, (x, y, id) -> {
+			if(x >= minX && x <= maxX && y >= minY && y <= maxY)
+				ids[(y - minY) * width + x - minX] = id;
+		});
+		return ids;
+	}
+}
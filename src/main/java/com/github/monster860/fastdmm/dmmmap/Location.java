@@ -66,6 +66,7 @@ public class Location {
     
     @Override
     public int hashCode() {
-    	return (x<<16) + (y<<8) + (z);
+    	// The old (x<<16)+(y<<8)+z collided all over the place once maps got past 255 tiles.
+    	return (x * 73856093) ^ (y * 19349663) ^ (z * 83492791);
     }
 }
@@ -0,0 +1,305 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.monster860.fastdmm.objtree.ModifiedType;
+import com.github.monster860.fastdmm.objtree.ObjInstance;
+
+/**
+ * Binary copy of a parsed map, kept in ~/.fastdmm/cache so opening the same map again skips parsing the text.
+ *
+ * The .dmm file is always the real thing. A cache entry remembers the size and modification time of the file it
+ * came from and gets thrown out and rebuilt as soon as they don't match.
+ *
+ * A hit only reads the dictionary right away. The levels are left in the entry and loaded on demand like the ones
+ * in a map file, so a cached map opens lazily too. Entries get written on a background thread from the parsed file
+ * contents, so the map doesn't wait for a second copy of itself to be written before it shows up.
+ *
+ * Layout, all big-endian and fixed width so it can be read straight out of a (mapped) ByteBuffer:
+ * <pre>
+ * int magic, int version
+ * string path, long size, long lastModified
+ * byte isTGM, int keyLen, int minX, minY, minZ, maxX, maxY, maxZ
+ * int entryCount, then per entry:
+ *     string key, int objCount, then per obj: string path, int varCount, varCount * (string name, string value)
+ *     (varCount is -1 for an unmodified type and -2 for a type that wasn't in the object tree)
+ * int width, height, depth, then depth longs: where each z-level starts in the file
+ * then per z-level width*height ints in y, x order: entry index + 1, or 0 for nothing
+ * </pre>
+ * Strings are an int byte length followed by UTF-8.
+ */
+class MapCache {
+	private static final int MAGIC = 0x46444D43; // "FDMC"
+	private static final int VERSION = 2;
+
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "FastDMM map cache writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static File getCacheFile(File map) {
+		String path = map.getAbsolutePath();
+		String dir = System.getProperty("user.home") + File.separator + ".fastdmm" + File.separator + "cache";
+		return new File(dir, map.getName() + "-" + Integer.toHexString(path.hashCode()) + ".cache");
+	}
+
+	/**
+	 * Reads the dictionary and bounds into the DMM from the cache, if there's a cache entry that's still up to date.
+	 * None of the levels are loaded yet.
+	 *
+	 * @return Where to load the levels from, or null if there's no usable entry. In that case nothing in the DMM
+	 *         has been touched.
+	 */
+	static LevelSource load(DMM dmm, File map) {
+		File cacheFile = getCacheFile(map);
+		if(!cacheFile.exists())
+			return null;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(cacheFile.toPath()));
+			if(in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			if(!readString(in).equals(map.getAbsolutePath()) || in.getLong() != map.length() || in.getLong() != map.lastModified())
+				return null;
+
+			boolean isTGM = in.get() != 0;
+			int keyLen = in.getInt();
+			int minX = in.getInt(), minY = in.getInt(), minZ = in.getInt();
+			int maxX = in.getInt(), maxY = in.getInt(), maxZ = in.getInt();
+
+			int entryCount = in.getInt();
+			String[] keys = new String[entryCount];
+			TileInstance[] entries = new TileInstance[entryCount];
+			for(int i = 0; i < entryCount; i++) {
+				keys[i] = readString(in);
+				int objCount = in.getInt();
+				List<ObjInstance> objs = new ArrayList<>(objCount);
+				for(int o = 0; o < objCount; o++) {
+					String path = readString(in);
+					int varCount = in.getInt();
+					if(varCount == -2) {
+						objs.add(null);
+						continue;
+					}
+					if(varCount < 0) {
+						objs.add(dmm.objTree.get(path));
+						continue;
+					}
+					Map<String, String> vars = new LinkedHashMap<>();
+					for(int v = 0; v < varCount; v++)
+						vars.put(readString(in), readString(in));
+					objs.add(ModifiedType.fromParts(path, vars, dmm.objTree, dmm));
+				}
+				entries[i] = new TileInstance(objs, dmm);
+			}
+
+			int width = in.getInt(), height = in.getInt(), depth = in.getInt();
+			int[] offsets = new int[depth];
+			for(int z = 0; z < depth; z++) {
+				long offset = in.getLong();
+				if(offset < in.position() || offset + 4L * width * height > in.limit())
+					return null;
+				offsets[z] = (int)offset;
+			}
+
+			// Everything checks out, fill in the map.
+			dmm.isTGM = isTGM;
+			dmm.keyLen = keyLen;
+			dmm.minX = minX;
+			dmm.minY = minY;
+			dmm.minZ = minZ;
+			dmm.maxX = maxX;
+			dmm.maxY = maxY;
+			dmm.maxZ = maxZ;
+			dmm.keys = new KeyAllocator(keyLen);
+			int[] ids = new int[entryCount];
+			for(int i = 0; i < entryCount; i++) {
+				dmm.instances.put(keys[i], entries[i]);
+				ids[i] = dmm.instances.getId(keys[i]);
+				dmm.keys.markUsed(keys[i]);
+			}
+
+			dmm.map.reserve(minX, minY, minZ, minX + width - 1, minY + height - 1, minZ + depth - 1);
+			return new Levels(dmm, in, ids, minX, minY, minZ, width, height, offsets);
+		} catch(Exception e) {
+			// Broken or from an older version. It gets rebuilt after the normal parse.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * The levels of a cache entry. Keeps the whole entry in memory like DMMReader keeps the file, and only ever
+	 * reads it with absolute gets, so it's safe to read from the save thread.
+	 */
+	private static class Levels extends LevelSource {
+		private final ByteBuffer in;
+		// Instance ID of every entry index
+		private final int[] ids;
+		private final int minX, minY, minZ, width, height;
+		private final int[] offsets;
+		private final boolean isTGM;
+
+		Levels(DMM dmm, ByteBuffer in, int[] ids, int minX, int minY, int minZ, int width, int height, int[] offsets) {
+			super(dmm);
+			this.in = in;
+			this.ids = ids;
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			this.width = width;
+			this.height = height;
+			this.offsets = offsets;
+			isTGM = dmm.isTGM;
+			for(int z = 0; z < offsets.length; z++)
+				addLevel(minZ + z);
+		}
+
+		// In the order a save writes them, so unloaded levels get streamed.
+		@Override
+		void forEachCell(int z, CellConsumer consumer) {
+			if(z < minZ || z - minZ >= offsets.length)
+				return;
+			int offset = offsets[z - minZ];
+			if(!isTGM) {
+				for(int y = height - 1; y >= 0; y--) {
+					for(int x = 0; x < width; x++)
+						cell(offset, x, y, consumer);
+				}
+			} else {
+				for(int x = 0; x < width; x++) {
+					for(int y = height - 1; y >= 0; y--)
+						cell(offset, x, y, consumer);
+				}
+			}
+		}
+
+		private void cell(int offset, int x, int y, CellConsumer consumer) {
+			int index = in.getInt(offset + 4 * (y * width + x));
+			if(index > 0 && index <= ids.length)
+				consumer.accept(minX + x, minY + y, ids[index - 1]);
+		}
+
+		@Override
+		void collectInstances(BitSet ids) {
+			for(int id : this.ids)
+				ids.set(id);
+		}
+	}
+
+	/**
+	 * Writes a cache entry for a map that was just parsed, in the background. Only the dictionary gets copied here,
+	 * the levels are read from the reader's file contents, so editing can start right away.
+	 */
+	static void store(DMM dmm, File map, DMMReader reader) {
+		String path = map.getAbsolutePath();
+		long length = map.length();
+		long lastModified = map.lastModified();
+		boolean isTGM = dmm.isTGM;
+		int keyLen = dmm.keyLen;
+		int minX = dmm.minX, minY = dmm.minY, minZ = dmm.minZ;
+		int maxX = dmm.maxX, maxY = dmm.maxY, maxZ = dmm.maxZ;
+		// Entry index of every instance ID, and what goes in each entry.
+		int[] entryIndex = new int[dmm.instances.idLimit()];
+		List<String> keys = new ArrayList<>();
+		List<List<ObjInstance>> entries = new ArrayList<>();
+		for(int id = 1; id < entryIndex.length; id++) {
+			TileInstance ti = dmm.instances.get(id);
+			if(ti == null)
+				continue;
+			keys.add(dmm.instances.getKey(id));
+			entries.add(new ArrayList<>(ti.objs));
+			entryIndex[id] = entries.size();
+		}
+
+		writer.execute(() -> {
+			File cacheFile = getCacheFile(map);
+			File tmp = new File(cacheFile.getPath() + ".tmp");
+			try {
+				cacheFile.getParentFile().mkdirs();
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					writeString(out, path);
+					out.writeLong(length);
+					out.writeLong(lastModified);
+
+					out.writeByte(isTGM ? 1 : 0);
+					out.writeInt(keyLen);
+					out.writeInt(minX);
+					out.writeInt(minY);
+					out.writeInt(minZ);
+					out.writeInt(maxX);
+					out.writeInt(maxY);
+					out.writeInt(maxZ);
+
+					out.writeInt(entries.size());
+					for(int i = 0; i < entries.size(); i++) {
+						writeString(out, keys.get(i));
+						out.writeInt(entries.get(i).size());
+						for(ObjInstance obj : entries.get(i)) {
+							if(obj instanceof ModifiedType) {
+								ModifiedType mt = (ModifiedType)obj;
+								writeString(out, mt.parentType);
+								out.writeInt(mt.vars.size());
+								for(Map.Entry<String, String> var : mt.vars.entrySet()) {
+									writeString(out, var.getKey());
+									writeString(out, var.getValue());
+								}
+							} else if(obj != null) {
+								writeString(out, obj.typeString());
+								out.writeInt(-1);
+							} else {
+								writeString(out, "");
+								out.writeInt(-2);
+							}
+						}
+					}
+
+					int width = maxX - minX + 1;
+					int height = maxY - minY + 1;
+					int depth = maxZ - minZ + 1;
+					out.writeInt(width);
+					out.writeInt(height);
+					out.writeInt(depth);
+					long levelStart = out.size() + 8L * depth;
+					for(int z = 0; z < depth; z++)
+						out.writeLong(levelStart + 4L * width * height * z);
+					for(int z = minZ; z <= maxZ; z++) {
+						int[] level = reader.decodeLevel(z, minX, minY, maxX, maxY);
+						for(int id : level)
+							out.writeInt(id > 0 && id < entryIndex.length ? entryIndex[id] : 0);
+					}
+				}
+				Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch(IOException e) {
+				e.printStackTrace();
+				tmp.delete();
+			}
+		});
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int len = in.getInt();
+		String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+		in.position(in.position() + len);
+		return s;
+	}
+}
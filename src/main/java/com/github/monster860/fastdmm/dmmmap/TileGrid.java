@@ -0,0 +1,278 @@
+package com.github.monster860.fastdmm.dmmmap;
+
+import java.util.*;
+
+/**
+ * Map storage backed by one flat int array per z-level.
+ *
+ * Every cell holds the InstanceTable ID of its tile instance (0 means empty), so a lookup is just some arithmetic
+ * and a couple of array reads. It still implements Map&lt;Location, String&gt; so code that treats dmm.map as a map
+ * keeps working; the coordinate methods are there for the hot paths.
+ */
+public class TileGrid extends AbstractMap<Location, String> {
+	// Bounds of the allocated area. Planes are allocated lazily and the whole thing grows when something is put outside.
+	private int originX = 1;
+	private int originY = 1;
+	private int originZ = 1;
+	private int width = 0;
+	private int height = 0;
+	private int[][] planes = new int[0][];
+
+	private int size = 0;
+	private int modCount = 0;
+
+	private final InstanceTable instances;
+
+	public TileGrid(InstanceTable instances) {
+		this.instances = instances;
+	}
+
+	/**
+	 * Gets the key at the given coordinates.
+	 *
+	 * @return The key, or null if the tile is empty or outside the map.
+	 */
+	public String get(int x, int y, int z) {
+		return instances.getKey(getId(x, y, z));
+	}
+
+	/**
+	 * Gets the tile instance at the given coordinates.
+	 */
+	public TileInstance getInstance(int x, int y, int z) {
+		return instances.get(getId(x, y, z));
+	}
+
+	public int getId(int x, int y, int z) {
+		int pz = z - originZ;
+		if(pz < 0 || pz >= planes.length)
+			return 0;
+		int px = x - originX;
+		int py = y - originY;
+		if(px < 0 || px >= width || py < 0 || py >= height)
+			return 0;
+		int[] plane = planes[pz];
+		return plane == null ? 0 : plane[py * width + px];
+	}
+
+	/**
+	 * Sets the key at the given coordinates. A null key clears the tile.
+	 *
+	 * @return The previous key, or null if the tile was empty.
+	 */
+	public String put(int x, int y, int z, String key) {
+		int id = instances.getId(key);
+		if(id == 0 && key != null)
+			throw new IllegalArgumentException("No tile instance with key " + key);
+		return instances.getKey(setId(x, y, z, id));
+	}
+
+	/**
+	 * Sets the instance ID at the given coordinates.
+	 *
+	 * @return The previous ID.
+	 */
+	public int setId(int x, int y, int z, int id) {
+		if(id == 0 && getId(x, y, z) == 0)
+			return 0;
+		reserve(x, y, z, x, y, z);
+		int pz = z - originZ;
+		int[] plane = planes[pz];
+		if(plane == null)
+			plane = planes[pz] = new int[width * height];
+		int index = (y - originY) * width + (x - originX);
+		int old = plane[index];
+		plane[index] = id;
+		if(old == 0 && id != 0)
+			size++;
+		else if(old != 0 && id == 0)
+			size--;
+		modCount++;
+		return old;
+	}
+
+	/**
+	 * Goes up every time a tile is set, so anything built from the grid can tell whether it's still current.
+	 */
+	public int getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * Makes a copy of the grid. The copy shares the instance table but none of the tile arrays.
+	 */
+	public TileGrid copy() {
+		TileGrid copy = new TileGrid(instances);
+		copy.originX = originX;
+		copy.originY = originY;
+		copy.originZ = originZ;
+		copy.width = width;
+		copy.height = height;
+		copy.size = size;
+		copy.planes = new int[planes.length][];
+		for(int pz = 0; pz < planes.length; pz++) {
+			if(planes[pz] != null)
+				copy.planes[pz] = planes[pz].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Makes sure the given box is allocated, so filling it doesn't have to grow the grid over and over.
+	 */
+	public void reserve(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		if(planes.length > 0 && minX >= originX && minY >= originY && minZ >= originZ
+				&& maxX < originX + width && maxY < originY + height && maxZ < originZ + planes.length)
+			return;
+		int nMinX = minX, nMinY = minY, nMinZ = minZ, nMaxX = maxX, nMaxY = maxY, nMaxZ = maxZ;
+		if(planes.length > 0) {
+			nMinX = Math.min(nMinX, originX);
+			nMinY = Math.min(nMinY, originY);
+			nMinZ = Math.min(nMinZ, originZ);
+			nMaxX = Math.max(nMaxX, originX + width - 1);
+			nMaxY = Math.max(nMaxY, originY + height - 1);
+			nMaxZ = Math.max(nMaxZ, originZ + planes.length - 1);
+		}
+		int nWidth = nMaxX - nMinX + 1;
+		int nHeight = nMaxY - nMinY + 1;
+		int[][] nPlanes = new int[nMaxZ - nMinZ + 1][];
+		for(int pz = 0; pz < planes.length; pz++) {
+			int[] plane = planes[pz];
+			if(plane == null)
+				continue;
+			int[] nPlane = new int[nWidth * nHeight];
+			for(int py = 0; py < height; py++) {
+				System.arraycopy(plane, py * width, nPlane, (py + originY - nMinY) * nWidth + (originX - nMinX), width);
+			}
+			nPlanes[pz + originZ - nMinZ] = nPlane;
+		}
+		originX = nMinX;
+		originY = nMinY;
+		originZ = nMinZ;
+		width = nWidth;
+		height = nHeight;
+		planes = nPlanes;
+	}
+
+	// Map implementation
+
+	@Override
+	public String get(Object o) {
+		if(!(o instanceof Location))
+			return null;
+		Location l = (Location)o;
+		return get(l.x, l.y, l.z);
+	}
+
+	@Override
+	public boolean containsKey(Object o) {
+		if(!(o instanceof Location))
+			return false;
+		Location l = (Location)o;
+		return getId(l.x, l.y, l.z) != 0;
+	}
+
+	@Override
+	public String put(Location l, String key) {
+		if(key == null)
+			throw new NullPointerException("TileGrid can't hold null keys; use remove");
+		return put(l.x, l.y, l.z, key);
+	}
+
+	@Override
+	public String remove(Object o) {
+		if(!(o instanceof Location))
+			return null;
+		Location l = (Location)o;
+		return put(l.x, l.y, l.z, null);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		planes = new int[0][];
+		width = 0;
+		height = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Set<Map.Entry<Location, String>> entrySet() {
+		return new AbstractSet<Map.Entry<Location, String>>() {
+			@Override
+			public Iterator<Map.Entry<Location, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<Location, String>> {
+		private int expectedModCount = modCount;
+		private int pz = 0;
+		private int index = -1;
+		private int lastZ = -1;
+		private int lastIndex = -1;
+
+		EntryIterator() {
+			advance();
+		}
+
+		private void advance() {
+			index++;
+			while(pz < planes.length) {
+				int[] plane = planes[pz];
+				if(plane != null) {
+					while(index < plane.length) {
+						if(plane[index] != 0)
+							return;
+						index++;
+					}
+				}
+				pz++;
+				index = 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pz < planes.length;
+		}
+
+		@Override
+		public Map.Entry<Location, String> next() {
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if(!hasNext())
+				throw new NoSuchElementException();
+			Location l = new Location(originX + index % width, originY + index / width, originZ + pz);
+			Map.Entry<Location, String> entry = new AbstractMap.SimpleImmutableEntry<>(l, instances.getKey(planes[pz][index]));
+			lastZ = pz;
+			lastIndex = index;
+			advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if(lastIndex < 0)
+				throw new IllegalStateException();
+			if(modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			planes[lastZ][lastIndex] = 0;
+			size--;
+			lastIndex = -1;
+			modCount++;
+			expectedModCount = modCount;
+		}
+	}
+}
@@ -12,11 +12,13 @@ import com.github.monster860.fastdmm.dmirender.IconSubstate;
 import com.github.monster860.fastdmm.objtree.ModifiedType;
 import com.github.monster860.fastdmm.objtree.ObjInstance;
 import com.github.monster860.fastdmm.objtree.ObjectTree;
+import com.github.monster860.fastdmm.objtree.VarSymbols;
 
 public class TileInstance {
 	public List<ObjInstance> objs;
 	DMM dmm;
 	public int refCount = 0;
+	int id = 0; // Assigned by the InstanceTable
 
 	// Prefab reference metadata (if this tile was placed as part of a prefab instance)
 	public String prefabName = null; // name of prefab
@@ -77,11 +79,11 @@ public class TileInstance {
 			cachedSorted = new ArrayList<>(objs);
 			cachedSorted.sort((a, b) -> {
                 try {
-                    float layerA = Float.parseFloat(a.getVar("plane"));
-                    float layerB = Float.parseFloat(b.getVar("plane"));
+                    float layerA = Float.parseFloat(a.getVar(VarSymbols.PLANE));
+                    float layerB = Float.parseFloat(b.getVar(VarSymbols.PLANE));
                     if(layerA == layerB) {
-                        layerA = Float.parseFloat(a.getVar("layer"));
-                        layerB = Float.parseFloat(b.getVar("layer"));
+                        layerA = Float.parseFloat(a.getVar(VarSymbols.LAYER));
+                        layerB = Float.parseFloat(b.getVar(VarSymbols.LAYER));
                     }
                     if(layerA == layerB) {
                         // Sort by type
@@ -114,13 +116,20 @@ public class TileInstance {
 		return cachedSorted;
 	}
 	
+	// For when the vars of the objects on it may have changed. The contents are the same, so the hash stays.
+	public void clearCaches() {
+		cachedSorted = null;
+		cachedArea = null;
+	}
+	
 	private ObjInstance cachedArea = null;
 	public ObjInstance getArea() {
 		if(cachedArea == null) {
+			ObjectTree.Item area = dmm.objTree.get("/area");
 			for(ObjInstance i : objs) {
 				if(i == null)
 					continue;
-				if(i.istype("/area"))
+				if(i.istype(area))
 					cachedArea = i;
 			}
 		}
@@ -129,44 +138,46 @@ public class TileInstance {
 	
 	public void sortObjs() {
 		// Sort the object list in the order 
+		ObjectTree.Item obj = dmm.objTree.get("/obj");
+		ObjectTree.Item mob = dmm.objTree.get("/mob");
+		ObjectTree.Item turf = dmm.objTree.get("/turf");
+		ObjectTree.Item area = dmm.objTree.get("/area");
 		Collections.sort(objs, (a, b) -> {
 			// Handle nulls defensively to avoid NPEs during bulk deletions/filters
 			if (a == null && b == null) return 0;
 			if (a == null) return 1; // push nulls to end
 			if (b == null) return -1;
-            int iA = 0;
-            int iB = 0;
-            if(a.istype("/obj"))
-                iA = 1;
-            else if(a.istype("/mob"))
-                iA = 2;
-            else if(a.istype("/turf"))
-                iA = 3;
-            else if(a.istype("/area"))
-                iA = 4;
-            if(b.istype("/obj"))
-                iB = 1;
-            else if(b.istype("/mob"))
-                iB = 2;
-            else if(b.istype("/turf"))
-                iB = 3;
-            else if(b.istype("/area"))
-                iB = 4;
+            int iA = sortGroup(a, obj, mob, turf, area);
+            int iB = sortGroup(b, obj, mob, turf, area);
             return iA < iB ? -1 : (iA == iB ? 0 : 1);
         });
 	}
 	
+	private static int sortGroup(ObjInstance o, ObjectTree.Item obj, ObjectTree.Item mob, ObjectTree.Item turf, ObjectTree.Item area) {
+		if(o.istype(obj))
+			return 1;
+		else if(o.istype(mob))
+			return 2;
+		else if(o.istype(turf))
+			return 3;
+		else if(o.istype(area))
+			return 4;
+		return 0;
+	}
+	
 	// Modification functions. They do not modify the tile instance, they return the key pointing to the modified instance.
 	public String addObject(ObjInstance obj) {
 		TileInstance ti = new TileInstance(new ArrayList<>(objs), dmm);
-		if(obj.istype("/area")) {
+		ObjectTree.Item area = dmm.objTree.get("/area");
+		ObjectTree.Item turf = dmm.objTree.get("/turf");
+		if(obj.istype(area)) {
 			for(int i = 0; i < ti.objs.size(); i++) {
 				ObjInstance cobj = ti.objs.get(i);
-				if(cobj != null && cobj.istype("/area"))
+				if(cobj != null && cobj.istype(area))
 					ti.objs.remove(i);
 			}
 		}
-		if(obj.istype("/turf")) {
+		if(obj.istype(turf)) {
 			DMI dmi = dmm.editor.getDmi(obj.getIcon(), false);
 			if(dmi != null) {
 				String iconState = obj.getIconState();
@@ -174,7 +185,7 @@ public class TileInstance {
 				if(substate.isOpaque()) {
 					for(int i = 0; i < ti.objs.size(); i++) {
 						ObjInstance cobj = ti.objs.get(i);
-						if(cobj != null && cobj.istype("/turf"))
+						if(cobj != null && cobj.istype(turf))
 							ti.objs.remove(i);
 					}
 				}
@@ -239,13 +250,15 @@ public class TileInstance {
 		TileInstance ti = new TileInstance(new ArrayList<>(), dmm);
 		boolean hasTurf = false;
 		boolean hasArea = false;
+		ObjectTree.Item turf = dmm.objTree.get("/turf");
+		ObjectTree.Item area = dmm.objTree.get("/area");
 		for(ObjInstance obj : objs) {
 			if(obj == null) continue; // Skip nulls defensively
 			if(!editor.inFilter(obj)) {
 				ti.objs.add(obj);
-				if(obj.istype("/turf"))
+				if(obj.istype(turf))
 					hasTurf = true;
-				if(obj.istype("/area"))
+				if(obj.istype(area))
 					hasArea = true;
 			}
 		}
@@ -280,8 +293,32 @@ public class TileInstance {
 		return dmm.getKeyForInstance(ti);
 	}
 	
+	// Equality is by contents, same as comparing toString() but without building the strings.
+	// The hash is cached, so don't change objs once the instance is in use.
+	private int cachedHash = 0;
+	private boolean hasCachedHash = false;
+	
 	public int hashCode() {
-		return toString().hashCode();
+		if(!hasCachedHash) {
+			int hash = 1;
+			for(ObjInstance obj : objs) {
+				if(obj == null)
+					continue;
+				hash = 31 * hash + contentHash(obj);
+			}
+			cachedHash = hash;
+			hasCachedHash = true;
+		}
+		return cachedHash;
+	}
+	
+	private static int contentHash(ObjInstance obj) {
+		if(obj instanceof ModifiedType) {
+			// Same var list means same toString(), without building it.
+			ModifiedType mt = (ModifiedType)obj;
+			return mt.parentType.hashCode() * 31 + mt.vars.hashCode();
+		}
+		return obj.toString().hashCode();
 	}
 	
 	public boolean equals(Object other) {
@@ -289,8 +326,22 @@ public class TileInstance {
 			return false;
 		if(other == this)
 			return true;
-		if(other.toString().equals(toString()))
-			return true;
-		return false;
+		TileInstance o = (TileInstance)other;
+		if(hashCode() != o.hashCode())
+			return false;
+		int i = 0;
+		int j = 0;
+		while(true) {
+			while(i < objs.size() && objs.get(i) == null)
+				i++;
+			while(j < o.objs.size() && o.objs.get(j) == null)
+				j++;
+			if(i >= objs.size() || j >= o.objs.size())
+				return i >= objs.size() && j >= o.objs.size();
+			ObjInstance a = objs.get(i++);
+			ObjInstance b = o.objs.get(j++);
+			if(a != b && !a.toString().equals(b.toString()))
+				return false;
+		}
 	}
 }
@@ -2,12 +2,12 @@ package com.github.monster860.fastdmm.editing;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import com.github.monster860.fastdmm.dmmmap.DMM;
+import com.github.monster860.fastdmm.dmmmap.KeyAllocator;
 import com.github.monster860.fastdmm.dmmmap.Location;
 import com.github.monster860.fastdmm.dmmmap.TileInstance;
-import com.google.common.collect.BiMap;
 
 public abstract class DMMDiff implements Undoable {
 	private DMM dmm;
@@ -46,8 +46,24 @@ public abstract class DMMDiff implements Undoable {
 		precedingDiffs.add(other);
 	}
 	
+	/**
+	 * Adds every key this diff (and the ones combined into it) could bring back when undone or redone, so
+	 * compacting the map's instances doesn't hand those keys to something else.
+	 */
+	public void collectKeys(DMM map, Set<String> keys){
+		if(dmm == map){
+			collectKeysSingle(keys);
+		}
+		if(precedingDiffs != null){
+			for(DMMDiff diff : precedingDiffs){
+				diff.collectKeys(map, keys);
+			}
+		}
+	}
+	
 	protected abstract void undoSingle(DMM dmm);
 	protected abstract void redoSingle(DMM dmm);
+	protected abstract void collectKeysSingle(Set<String> keys);
 	
 	public static class MapDiff extends DMMDiff {
 		private String oldInstance;
@@ -70,6 +86,12 @@ public abstract class DMMDiff implements Undoable {
 		protected void redoSingle(DMM dmm){
 			dmm.putMap(loc, newInstance, false);
 		}
+		
+		@Override
+		protected void collectKeysSingle(Set<String> keys){
+			if(oldInstance != null) keys.add(oldInstance);
+			if(newInstance != null) keys.add(newInstance);
+		}
 	}
 	
 	public static class InstanceDiff extends DMMDiff {
@@ -86,36 +108,38 @@ public abstract class DMMDiff implements Undoable {
 		protected void undoSingle(DMM dmm) {
 			if (key == null || dmm == null) return;
 			if (dmm.instances != null) dmm.instances.remove(key);
-			if (dmm.unusedKeys != null && !dmm.unusedKeys.contains(key)) dmm.unusedKeys.add(key);
+			if (dmm.keys != null) dmm.keys.release(key);
 		}
 
 		@Override
 		protected void redoSingle(DMM dmm) {
 			if (key == null || dmm == null || ti == null) return;
 			if (dmm.instances != null) dmm.instances.put(key, ti);
-			if (dmm.unusedKeys != null) dmm.unusedKeys.remove(key);
+			if (dmm.keys != null) dmm.keys.markUsed(key);
+		}
+		
+		@Override
+		protected void collectKeysSingle(Set<String> keys) {
+			if (key != null) keys.add(key);
 		}
 		
 	}
 	
 	public static class ExpandKeysDiff extends DMMDiff {
-		private Map<Location, String> oldMap;
-		private Map<Location, String> newMap;
-		private BiMap<String, TileInstance> oldInstances;
-		private BiMap<String, TileInstance> newInstances;
-		private List<String> oldUnusedKeys;
-		private List<String> newUnusedKeys;
+		private String[] oldKeys;
+		private String[] newKeys;
+		private KeyAllocator oldAllocator;
+		private KeyAllocator newAllocator;
 		private int oldKeyLen;
 		private int newKeyLen;
-		public ExpandKeysDiff(DMM dmm, Map<Location, String> oldMap, Map<Location, String> newMap,
-				BiMap<String, TileInstance> oldInstances, BiMap<String, TileInstance> newInstances,
-				List<String> oldUnusedKeys, List<String> newUnusedKeys,
+		public ExpandKeysDiff(DMM dmm, String[] oldKeys, String[] newKeys,
+				KeyAllocator oldAllocator, KeyAllocator newAllocator,
 				int oldKeyLen, int newKeyLen) {
 			super(dmm);
-			this.oldMap = oldMap;
-			this.newMap = newMap;
-			this.oldInstances = oldInstances;
-			this.newInstances = newInstances;
+			this.oldKeys = oldKeys;
+			this.newKeys = newKeys;
+			this.oldAllocator = oldAllocator;
+			this.newAllocator = newAllocator;
 			this.oldKeyLen = oldKeyLen;
 			this.newKeyLen = newKeyLen;
 		}
@@ -123,17 +147,22 @@ public abstract class DMMDiff implements Undoable {
 		@Override
 		protected void undoSingle(DMM dmm) {
 			dmm.keyLen = oldKeyLen;
-			dmm.map = oldMap;
-			dmm.instances = oldInstances;
-			dmm.unusedKeys = oldUnusedKeys;
+			dmm.instances.setKeys(oldKeys);
+			dmm.keys = oldAllocator;
 		}
 
 		@Override
 		protected void redoSingle(DMM dmm) {
 			dmm.keyLen = newKeyLen;
-			dmm.map = newMap;
-			dmm.instances = newInstances;
-			dmm.unusedKeys = newUnusedKeys;
+			dmm.instances.setKeys(newKeys);
+			dmm.keys = newAllocator;
+		}
+		
+		@Override
+		protected void collectKeysSingle(Set<String> keys) {
+			// Undoing or redoing this renames every instance that existed at the time, so they all have to stay.
+			for (String key : oldKeys) if (key != null) keys.add(key);
+			for (String key : newKeys) if (key != null) keys.add(key);
 		}
 		
 	}
@@ -32,6 +32,7 @@ public class EditVarsListener extends SimpleContextMenuListener {
 				mt = editor.modifiedTypes.get(mt.toString());
 			} else {
 				editor.modifiedTypes.put(mt.toString(), mt);
+				mt.resolveVars();
 				if(mt.parent != null) {
 					mt.parent.addInstance(mt);
 				}
@@ -125,6 +125,8 @@ public class FloatingSelection {
 	
 	public void anchor(DMM map) {
 		HashMap<Location, String[]> changes = new HashMap<Location, String[]>();
+		ObjectTree.Item turf = map.objTree.get("/turf");
+		ObjectTree.Item area = map.objTree.get("/area");
 		for(Entry<Location,TileInstance> entry : objects.entrySet()) {
 			Location relL = entry.getKey();
 			Location l = new Location(x+relL.x,y+relL.y,z);
@@ -138,18 +140,18 @@ public class FloatingSelection {
 			boolean hasTurf = false;
 			for(ObjInstance i : addTi.objs) {
 				if(i == null) continue;
-				if(i.istype("/turf")) {
+				if(i.istype(turf)) {
 					hasTurf = true;
-				} else if(i.istype("/area")) {
+				} else if(i.istype(area)) {
 					hasArea = true;
 				}
 			}
 			for(Iterator<ObjInstance> iterator = ti.objs.iterator(); iterator.hasNext(); ) {
 				ObjInstance i = iterator.next();
 				if(i == null) { iterator.remove(); continue; }
-				if(hasTurf && i.istype("/turf"))
+				if(hasTurf && i.istype(turf))
 					iterator.remove();
-				else if(hasArea && i.istype("/area"))
+				else if(hasArea && i.istype(area))
 					iterator.remove();
 			}
 			for (ObjInstance i : addTi.objs) { if (i != null) ti.objs.add(i); }
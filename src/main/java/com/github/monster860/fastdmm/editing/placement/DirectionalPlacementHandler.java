@@ -49,6 +49,7 @@ public class DirectionalPlacementHandler implements PlacementHandler {
 				mt = editor.modifiedTypes.get(mt.toString());
 			} else {
 				editor.modifiedTypes.put(mt.toString(), mt);
+				mt.resolveVars();
 				if(mt.parent != null) {
 					mt.parent.addInstance(mt);
 				}
@@ -175,6 +175,7 @@ public class TileInspectorPanel extends JPanel {
                     edited = editor.modifiedTypes.get(edited.toString());
                 } else {
                     editor.modifiedTypes.put(edited.toString(), edited);
+                    edited.resolveVars();
                     edited.parent.addInstance(edited);
                 }
             }
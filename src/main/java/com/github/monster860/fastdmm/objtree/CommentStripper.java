@@ -0,0 +1,89 @@
+package com.github.monster860.fastdmm.objtree;
+
+/**
+ * Strips // and /* *&#47; comments out of DM code one line at a time, keeping track of strings, embedded expressions,
+ * lists and parentheses so comment markers inside them are left alone. Block comments and {" "} strings carry over
+ * between lines, so use one of these per file.
+ */
+public class CommentStripper {
+	public boolean isCommenting = false;
+	public boolean inMultilineString = false;
+	public int multilineStringDepth = 0;
+	public int parenthesisDepth = 0;
+	public int stringDepth = 0;
+	public int stringExpDepth = 0;
+	public int[] arrayDepth = new int[50];
+
+	private final StringBuilder o = new StringBuilder();
+
+	public void reset() {
+		isCommenting = false;
+		inMultilineString = false;
+		multilineStringDepth = 0;
+		parenthesisDepth = 0;
+		stringDepth = 0;
+		stringExpDepth = 0;
+		arrayDepth = new int[50];
+	}
+
+	public String stripComments(String s)
+	{
+		o.setLength(0);
+		for(int i = 0; i < s.length(); i++) {
+			char pC = ' ';
+			if(i - 1 >= 0)
+				pC = s.charAt(i - 1);
+			char ppC = ' ';
+			if(i - 2 >= 0)
+				ppC = s.charAt(i - 2);
+			char c = s.charAt(i);
+			char nC = ' ';
+			if(i + 1 < s.length())
+				nC = s.charAt(i + 1);
+			if(!isCommenting) {
+				if(c == '/' && nC == '/' && stringDepth == 0)
+					break;
+				if(c == '/' && nC == '*' && stringDepth == 0) {
+					isCommenting = true;
+					continue;
+				}
+				if(c == '"' && nC == '}' && (pC != '\\' || ppC == '\\') && stringDepth == multilineStringDepth && inMultilineString)
+					inMultilineString = false;
+				if(c == '"' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth && (!inMultilineString || multilineStringDepth != stringDepth)) {
+					stringDepth--;
+				} else if(c == '"' && stringDepth == stringExpDepth && (!inMultilineString || multilineStringDepth != stringDepth)) {
+					stringDepth++;
+					if(pC == '{') {
+						inMultilineString = true;
+						multilineStringDepth = stringDepth;
+					}
+				}
+				if(c == '[' && stringDepth == stringExpDepth)
+					arrayDepth[stringExpDepth]++;
+				else if(c == '[' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth)
+					stringExpDepth++;
+
+				if(c == ']' && arrayDepth[stringExpDepth] != 0)
+					arrayDepth[stringExpDepth]--;
+				else if(c == ']' && stringDepth > 0 && stringDepth == stringExpDepth)
+					stringExpDepth--;
+				if(c == '(' && stringDepth == stringExpDepth)
+					parenthesisDepth++;
+				if(c == ')' && stringDepth == stringExpDepth)
+					parenthesisDepth--;
+				o.append(c);
+			}
+			else {
+				if(c == '*' && nC == '/') {
+					isCommenting = false;
+					i++;
+				}
+			}
+
+		}
+		// Nothing got stripped, which is most lines.
+		if(o.length() == s.length())
+			return s;
+		return o.toString();
+	}
+}
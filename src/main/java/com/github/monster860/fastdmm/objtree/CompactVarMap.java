@@ -0,0 +1,77 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+/**
+ * Read-only stand-in for a type's own TreeMap of vars once the tree is complete. Two arrays instead of an entry
+ * object per var, same iteration order as the TreeMap it replaces.
+ */
+final class CompactVarMap extends AbstractMap<String, String> {
+	private final String[] keys;
+	private final String[] values;
+
+	CompactVarMap(SortedMap<String, String> vars) {
+		keys = new String[vars.size()];
+		values = new String[vars.size()];
+		int i = 0;
+		for(Map.Entry<String, String> e : vars.entrySet()) {
+			// Interned through VarSymbols so every type shares the same name strings.
+			keys[i] = VarSymbols.name(VarSymbols.of(e.getKey()));
+			values[i] = e.getValue();
+			i++;
+		}
+	}
+
+	private int indexOf(Object key) {
+		if(!(key instanceof String))
+			return -1;
+		int i = Arrays.binarySearch(keys, (String)key);
+		return i >= 0 ? i : -1;
+	}
+
+	@Override
+	public String get(Object key) {
+		int i = indexOf(key);
+		return i >= 0 ? values[i] : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					private int i = 0;
+
+					@Override
+					public boolean hasNext() {
+						return i < keys.length;
+					}
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if(i >= keys.length)
+							throw new NoSuchElementException();
+						int index = i++;
+						return new SimpleImmutableEntry<>(keys[index], values[index]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return keys.length;
+			}
+		};
+	}
+}
@@ -0,0 +1,643 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.*;
+
+/**
+ * Folds the constant parts of var values, the way DM does at compile time.
+ *
+ * A value gets tokenized and parsed as an expression: numbers, strings, global var references, parentheses, and
+ * the arithmetic, bitwise, comparison and logical operators. Any part that works out to a constant gets replaced by
+ * its value and everything else (calls, paths, new, strings with embedded expressions...) is left as written, with
+ * the constant parts inside it still folded. Values this doesn't understand at all come back untouched.
+ *
+ * Globals are worked out once and remembered. Once that's done evaluate() only reads, so it can be called from
+ * several threads at once.
+ */
+public class ConstantEvaluator {
+	private final Map<String, String> globalSource;
+	private final Map<String, Node> globals = new HashMap<>();
+	private final Set<String> evaluatingGlobals = new HashSet<>();
+	// Globals that turned out to depend on themselves.
+	private final Set<String> cyclicGlobals = new HashSet<>();
+
+	private static final MathContext SIGNIFICANT_DIGITS = new MathContext(6);
+
+	/**
+	 * @param globals The global vars as written, by name. Every one of them is evaluated right away.
+	 */
+	public ConstantEvaluator(Map<String, String> globals) {
+		this.globalSource = new HashMap<>(globals);
+		for(String name : globals.keySet())
+			global(name);
+	}
+
+	/**
+	 * @return A global var's value after evaluation, or null if there's no such global.
+	 */
+	public String getGlobal(String name) {
+		Node node = globals.get(name);
+		return node != null ? node.text : null;
+	}
+
+	/**
+	 * @return The value with its constant parts folded. The same string if nothing changed.
+	 */
+	public String evaluate(String value) {
+		if(isPlainLiteral(value))
+			return value;
+		Node node = parse(value);
+		return node != null ? node.text : value;
+	}
+
+	// Most values are a lone string, number or icon. Those can't change, so skip tokenizing them.
+	private static boolean isPlainLiteral(String value) {
+		int len = value.length();
+		if(len == 0)
+			return true;
+		char first = value.charAt(0);
+		if((first == '"' || first == '\'') && len > 1 && value.charAt(len - 1) == first) {
+			for(int i = 1; i < len - 1; i++) {
+				char c = value.charAt(i);
+				if(c == first || c == '\\' || c == '[')
+					return false;
+			}
+			return true;
+		}
+		for(int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if(!isDigit(c) && c != '.')
+				return false;
+		}
+		return true;
+	}
+
+	private Node global(String name) {
+		Node node = globals.get(name);
+		if(node != null || !globalSource.containsKey(name))
+			return node;
+		// Globals that use themselves, and whatever was being worked out when that showed up, stay as written.
+		if(!evaluatingGlobals.add(name)) {
+			cyclicGlobals.addAll(evaluatingGlobals);
+			return null;
+		}
+		String source = globalSource.get(name);
+		try {
+			node = parse(source);
+		} finally {
+			evaluatingGlobals.remove(name);
+		}
+		if(node == null || cyclicGlobals.contains(name)) {
+			// Not something that can be written in place of references either.
+			node = new Node(0, source.length(), null);
+			node.operator = true;
+			node.text = source;
+		}
+		globals.put(name, node);
+		return node;
+	}
+
+	private Node parse(String value) {
+		List<Token> tokens = tokenize(value);
+		if(tokens == null)
+			return null;
+		Parser parser = new Parser(value, tokens);
+		Node node;
+		try {
+			node = parser.expression();
+			if(parser.peek().type != TokenType.END)
+				return null;
+		} catch(ParseException e) {
+			return null;
+		}
+		if(!node.changed) {
+			node.text = value;
+		} else {
+			// Any whitespace around the expression stays.
+			StringBuilder sb = new StringBuilder(value.length());
+			sb.append(value, 0, node.start);
+			node.render(value, sb);
+			sb.append(value, node.end, value.length());
+			node.text = sb.toString();
+		}
+		return node;
+	}
+
+	// Values
+
+	private static class Str {
+		// As written between the quotes, escapes and all.
+		final String raw;
+
+		Str(String raw) {
+			this.raw = raw;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Str && ((Str)o).raw.equals(raw);
+		}
+
+		@Override
+		public int hashCode() {
+			return raw.hashCode();
+		}
+	}
+
+	private static String format(Object value) {
+		if(value instanceof Str)
+			return "\"" + ((Str)value).raw + "\"";
+		float f = (Float)value;
+		if(f == (long)f && Math.abs(f) < 1e15f)
+			return Long.toString((long)f);
+		return new BigDecimal(f).round(SIGNIFICANT_DIGITS).stripTrailingZeros().toPlainString();
+	}
+
+	private static boolean isTrue(Object value) {
+		if(value instanceof Str)
+			return !((Str)value).raw.isEmpty();
+		return (Float)value != 0;
+	}
+
+	private static Float number(float f) {
+		// DM doesn't do infinities in constants, so neither do we.
+		if(Float.isNaN(f) || Float.isInfinite(f))
+			return null;
+		return f;
+	}
+
+	// Tokens
+
+	private enum TokenType {
+		NUMBER, STRING, RESOURCE, IDENT, PATH, OP, END
+	}
+
+	private static class Token {
+		final TokenType type;
+		final int start, end;
+		final String text;
+		// Number or Str for literals that can be folded.
+		final Object value;
+		// Index into BINARY_LEVELS, or -1 if this isn't a binary operator.
+		final int level;
+
+		Token(TokenType type, int start, int end, String text, Object value) {
+			this.type = type;
+			this.start = start;
+			this.end = end;
+			this.text = text;
+			this.value = value;
+			Integer level = type == TokenType.OP ? BINARY_LEVEL.get(text) : null;
+			this.level = level != null ? level : -1;
+		}
+
+		boolean is(String op) {
+			return type == TokenType.OP && text.equals(op);
+		}
+
+		boolean isOperand() {
+			return type != TokenType.OP && type != TokenType.END || is(")") || is("]");
+		}
+	}
+
+	// Binary operators, lowest precedence first.
+	private static final String[][] BINARY_LEVELS = {
+		{"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!=", "<>"}, {"<<", ">>"}, {"<", "<=", ">", ">="}, {"+", "-"}, {"*", "/", "%"}
+	};
+	private static final Map<String, Integer> BINARY_LEVEL = new HashMap<>();
+	static {
+		for(int level = 0; level < BINARY_LEVELS.length; level++) {
+			for(String op : BINARY_LEVELS[level])
+				BINARY_LEVEL.put(op, level);
+		}
+	}
+
+	private static final String[] OPERATORS = {
+		"**", "<<", ">>", "<=", ">=", "==", "!=", "<>", "&&", "||",
+		"+", "-", "*", "/", "%", "&", "|", "^", "~", "!", "<", ">", "(", ")", "[", "]", ",", "=", "?", ":", "."
+	};
+
+	// Returns null for anything that can't be tokenized, which leaves the value alone.
+	private static List<Token> tokenize(String s) {
+		List<Token> tokens = new ArrayList<>();
+		int len = s.length();
+		int i = 0;
+		while(true) {
+			while(i < len && (s.charAt(i) == ' ' || s.charAt(i) == '\t'))
+				i++;
+			if(i >= len)
+				break;
+			char c = s.charAt(i);
+			char nC = i + 1 < len ? s.charAt(i + 1) : 0;
+			Token prev = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+			boolean afterOperand = prev != null && prev.isOperand() && !(prev.type == TokenType.IDENT && prev.text.equals("new"));
+			int start = i;
+			if(isDigit(c) || (c == '.' && isDigit(nC))) {
+				i = scanNumber(s, i);
+				if(i < 0)
+					return null;
+				String text = s.substring(start, i);
+				tokens.add(new Token(TokenType.NUMBER, start, i, text, parseNumber(text)));
+			} else if(c == '"' || (c == '{' && nC == '"')) {
+				boolean multiline = c == '{';
+				i += multiline ? 2 : 1;
+				boolean embedded = false;
+				while(true) {
+					if(i >= len)
+						return null;
+					char sc = s.charAt(i);
+					if(sc == '\\') {
+						i += 2;
+						continue;
+					}
+					if(sc == '[')
+						embedded = true;
+					if(sc == '"' && (!multiline || (i + 1 < len && s.charAt(i + 1) == '}')))
+						break;
+					i++;
+				}
+				int contentEnd = i;
+				i += multiline ? 2 : 1;
+				Object value = multiline || embedded ? null : new Str(s.substring(start + 1, contentEnd));
+				tokens.add(new Token(TokenType.STRING, start, i, null, value));
+			} else if(c == '\'') {
+				i = s.indexOf('\'', i + 1);
+				if(i < 0)
+					return null;
+				i++;
+				tokens.add(new Token(TokenType.RESOURCE, start, i, null, null));
+			} else if(isIdentifierStart(c)) {
+				while(i < len && isIdentifierChar(s.charAt(i)))
+					i++;
+				tokens.add(new Token(TokenType.IDENT, start, i, s.substring(start, i), null));
+			} else if((c == '/' || c == '.' || c == ':') && !afterOperand) {
+				// A type path. Where an operand would be, / is never division.
+				while(i < len && (s.charAt(i) == '/' || s.charAt(i) == '.' || s.charAt(i) == ':' || isIdentifierChar(s.charAt(i))))
+					i++;
+				tokens.add(new Token(TokenType.PATH, start, i, s.substring(start, i), null));
+			} else {
+				String op = null;
+				for(String o : OPERATORS) {
+					if(s.startsWith(o, i)) {
+						op = o;
+						break;
+					}
+				}
+				if(op == null)
+					return null;
+				i += op.length();
+				tokens.add(new Token(TokenType.OP, start, i, op, null));
+			}
+		}
+		tokens.add(new Token(TokenType.END, len, len, "", null));
+		return tokens;
+	}
+
+	private static int scanNumber(String s, int i) {
+		int len = s.length();
+		if(s.charAt(i) == '0' && i + 1 < len && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')) {
+			i += 2;
+			int digits = i;
+			while(i < len && Character.digit(s.charAt(i), 16) >= 0)
+				i++;
+			return i > digits ? i : -1;
+		}
+		while(i < len && isDigit(s.charAt(i)))
+			i++;
+		if(i < len && s.charAt(i) == '.') {
+			i++;
+			while(i < len && isDigit(s.charAt(i)))
+				i++;
+		}
+		if(i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			int e = i + 1;
+			if(e < len && (s.charAt(e) == '+' || s.charAt(e) == '-'))
+				e++;
+			if(e < len && isDigit(s.charAt(e))) {
+				i = e;
+				while(i < len && isDigit(s.charAt(i)))
+					i++;
+			}
+		}
+		// Something like 1.#INF or 2x, not a number we know.
+		if(i < len && (isIdentifierChar(s.charAt(i)) || s.charAt(i) == '#'))
+			return -1;
+		return i;
+	}
+
+	private static Float parseNumber(String text) {
+		try {
+			if(text.length() > 2 && (text.charAt(1) == 'x' || text.charAt(1) == 'X'))
+				return number(Long.parseLong(text.substring(2), 16));
+			return number(Float.parseFloat(text));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierStart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+	}
+
+	private static boolean isIdentifierChar(char c) {
+		return isIdentifierStart(c) || isDigit(c);
+	}
+
+	// Parse tree
+
+	private static class Node {
+		final int start, end;
+		// Number or Str if this part is a constant.
+		final Object value;
+		// Whether the text of this part comes out different from how it was written.
+		boolean changed;
+		// Written instead of the source text, for references to globals that aren't constants.
+		String replacement;
+		// Built from an operator, so it can't be dropped into another expression as it's written.
+		boolean operator;
+		List<Node> children;
+		// The whole finished value, only set on the top node.
+		String text;
+
+		Node(int start, int end, Object value) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+		}
+
+		Node(int start, int end, Object value, Node... children) {
+			this(start, end, value);
+			this.children = Arrays.asList(children);
+			// Anything folded from more than one piece is written as its value.
+			changed = value != null;
+			for(Node child : children)
+				changed |= child.changed;
+		}
+
+		void render(String source, StringBuilder sb) {
+			if(!changed) {
+				sb.append(source, start, end);
+			} else if(replacement != null) {
+				sb.append(replacement);
+			} else if(value != null) {
+				sb.append(format(value));
+			} else {
+				int pos = start;
+				for(Node child : children) {
+					sb.append(source, pos, child.start);
+					child.render(source, sb);
+					pos = child.end;
+				}
+				sb.append(source, pos, end);
+			}
+		}
+	}
+
+	private static class ParseException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private static final ParseException INSTANCE = new ParseException();
+
+		private ParseException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private class Parser {
+		private final String source;
+		private final List<Token> tokens;
+		private int pos = 0;
+
+		Parser(String source, List<Token> tokens) {
+			this.source = source;
+			this.tokens = tokens;
+		}
+
+		Token peek() {
+			return tokens.get(pos);
+		}
+
+		Token next() {
+			return tokens.get(pos++);
+		}
+
+		Token expect(String op) throws ParseException {
+			if(!peek().is(op))
+				throw ParseException.INSTANCE;
+			return next();
+		}
+
+		Node expression() throws ParseException {
+			Node cond = binary(0);
+			if(!peek().is("?"))
+				return cond;
+			next();
+			Node a = expression();
+			expect(":");
+			Node b = expression();
+			Object value = null;
+			if(cond.value != null)
+				value = isTrue(cond.value) ? a.value : b.value;
+			Node node = new Node(cond.start, b.end, value, cond, a, b);
+			node.operator = true;
+			return node;
+		}
+
+		Node binary(int level) throws ParseException {
+			if(level >= BINARY_LEVELS.length)
+				return power();
+			Node left = binary(level + 1);
+			while(true) {
+				Token op = peek();
+				if(op.level != level)
+					return left;
+				next();
+				Node right = binary(level + 1);
+				Object value = left.value != null && right.value != null ? fold(op.text, left.value, right.value) : null;
+				left = new Node(left.start, right.end, value, left, right);
+				left.operator = true;
+			}
+		}
+
+		// DM binds unary operators tighter than **, so -2 ** 2 is 4.
+		Node unary() throws ParseException {
+			Token op = peek();
+			if(op.is("-") || op.is("+") || op.is("!") || op.is("~")) {
+				next();
+				Node operand = unary();
+				Object value = null;
+				if(operand.value instanceof Float) {
+					float f = (Float)operand.value;
+					switch(op.text) {
+					case "-": value = -f; break;
+					case "+": value = f; break;
+					case "!": value = f == 0 ? 1f : 0f; break;
+					case "~": value = (float)(~(int)f & 0xFFFFFF); break;
+					}
+				} else if(operand.value instanceof Str && op.is("!")) {
+					value = isTrue(operand.value) ? 0f : 1f;
+				}
+				Node node = new Node(op.start, operand.end, value, operand);
+				node.operator = true;
+				// Negative numbers are left as written.
+				if(op.is("-") && !operand.changed)
+					node.changed = false;
+				return node;
+			}
+			return postfix();
+		}
+
+		Node power() throws ParseException {
+			Node base = unary();
+			if(!peek().is("**"))
+				return base;
+			next();
+			Node exponent = power();
+			Object value = null;
+			if(base.value instanceof Float && exponent.value instanceof Float)
+				value = number((float)Math.pow((Float)base.value, (Float)exponent.value));
+			Node node = new Node(base.start, exponent.end, value, base, exponent);
+			node.operator = true;
+			return node;
+		}
+
+		Node postfix() throws ParseException {
+			Node node = primary();
+			while(true) {
+				if(peek().is("(")) {
+					List<Node> parts = new ArrayList<>();
+					parts.add(node);
+					next();
+					arguments(parts);
+					Token close = expect(")");
+					node = new Node(node.start, close.end, null, parts.toArray(new Node[parts.size()]));
+				} else if(peek().is("[")) {
+					next();
+					Node index = expression();
+					Token close = expect("]");
+					node = new Node(node.start, close.end, null, node, index);
+				} else if(peek().is(".")) {
+					next();
+					Token member = next();
+					if(member.type != TokenType.IDENT)
+						throw ParseException.INSTANCE;
+					node = new Node(node.start, member.end, null, node);
+				} else {
+					return node;
+				}
+			}
+		}
+
+		// Call arguments, including list("key" = value) style ones.
+		void arguments(List<Node> parts) throws ParseException {
+			if(peek().is(")"))
+				return;
+			while(true) {
+				parts.add(expression());
+				if(peek().is("=")) {
+					next();
+					parts.add(expression());
+				}
+				if(!peek().is(","))
+					return;
+				next();
+			}
+		}
+
+		Node primary() throws ParseException {
+			Token t = next();
+			switch(t.type) {
+			case NUMBER:
+			case STRING:
+			case RESOURCE:
+			case PATH:
+				return new Node(t.start, t.end, t.value);
+			case IDENT:
+				if(t.text.equals("new")) {
+					Node node = new Node(t.start, t.end, null);
+					if(peek().type == TokenType.PATH) {
+						Token path = next();
+						node = new Node(t.start, path.end, null);
+					}
+					return node;
+				}
+				return reference(t);
+			case OP:
+				if(t.is("(")) {
+					Node inner = expression();
+					Token close = expect(")");
+					return new Node(t.start, close.end, inner.value, inner);
+				}
+				throw ParseException.INSTANCE;
+			default:
+				throw ParseException.INSTANCE;
+			}
+		}
+
+		Node reference(Token t) {
+			Node node = new Node(t.start, t.end, null);
+			// Calls and members aren't globals, and type/parentType are bookkeeping, not real globals.
+			if(peek().is("(") || t.text.equals("type") || t.text.equals("parentType"))
+				return node;
+			Node global = global(t.text);
+			if(global == null)
+				return node;
+			if(global.value != null) {
+				node = new Node(t.start, t.end, global.value);
+				node.changed = true;
+			} else if(!global.operator) {
+				// Something that's not a constant but is one piece, like a path or a list. Written in its place like before.
+				node.replacement = global.text;
+				node.changed = true;
+			}
+			return node;
+		}
+	}
+
+	private static boolean isEqual(Object a, Object b) {
+		if(a instanceof Float && b instanceof Float)
+			return (float)(Float)a == (float)(Float)b;
+		return a.equals(b);
+	}
+
+	private static Object fold(String op, Object a, Object b) {
+		switch(op) {
+		case "||":
+			return isTrue(a) ? a : b;
+		case "&&":
+			return isTrue(a) ? b : a;
+		case "==":
+			return isEqual(a, b) ? 1f : 0f;
+		case "!=":
+		case "<>":
+			return isEqual(a, b) ? 0f : 1f;
+		}
+		if(a instanceof Str && b instanceof Str && op.equals("+"))
+			return new Str(((Str)a).raw + ((Str)b).raw);
+		if(!(a instanceof Float) || !(b instanceof Float))
+			return null;
+		float x = (Float)a;
+		float y = (Float)b;
+		switch(op) {
+		case "+": return number(x + y);
+		case "-": return number(x - y);
+		case "*": return number(x * y);
+		case "/": return y != 0 ? number(x / y) : null;
+		case "%": return (int)y != 0 ? (float)((int)x % (int)y) : null;
+		case "<": return x < y ? 1f : 0f;
+		case "<=": return x <= y ? 1f : 0f;
+		case ">": return x > y ? 1f : 0f;
+		case ">=": return x >= y ? 1f : 0f;
+		case "<<": return (float)(((int)x << (int)y) & 0xFFFFFF);
+		case ">>": return (float)((int)x >> (int)y);
+		case "&": return (float)((int)x & (int)y);
+		case "|": return (float)((int)x | (int)y);
+		case "^": return (float)((int)x ^ (int)y);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,112 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches every folder under a .dme for .dm and .dme files changing, and calls back once they've stopped changing
+ * for a bit, so saving a dozen files at once (or a git checkout) is one reload instead of a dozen.
+ *
+ * The callback runs on the watcher's own thread.
+ */
+public class DmeWatcher {
+	// Toggled from the Options menu.
+	public static boolean enabled = true;
+
+	// How long things have to stay quiet before the callback runs.
+	private static final long DEBOUNCE_MS = 500;
+
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> dirs = new HashMap<>();
+	private final Runnable onChange;
+	private final Thread thread;
+
+	public DmeWatcher(File dme, Runnable onChange) throws IOException {
+		this.onChange = onChange;
+		watchService = FileSystems.getDefault().newWatchService();
+		registerAll(dme.getAbsoluteFile().getParentFile().toPath());
+		thread = new Thread(this::run, "FastDMM .dm watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void registerAll(Path dir) {
+		String name = dir.getFileName() != null ? dir.getFileName().toString() : "";
+		// .git and node_modules usually contain fucktons of files and no code.
+		if(name.equals(".git") || name.equals("node_modules"))
+			return;
+		try {
+			dirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+			try(DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+				for(Path child : children) {
+					if(Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+						registerAll(child);
+				}
+			}
+		} catch(IOException e) {
+			// Folders that can't be read can't have code we'd see either.
+			System.err.println("Not watching " + dir + ": " + e);
+		}
+	}
+
+	public void close() {
+		thread.interrupt();
+		try {
+			watchService.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void run() {
+		try {
+			while(true) {
+				if(!handle(watchService.take()))
+					continue;
+				// Keep collecting until nothing's happened for a while.
+				WatchKey key;
+				while((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null)
+					handle(key);
+				try {
+					onChange.run();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		} catch(InterruptedException | ClosedWatchServiceException e) {
+			// Closed.
+		}
+	}
+
+	// Returns whether any code changed.
+	private boolean handle(WatchKey key) {
+		Path dir = dirs.get(key);
+		boolean changed = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == OVERFLOW) {
+				changed = true;
+				continue;
+			}
+			if(dir == null)
+				continue;
+			Path path = dir.resolve((Path)event.context());
+			if(event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				// A new folder can come with code already in it, say from a checkout.
+				registerAll(path);
+				changed = true;
+			}
+			String name = path.getFileName().toString().toLowerCase();
+			if(name.endsWith(".dm") || name.endsWith(".dme"))
+				changed = true;
+		}
+		if(!key.reset())
+			dirs.remove(key);
+		return changed;
+	}
+}
@@ -0,0 +1,113 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+import javax.swing.JTree;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * The object tree with only the types matching a search and whatever they're under. Which types show is worked out
+ * once when it's made, and each node's children are only filtered the first time they're asked for, JTree asks a lot.
+ * Make a new one for each search.
+ */
+public class FilteredObjectTree implements TreeModel {
+	// Don't expand the tree to show every match past this many, JTree gets slow.
+	private static final int MAX_EXPANDED = 500;
+
+	private final ObjectTree tree;
+	private final int[] matches;
+	// By type ID, whether it matches or has a subtype that does.
+	private final boolean[] shown;
+	private final Map<Object, List<ObjectTree.Item>> children = new HashMap<>();
+
+	public FilteredObjectTree(ObjectTree tree, String query) {
+		this.tree = tree;
+		matches = tree.getSearchIndex().matches(query);
+		shown = new boolean[tree.typesById.length];
+		for(int id : matches) {
+			for(ObjectTree.Item i = tree.typesById[id]; i != null && i.typeId >= 0 && !shown[i.typeId]; i = i.parent)
+				shown[i.typeId] = true;
+		}
+	}
+
+	public int getMatchCount() {
+		return matches.length;
+	}
+
+	/**
+	 * Expands the view so the matches can be seen, if there aren't too many of them.
+	 */
+	public void expandMatches(JTree view) {
+		if(matches.length > MAX_EXPANDED) {
+			for(ObjectTree.Item root : children(tree))
+				view.expandPath(new TreePath(new Object[] {tree, root}));
+			return;
+		}
+		for(int id : matches) {
+			TreePath path = tree.pathTo(tree.typesById[id]);
+			if(path != null && path.getParentPath() != null)
+				view.expandPath(path.getParentPath());
+		}
+	}
+
+	private boolean isShown(ObjectTree.Item item) {
+		return item != null && item.typeId >= 0 && item.typeId < shown.length && shown[item.typeId];
+	}
+
+	private List<ObjectTree.Item> children(Object parent) {
+		List<ObjectTree.Item> list = children.get(parent);
+		if(list == null) {
+			list = new ArrayList<>();
+			int count = tree.getChildCount(parent);
+			for(int i = 0; i < count; i++) {
+				Object child = tree.getChild(parent, i);
+				if(child instanceof ObjectTree.Item && isShown((ObjectTree.Item)child))
+					list.add((ObjectTree.Item)child);
+			}
+			children.put(parent, list);
+		}
+		return list;
+	}
+
+	@Override
+	public Object getRoot() {
+		return tree;
+	}
+
+	@Override
+	public Object getChild(Object parent, int index) {
+		return children(parent).get(index);
+	}
+
+	@Override
+	public int getChildCount(Object parent) {
+		return children(parent).size();
+	}
+
+	@Override
+	public boolean isLeaf(Object node) {
+		return node != tree && children(node).isEmpty();
+	}
+
+	@Override
+	public int getIndexOfChild(Object parent, Object child) {
+		return children(parent).indexOf(child);
+	}
+
+	@Override
+	public void valueForPathChanged(TreePath path, Object newValue) {
+		// Nope
+	}
+
+	@Override
+	public void addTreeModelListener(TreeModelListener l) {
+		// We don't change.
+	}
+
+	@Override
+	public void removeTreeModelListener(TreeModelListener l) {
+		// We don't change
+	}
+}
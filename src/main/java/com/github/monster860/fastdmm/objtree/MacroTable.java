@@ -0,0 +1,196 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+/**
+ * The #define's seen so far while parsing, and the thing that expands them in var values.
+ *
+ * An identifier is a run of letters, digits and underscores. It gets replaced if it's a macro and isn't right next to
+ * a quote, which is what the old MACRO_PATTERN loop did. Bodies are split into identifiers and text once when they're
+ * defined, and a macro's full expansion is remembered until the next #define or #undef, so a value is only ever
+ * scanned once no matter how deep the macros go. A macro that ends up using itself is left alone where it does,
+ * instead of looping forever.
+ */
+public class MacroTable {
+	private final Map<String, Macro> macros = new HashMap<>();
+	// Bumped on every change, so remembered expansions know when they've gone stale.
+	private int generation = 0;
+	// Used by expand, which only ever runs on the thread applying declarations.
+	private final StringBuilder out = new StringBuilder();
+
+	private static class Macro {
+		final String name;
+		final String body;
+		// Even indices are plain text, odd ones are identifiers. Always starts and ends with text, which can be empty.
+		final String[] parts;
+		String expanded;
+		int expandedGeneration = -1;
+		boolean expanding;
+
+		Macro(String name, String body) {
+			this.name = name;
+			this.body = body;
+			this.parts = split(unescape(body));
+		}
+	}
+
+	public void define(String name, String body) {
+		macros.put(name, new Macro(name, body));
+		generation++;
+	}
+
+	public void undef(String name) {
+		if(macros.remove(name) != null)
+			generation++;
+	}
+
+	public boolean isDefined(String name) {
+		return macros.containsKey(name);
+	}
+
+	/**
+	 * @return The body exactly as it was written in the #define, or null if it isn't defined.
+	 */
+	public String get(String name) {
+		Macro macro = macros.get(name);
+		return macro != null ? macro.body : null;
+	}
+
+	public Set<String> names() {
+		return Collections.unmodifiableSet(macros.keySet());
+	}
+
+	/**
+	 * @return The value with every macro in it expanded. The same string if there was nothing to expand.
+	 */
+	public String expand(String value) {
+		if(macros.isEmpty() || !hasMacro(value))
+			return value;
+		out.setLength(0);
+		expandInto(value, out);
+		return out.toString();
+	}
+
+	// Cheap check for the common case of a value without any macros in it.
+	private boolean hasMacro(String value) {
+		int len = value.length();
+		int i = 0;
+		while(i < len) {
+			if(!isIdentifierChar(value.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while(i < len && isIdentifierChar(value.charAt(i)))
+				i++;
+			if(isReplaceable(value, start, i) && macros.containsKey(value.substring(start, i)))
+				return true;
+		}
+		return false;
+	}
+
+	private void expandInto(String value, StringBuilder sb) {
+		int len = value.length();
+		int i = 0;
+		while(i < len) {
+			int textStart = i;
+			while(i < len && !isIdentifierChar(value.charAt(i)))
+				i++;
+			sb.append(value, textStart, i);
+			if(i >= len)
+				break;
+			int start = i;
+			while(i < len && isIdentifierChar(value.charAt(i)))
+				i++;
+			Macro macro = isReplaceable(value, start, i) ? macros.get(value.substring(start, i)) : null;
+			if(macro != null)
+				appendExpansion(macro, sb);
+			else
+				sb.append(value, start, i);
+		}
+	}
+
+	// Returns false if the expansion had to stop at a macro that was already being expanded.
+	private boolean appendExpansion(Macro macro, StringBuilder sb) {
+		if(macro.expandedGeneration == generation) {
+			sb.append(macro.expanded);
+			return true;
+		}
+		if(macro.expanding) {
+			sb.append(macro.name);
+			return false;
+		}
+		macro.expanding = true;
+		boolean complete = true;
+		int start = sb.length();
+		try {
+			String[] parts = macro.parts;
+			for(int p = 0; p < parts.length; p++) {
+				if((p & 1) == 0) {
+					sb.append(parts[p]);
+					continue;
+				}
+				Macro inner = macros.get(parts[p]);
+				if(inner != null)
+					complete &= appendExpansion(inner, sb);
+				else
+					sb.append(parts[p]);
+			}
+		} finally {
+			macro.expanding = false;
+		}
+		// What came out with a cycle cut short depends on where the expansion started, so that one isn't kept.
+		if(complete) {
+			macro.expanded = sb.substring(start);
+			macro.expandedGeneration = generation;
+		}
+		return complete;
+	}
+
+	// Splits a body into text and the identifiers in it that can be replaced.
+	private static String[] split(String body) {
+		List<String> parts = new ArrayList<>();
+		int len = body.length();
+		int textStart = 0;
+		int i = 0;
+		while(i < len) {
+			if(!isIdentifierChar(body.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while(i < len && isIdentifierChar(body.charAt(i)))
+				i++;
+			if(isReplaceable(body, start, i)) {
+				parts.add(body.substring(textStart, start));
+				parts.add(body.substring(start, i));
+				textStart = i;
+			}
+		}
+		parts.add(body.substring(textStart));
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	// Bodies used to go in as Matcher replacements, which drop the backslash in front of any character. Kept that way
+	// so values come out the same as before.
+	private static String unescape(String body) {
+		if(body.indexOf('\\') < 0)
+			return body;
+		StringBuilder sb = new StringBuilder(body.length());
+		for(int i = 0; i < body.length(); i++) {
+			char c = body.charAt(i);
+			if(c == '\\' && i + 1 < body.length())
+				c = body.charAt(++i);
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static boolean isReplaceable(String s, int start, int end) {
+		return (start == 0 || s.charAt(start - 1) != '"') && (end == s.length() || s.charAt(end) != '"');
+	}
+
+	private static boolean isIdentifierChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+}
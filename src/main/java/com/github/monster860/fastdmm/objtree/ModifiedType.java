@@ -35,20 +35,25 @@ public class ModifiedType extends ObjInstance {
 			while(varmatcher.find()) {
 				vars.put(varmatcher.group(1), varmatcher.group(2));
 			}
-			ModifiedType mt = new ModifiedType(vars, m.group(1));
-			mt.parent = objtree.get(m.group(1));
-			if(dmm.editor.modifiedTypes.containsKey(mt.toString())) {
-				mt = dmm.editor.modifiedTypes.get(mt.toString());
-			} else {
-				dmm.editor.modifiedTypes.put(mt.toString(), mt);
-				if(mt.parent != null) {
-					mt.parent.addInstance(mt);
-				}
-			}
-			return mt;
+			return fromParts(m.group(1), vars, objtree, dmm);
 		}
 		return null;
 	}
+
+	// Same as fromString, for callers that already split the path and the var list.
+	// Safe to call from several map loading threads at once.
+	public static final ModifiedType fromParts(String path, Map<String,String> vars, ObjectTree objtree, DMM dmm) {
+		ModifiedType mt = new ModifiedType(vars, path);
+		mt.parent = objtree.get(path);
+		ModifiedType existing = dmm.getModifiedTypes().putIfAbsent(mt.toString(), mt);
+		if(existing != null)
+			return existing;
+		mt.resolveVars();
+		if(mt.parent != null) {
+			mt.parent.addInstance(mt);
+		}
+		return mt;
+	}
 	
 	public static final ModifiedType deriveFrom(ObjInstance i) {
 		if(i instanceof ObjectTree.Item){
@@ -66,6 +71,30 @@ public class ModifiedType extends ObjInstance {
 	public Map<String, String> vars;
 	public String parentType;
 	public ObjectTree.Item parent;
+	// Own vars over the parent's resolved table, so getVar(int) doesn't have to hash the name. Null until the type
+	// is interned.
+	private volatile Resolved resolved;
+
+	private static final class Resolved {
+		// The parent's table at the time. Reloading the tree gives the parent a new one.
+		final ResolvedVars over;
+		final ResolvedVars vars;
+
+		Resolved(ResolvedVars over, ResolvedVars vars) {
+			this.over = over;
+			this.vars = vars;
+		}
+	}
+
+	/**
+	 * Builds the table getVar(int) reads from. Call it once the type is interned, its vars can't change after that.
+	 * Does nothing until the tree is complete.
+	 */
+	public void resolveVars() {
+		ResolvedVars inherited = parent != null ? parent.resolvedVars : null;
+		if(inherited != null)
+			resolved = new Resolved(inherited, new ResolvedVars.Builder().build(inherited, vars));
+	}
 	
 	@Override
 	public String getVar(String key) {
@@ -76,6 +105,29 @@ public class ModifiedType extends ObjInstance {
 		return null;
 	}
 	
+	@Override
+	public String getVar(int symbol) {
+		Resolved r = resolved;
+		// type and parentType aren't in resolved tables, see ResolvedVars.
+		if(r != null && symbol != VarSymbols.TYPE && symbol != VarSymbols.PARENT_TYPE) {
+			ResolvedVars inherited = parent.resolvedVars;
+			if(inherited != r.over && inherited != null) {
+				resolveVars();
+				r = resolved;
+			}
+			if(inherited == r.over)
+				return r.vars.get(symbol);
+		}
+		if(!vars.isEmpty()) {
+			String value = vars.get(VarSymbols.name(symbol));
+			if(value != null)
+				return value;
+		}
+		if(parent != null)
+			return parent.getVar(symbol);
+		return null;
+	}
+	
 	public String toString() {
 		StringBuilder out = new StringBuilder(parentType);
 		out.append('{');
@@ -135,6 +187,11 @@ public class ModifiedType extends ObjInstance {
 		return false;
 	}
 	
+	@Override
+	public boolean istype(ObjectTree.Item type) {
+		return parent != null && parent.istype(type);
+	}
+	
 	public boolean viewVariables(FastDMM editor) {
 		final JDialog dialog = new JDialog(editor, "View Variables", true);
 		
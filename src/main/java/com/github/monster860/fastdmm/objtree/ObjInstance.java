@@ -6,8 +6,18 @@ import java.util.regex.Pattern;
 
 public abstract class ObjInstance {
 	public abstract String getVar(String key);
+	
+	// Same as getVar(String), by var symbol. Types that have resolved their vars answer this without any string hashing.
+	public String getVar(int symbol) {
+		return getVar(VarSymbols.name(symbol));
+	}
 	public abstract String typeString();
 	public abstract boolean istype(String path);
+	
+	// Same as istype(String) with the type already looked up, which is a lot quicker on a complete tree.
+	public boolean istype(ObjectTree.Item type) {
+		return type != null && istype(type.path);
+	}
 	public abstract String toStringTGM();
 	
 	private int cachedDir = -1;
@@ -19,9 +29,21 @@ public abstract class ObjInstance {
 	private String cachedIconState = null;
 	private String cachedIcon = null;
 
+	// Forgets the vars worked out by the getters below, for when the types they come from have changed.
+	public void clearCachedVars() {
+		cachedDir = -1;
+		cachedPixelX = -1234;
+		cachedPixelY = -1234;
+		cachedLayer = -1234;
+		cachedPlane = -1234;
+		cachedColor = null;
+		cachedIconState = null;
+		cachedIcon = null;
+	}
+
 	public String getIcon() {
 		if(cachedIcon == null) {
-			String var = getVar("icon");
+			String var = getVar(VarSymbols.ICON);
 			if(var == null)
 				return cachedIcon = "";
 			Matcher m = Pattern.compile("'(.+)'").matcher(var);
@@ -35,7 +57,7 @@ public abstract class ObjInstance {
 
 	public String getIconState() {
 		if(cachedIconState == null) {
-			Matcher m = Pattern.compile("\"(.+)\"").matcher(getVar("icon_state"));
+			Matcher m = Pattern.compile("\"(.+)\"").matcher(getVar(VarSymbols.ICON_STATE));
 			if(m.find())
 				cachedIconState = m.group(1);
 			else
@@ -47,7 +69,7 @@ public abstract class ObjInstance {
 	public int getDir() {
 		if(cachedDir == -1) {
 			try {
-				cachedDir = Integer.parseInt(getVar("dir"));
+				cachedDir = Integer.parseInt(getVar(VarSymbols.DIR));
 			} catch (NumberFormatException e) {
 				cachedDir = 2;
 			}
@@ -58,7 +80,7 @@ public abstract class ObjInstance {
 	public int getPixelX() {
 		if(cachedPixelX == -1234) {
 			try {
-				cachedPixelX = Integer.parseInt(getVar("pixel_x"));
+				cachedPixelX = Integer.parseInt(getVar(VarSymbols.PIXEL_X));
 			} catch (NumberFormatException e) {
 				cachedPixelX = 2;
 			}
@@ -69,7 +91,7 @@ public abstract class ObjInstance {
 	public int getPixelY() {
 		if(cachedPixelY == -1234) {
 			try {
-				cachedPixelY = Integer.parseInt(getVar("pixel_y"));
+				cachedPixelY = Integer.parseInt(getVar(VarSymbols.PIXEL_Y));
 			} catch (NumberFormatException e) {
 				cachedPixelY = 2;
 			}
@@ -80,7 +102,7 @@ public abstract class ObjInstance {
 	public float getLayer() {
 		if(cachedLayer == -1234) {
 			try {
-				cachedLayer = Float.parseFloat(getVar("layer"));
+				cachedLayer = Float.parseFloat(getVar(VarSymbols.LAYER));
 			} catch (NumberFormatException e) {
 				cachedLayer = 2;
 			}
@@ -90,7 +112,7 @@ public abstract class ObjInstance {
 
 	public Color getColor() {
 		if(cachedColor == null) {
-			String var = getVar("color");
+			String var = getVar(VarSymbols.COLOR);
 			Matcher m = Pattern.compile("(#[\\d\\w][\\d\\w][\\d\\w][\\d\\w][\\d\\w][\\d\\w])").matcher(var);
 			if(m.find())
 				return cachedColor = Color.decode(m.group(1));
@@ -162,7 +184,7 @@ public abstract class ObjInstance {
 	public int getPlane() {
 		if(cachedPlane == -1234) {
 			try {
-				cachedPlane = Integer.parseInt(getVar("plane"));
+				cachedPlane = Integer.parseInt(getVar(VarSymbols.PLANE));
 			} catch (NumberFormatException e) {
 				cachedPlane = 0;
 			}
@@ -7,8 +7,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.ListModel;
 import javax.swing.event.ListDataEvent;
@@ -19,6 +18,8 @@ import javax.swing.tree.TreePath;
 
 public class ObjectTree implements TreeModel {
 	public HashMap<String,Item> items = new HashMap<>();
+	// Every type by its ID, see numberTypes. Empty until the tree is complete.
+	public Item[] typesById = new Item[0];
 	public String dmePath;
 
 	// List of all FILE_DIR definitions.
@@ -144,6 +145,42 @@ public class ObjectTree implements TreeModel {
 			return null;
 	}
 	
+	/**
+	 * @return The ID of the type with this path, or -1 if there's no such type or the tree isn't complete yet.
+	 */
+	public int typeId(String path) {
+		Item item = items.get(path);
+		return item != null ? item.typeId : -1;
+	}
+	
+	public Item getType(int id) {
+		return typesById[id];
+	}
+	
+	private TypeSearchIndex searchIndex;
+	
+	// Built the first time it's asked for, the tree has to be complete by then.
+	public synchronized TypeSearchIndex getSearchIndex() {
+		if(searchIndex == null)
+			searchIndex = new TypeSearchIndex(this);
+		return searchIndex;
+	}
+	
+	/**
+	 * @return The path to the type in this tree model, or null if it isn't under any of /area, /mob, /obj or /turf.
+	 */
+	public TreePath pathTo(Item item) {
+		LinkedList<Object> nodes = new LinkedList<>();
+		for(Item i = item; i != null && nodes.size() <= items.size(); i = i.parent) {
+			nodes.addFirst(i);
+			if(i == get("/area") || i == get("/mob") || i == get("/obj") || i == get("/turf")) {
+				nodes.addFirst(this);
+				return new TreePath(nodes.toArray());
+			}
+		}
+		return null;
+	}
+	
 	public void addItem(Item item)
 	{
 		items.put(item.path, item);
@@ -167,67 +204,40 @@ public class ObjectTree implements TreeModel {
 
 
 	public void completeTree() {
-		// Clear children and parse expressions
-		
+		// Clear children and fold constant expressions. Globals get worked out first, once, since everything else
+		// refers to them.
 		Item global = getGlobal();
+		ConstantEvaluator evaluator = new ConstantEvaluator(global != null ? global.vars : Collections.emptyMap());
 		
-		System.gc();
+		if(ObjectTreeParser.parallelParsing && ForkJoinPool.getCommonPoolParallelism() > 1)
+			items.values().parallelStream().forEach(i -> completeItem(i, global, evaluator));
+		else
+			items.values().forEach(i -> completeItem(i, global, evaluator));
+		linkSubtypes();
+		numberTypes();
+		resolveVars();
 		
-		for(Item i : items.values()) {
-			i.subtypes.clear();
-			
-			for(Entry<String, String> e : i.vars.entrySet()) {
-				String val = e.getValue();
-				String origVal = "";
-				try {
-				while(!origVal.equals(val)) {
-					origVal = val;
-					// Trust me, this is the fastest way to parse the macros.
-					Matcher m = Pattern.compile("(?<![\\d\\w\"/])\\w+(?![\\d\\w\"/])").matcher(val);
-					StringBuffer outVal = new StringBuffer();
-					while(m.find()) {
-						if(global.vars.containsKey(m.group(0)))
-							m.appendReplacement(outVal, global.vars.get(m.group(0)));
-						else
-							m.appendReplacement(outVal, m.group(0));
-					}
-					m.appendTail(outVal);
-					val = outVal.toString();
-					
-					// Parse additions/subtractions.
-					m = Pattern.compile("([\\d\\.]+)[ \\t]*(\\+|\\-)[ \\t]*([\\d\\.]+)").matcher(val);
-					outVal = new StringBuffer();
-					while(m.find()) {
-						switch(m.group(2)) {
-						case "+":
-							m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) + Float.parseFloat(m.group(3)))+"");
-							break;
-						case "-":
-							m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) / Float.parseFloat(m.group(3)))+"");
-							break;
-						}
-					}
-					m.appendTail(outVal);
-					val = outVal.toString();
-					
-					// Parse parentheses
-					m = Pattern.compile("\\(([\\d\\.]+)\\)").matcher(val);
-					outVal = new StringBuffer();
-					while(m.find()) {
-						m.appendReplacement(outVal, m.group(1));
-					}
-					m.appendTail(outVal);
-					val = outVal.toString();
-				}
-				} catch (OutOfMemoryError ex) {
-					System.err.println("OUT OF MEMORY PROCESSING ITEM " + i.typeString() + " VAR " + e.getKey() + " = " + e.getValue());
-					throw ex;
-				}
-				
-				i.setVar(e.getKey(), val);
-			}
+		try {
+			icon_size = Integer.parseInt(get("/world").getVar("icon_size"));
+		} catch(NumberFormatException e) {
+			icon_size = 32;
 		}
-		System.gc();
+	}
+	
+	private static void completeItem(Item i, Item global, ConstantEvaluator evaluator) {
+		i.subtypes.clear();
+		for(Entry<String, String> e : i.vars.entrySet()) {
+			if(e.getKey().equals("type") || e.getKey().equals("parentType"))
+				continue;
+			if(i == global)
+				e.setValue(evaluator.getGlobal(e.getKey()));
+			else
+				e.setValue(evaluator.evaluate(e.getValue()));
+		}
+	}
+	
+	// Fills in subtypes from the parentType vars. Expects the subtype lists to be empty.
+	void linkSubtypes() {
 		// Assign parents/children
 		for(Item i : items.values()) {
 			Item parent = get(i.getVar("parentType"));
@@ -236,19 +246,130 @@ public class ObjectTree implements TreeModel {
 				parent.subtypes.add(i);
 			}
 		}
-		System.gc();
 		// Sort children
 		for(Item i : items.values()) {
 			i.subtypes.sort((arg0, arg1) -> arg0.path.compareToIgnoreCase(arg1.path));
 		}
-		
-		try {
-			icon_size = Integer.parseInt(get("/world").getVar("icon_size"));
-		} catch(NumberFormatException e) {
-			icon_size = 32;
+	}
+	
+	/**
+	 * Brings this tree up to date with a newer parse of the same environment. Types that are still there keep their
+	 * Item, so the maps using them don't notice anything except the new vars. Both trees have to be complete, and
+	 * the other one can't be used afterwards, its new types get moved over.
+	 * @return How many types were added, removed or had their vars changed.
+	 */
+	public int update(ObjectTree fresh) {
+		int changes = 0;
+		for(Iterator<Entry<String, Item>> it = items.entrySet().iterator(); it.hasNext(); ) {
+			Entry<String, Item> e = it.next();
+			if(!fresh.items.containsKey(e.getKey())) {
+				it.remove();
+				// Anything still using it can only get at it through the old parent links now.
+				e.getValue().typeId = -1;
+				e.getValue().lastSubtypeId = -1;
+				changes++;
+			}
+		}
+		Map<Item, String> parents = new HashMap<>();
+		for(Entry<String, Item> e : fresh.items.entrySet()) {
+			Item freshItem = e.getValue();
+			Item item = items.get(e.getKey());
+			if(item == null) {
+				items.put(e.getKey(), item = freshItem);
+				changes++;
+			} else if(!item.vars.equals(freshItem.vars)) {
+				item.vars = freshItem.vars;
+				changes++;
+			}
+			parents.put(item, freshItem.parent != null ? freshItem.parent.path : null);
+		}
+		for(Entry<Item, String> e : parents.entrySet())
+			e.getKey().parent = e.getValue() != null ? get(e.getValue()) : null;
+		fileDirs = fresh.fileDirs;
+		icon_size = fresh.icon_size;
+
+		for(Item i : items.values()) {
+			i.subtypes.clear();
+			i.resolvedVars = null;
+		}
+		linkSubtypes();
+		numberTypes();
+		resolveVars();
+		synchronized(this) {
+			searchIndex = null;
+		}
+		return changes;
+	}
+	
+	// Numbers the types depth first, so the subtypes of a type (and theirs, and so on) are exactly the IDs from its
+	// own up to its lastSubtypeId, which makes istype a range check. Goes by the parent links like istype always has,
+	// the subtypes lists leave out types whose parentType doesn't exist.
+	void numberTypes() {
+		Map<Item, List<Item>> children = new HashMap<>();
+		List<Item> roots = new ArrayList<>();
+		for(Item i : items.values()) {
+			i.typeId = -1;
+			i.tree = this;
+			if(i.parent != null && items.get(i.parent.path) == i.parent)
+				children.computeIfAbsent(i.parent, p -> new ArrayList<>()).add(i);
+			else
+				roots.add(i);
+		}
+		typesById = new Item[items.size()];
+		int next = 0;
+		for(Item root : roots) {
+			if(root.typeId < 0)
+				next = numberType(root, children, next);
+		}
+		// Anything left over is stuck in a parentType loop.
+		for(Item i : items.values()) {
+			if(i.typeId < 0)
+				next = numberType(i, children, next);
+		}
+	}
+	
+	private int numberType(Item i, Map<Item, List<Item>> children, int next) {
+		i.typeId = next;
+		typesById[next++] = i;
+		List<Item> subtypes = children.get(i);
+		if(subtypes != null) {
+			for(Item subtype : subtypes) {
+				if(subtype.typeId < 0)
+					next = numberType(subtype, children, next);
+			}
+		}
+		i.lastSubtypeId = next - 1;
+		return next;
+	}
+	
+	// Builds every type's resolved var table and swaps its own vars for a compact read-only copy. Needs the parents
+	// linked, and nothing can set vars on the tree afterwards.
+	void resolveVars() {
+		ResolvedVars.Builder builder = new ResolvedVars.Builder();
+		Set<Item> resolving = new HashSet<>();
+		for(Item i : items.values())
+			resolveVars(i, builder, resolving);
+		for(Item i : items.values()) {
+			if(i.vars instanceof SortedMap)
+				i.vars = new CompactVarMap((SortedMap<String, String>)i.vars);
 		}
 	}
 	
+	private void resolveVars(Item i, ResolvedVars.Builder builder, Set<Item> resolving) {
+		if(i.resolvedVars != null)
+			return;
+		ResolvedVars inherited = ResolvedVars.EMPTY;
+		// A parentType loop only stops here, the type at the end of it inherits nothing.
+		if(i.parent != null && resolving.add(i)) {
+			resolveVars(i.parent, builder, resolving);
+			resolving.remove(i);
+			if(i.parent.resolvedVars != null)
+				inherited = i.parent.resolvedVars;
+		}
+		if(i.resolvedVars == null)
+			i.resolvedVars = builder.build(inherited, i.vars);
+	}
+	
 	public static class Item extends ObjInstance implements ListModel<ObjInstance> {
 		public Item(Item parent, String path)
 		{
@@ -272,6 +393,11 @@ public class ObjectTree implements TreeModel {
 		}
 		
 		public boolean istype(String path) {
+			if(typeId >= 0) {
+				Item type = tree.items.get(path);
+				if(type != null && type.typeId >= 0)
+					return istype(type);
+			}
 			if(this.path.equals(path))
 				return true;
 			if(parent != null)
@@ -279,6 +405,15 @@ public class ObjectTree implements TreeModel {
 			return false;
 		}
 		
+		@Override
+		public boolean istype(Item type) {
+			if(type == null)
+				return false;
+			if(typeId >= 0 && type.typeId >= 0 && type.tree == tree)
+				return type.typeId <= typeId && typeId <= type.lastSubtypeId;
+			return istype(type.path);
+		}
+		
 		public void setVar(String key, String value)
 		{
 			vars.put(key, value);
@@ -292,6 +427,10 @@ public class ObjectTree implements TreeModel {
 		
 		public String getVar(String key)
 		{
+			if(resolvedVars != null) {
+				int symbol = VarSymbols.lookup(key);
+				return symbol >= 0 ? getVar(symbol) : null;
+			}
 			if(vars.containsKey(key))
 				return vars.get(key);
 			if(parent != null)
@@ -299,8 +438,26 @@ public class ObjectTree implements TreeModel {
 			return null;
 		}
 		
+		@Override
+		public String getVar(int symbol)
+		{
+			if(resolvedVars == null)
+				return getVar(VarSymbols.name(symbol));
+			if(symbol == VarSymbols.TYPE || symbol == VarSymbols.PARENT_TYPE)
+				return vars.get(VarSymbols.name(symbol));
+			return resolvedVars.get(symbol);
+		}
+		
 		public Map<String, String> getAllVars() {
 			Map<String, String> allVars = new TreeMap<>();
+			if(resolvedVars != null) {
+				for(int i = 0; i < resolvedVars.size(); i++)
+					allVars.put(VarSymbols.name(resolvedVars.symbolAt(i)), resolvedVars.valueAt(i));
+				allVars.put("type", vars.get("type"));
+				if(vars.containsKey("parentType"))
+					allVars.put("parentType", vars.get("parentType"));
+				return allVars;
+			}
 			if(parent != null)
 				allVars.putAll(parent.getAllVars());
 			allVars.putAll(vars);
@@ -311,9 +468,15 @@ public class ObjectTree implements TreeModel {
 		public ArrayList<Item> subtypes = new ArrayList<>();
 		public Item parent = null;
 		public Map<String, String> vars = new TreeMap<>();
+		// Own and inherited vars together, filled in once the tree is complete. Null until then.
+		public ResolvedVars resolvedVars;
+		// Set by numberTypes once the tree is complete, -1 until then and for types added afterwards.
+		public int typeId = -1;
+		public int lastSubtypeId = -1;
+		ObjectTree tree;
 		public List<ObjInstance> instances = new ArrayList<>();
 		
-		public void addInstance(ObjInstance instance) {
+		public synchronized void addInstance(ObjInstance instance) {
 			if(instances.contains(instance))
 				return;
 			instances.add(instance);
@@ -331,7 +494,7 @@ public class ObjectTree implements TreeModel {
 			}
 		}
 		
-		public void removeInstance(ObjInstance instance) {
+		public synchronized void removeInstance(ObjInstance instance) {
 			int index = instances.indexOf(instance);
 			if(index == -1)
 				return;
@@ -0,0 +1,270 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import com.github.monster860.fastdmm.objtree.ObjectTreeParser.Declaration;
+import com.github.monster860.fastdmm.objtree.ObjectTreeParser.ParsedFile;
+
+/**
+ * Keeps the result of parsing a .dme in ~/.fastdmm/cache so the next open doesn't have to redo it.
+ *
+ * There are two files per .dme. The tree file is the finished ObjectTree (after completeTree) plus the size and date
+ * of every file that went into it; if none of them changed, the tree comes straight out of it. The declarations
+ * file has each .dm file's tokenized lines. If something did change, the parse runs again but only changed files
+ * get read and tokenized, everything else comes from here. Applying always runs over every file in include order,
+ * so a changed #define still reaches every file after it.
+ */
+public class ObjectTreeCache {
+	// Toggled from the Options menu.
+	public static boolean enabled = true;
+
+	private static final int TREE_MAGIC = 0x46444F54; // "FDOT"
+	private static final int DECLARATIONS_MAGIC = 0x46444F44; // "FDOD"
+	private static final int VERSION = 2;
+
+	private final File dme;
+	private final File treeFile;
+	private final File declarationsFile;
+
+	private Map<String, ParsedFile> oldDeclarations;
+
+	public ObjectTreeCache(File dme) {
+		this.dme = dme.getAbsoluteFile();
+		String dir = System.getProperty("user.home") + File.separator + ".fastdmm" + File.separator + "cache";
+		String name = dme.getName() + "-" + Integer.toHexString(this.dme.getPath().hashCode());
+		treeFile = new File(dir, name + ".objtree");
+		declarationsFile = new File(dir, name + ".decls");
+	}
+
+	/**
+	 * @return The finished tree, or null if there's no cache entry or any file that went into it has changed.
+	 */
+	public ObjectTree loadTree() {
+		if(!treeFile.exists())
+			return null;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(treeFile.toPath()));
+			if(in.getInt() != TREE_MAGIC || in.getInt() != VERSION)
+				return null;
+			if(!dme.getPath().equals(readString(in)) || in.getInt() != stddefHash())
+				return null;
+			int fileCount = in.getInt();
+			for(int i = 0; i < fileCount; i++) {
+				if(!isUnchanged(new File(readString(in)), in.getLong(), in.getLong()))
+					return null;
+			}
+
+			ObjectTree tree = new ObjectTree();
+			tree.items.clear();
+			tree.fileDirs.clear();
+			int dirCount = in.getInt();
+			for(int i = 0; i < dirCount; i++)
+				tree.fileDirs.add(Paths.get(readString(in)));
+			tree.icon_size = in.getInt();
+
+			int itemCount = in.getInt();
+			String[] parents = new String[itemCount];
+			ObjectTree.Item[] items = new ObjectTree.Item[itemCount];
+			for(int i = 0; i < itemCount; i++) {
+				ObjectTree.Item item = new ObjectTree.Item(readString(in));
+				parents[i] = in.get() != 0 ? readString(in) : null;
+				item.vars.clear();
+				int varCount = in.getInt();
+				for(int v = 0; v < varCount; v++)
+					item.vars.put(readString(in), readString(in));
+				items[i] = item;
+				tree.addItem(item);
+			}
+			for(int i = 0; i < itemCount; i++) {
+				if(parents[i] != null)
+					items[i].parent = tree.get(parents[i]);
+			}
+			tree.linkSubtypes();
+			tree.numberTypes();
+			tree.resolveVars();
+			return tree;
+		} catch(Exception e) {
+			// Broken or from an older version, a normal parse will replace it.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return The declarations cached for the file, or null if there aren't any for it at this size and date.
+	 *         Called from the parser's worker threads.
+	 */
+	synchronized List<Declaration> getDeclarations(File file, long size, long lastModified) {
+		if(oldDeclarations == null)
+			oldDeclarations = readDeclarations();
+		ParsedFile parsed = oldDeclarations.get(file.getAbsolutePath());
+		if(parsed == null || parsed.size != size || parsed.lastModified != lastModified)
+			return null;
+		return parsed.declarations;
+	}
+
+	/**
+	 * Writes both cache files for a parser that has finished, after completeTree has been run on its tree.
+	 */
+	public void store(ObjectTreeParser parser) {
+		if(parser.parsedFiles == null)
+			return;
+		try {
+			treeFile.getParentFile().mkdirs();
+			write(treeFile, out -> {
+				out.writeInt(TREE_MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, dme.getPath());
+				out.writeInt(stddefHash());
+				out.writeInt(parser.parsedFiles.size());
+				for(ParsedFile parsed : parser.parsedFiles) {
+					writeString(out, parsed.file.getAbsolutePath());
+					out.writeLong(parsed.size);
+					out.writeLong(parsed.lastModified);
+				}
+
+				ObjectTree tree = parser.tree;
+				out.writeInt(tree.fileDirs.size());
+				for(Path dir : tree.fileDirs)
+					writeString(out, dir.toString());
+				out.writeInt(tree.icon_size);
+				out.writeInt(tree.items.size());
+				for(ObjectTree.Item item : tree.items.values()) {
+					writeString(out, item.path);
+					out.writeByte(item.parent != null ? 1 : 0);
+					if(item.parent != null)
+						writeString(out, item.parent.path);
+					out.writeInt(item.vars.size());
+					for(Map.Entry<String, String> var : item.vars.entrySet()) {
+						writeString(out, var.getKey());
+						writeString(out, var.getValue());
+					}
+				}
+			});
+			write(declarationsFile, out -> {
+				out.writeInt(DECLARATIONS_MAGIC);
+				out.writeInt(VERSION);
+				int count = 0;
+				for(ParsedFile parsed : parser.parsedFiles) {
+					if(parsed.declarations != null)
+						count++;
+				}
+				out.writeInt(count);
+				for(ParsedFile parsed : parser.parsedFiles) {
+					if(parsed.declarations == null)
+						continue;
+					writeString(out, parsed.file.getAbsolutePath());
+					out.writeLong(parsed.size);
+					out.writeLong(parsed.lastModified);
+					out.writeInt(parsed.declarations.size());
+					for(Declaration d : parsed.declarations) {
+						writeNullableString(out, d.directive);
+						writeNullableString(out, d.objectPath);
+						writeNullableString(out, d.varName);
+						writeNullableString(out, d.value);
+					}
+				}
+			});
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private Map<String, ParsedFile> readDeclarations() {
+		Map<String, ParsedFile> files = new HashMap<>();
+		if(!declarationsFile.exists())
+			return files;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(declarationsFile.toPath()));
+			if(in.getInt() != DECLARATIONS_MAGIC || in.getInt() != VERSION)
+				return files;
+			int fileCount = in.getInt();
+			for(int i = 0; i < fileCount; i++) {
+				File file = new File(readString(in));
+				long size = in.getLong();
+				long lastModified = in.getLong();
+				int count = in.getInt();
+				List<Declaration> declarations = new ArrayList<>(count);
+				for(int d = 0; d < count; d++) {
+					String directive = readNullableString(in);
+					String objectPath = readNullableString(in);
+					String varName = readNullableString(in);
+					String value = readNullableString(in);
+					declarations.add(directive != null ? new Declaration(directive) : new Declaration(objectPath, varName, value));
+				}
+				files.put(file.getPath(), new ParsedFile(file, size, lastModified, declarations));
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			files.clear();
+		}
+		return files;
+	}
+
+	private static boolean isUnchanged(File file, long size, long lastModified) {
+		if(size < 0)
+			return !file.exists();
+		return file.exists() && file.length() == size && file.lastModified() == lastModified;
+	}
+
+	private static int stddefHash() throws IOException {
+		return StddefSnapshot.stddefHash();
+	}
+
+	interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	// Writes under a temporary name and moves it into place, so a half written cache file never gets read.
+	static void write(File file, Writer writer) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				writer.write(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		if(s == null)
+			out.writeInt(-1);
+		else
+			writeString(out, s);
+	}
+
+	static String readString(ByteBuffer in) {
+		int len = in.getInt();
+		String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+		in.position(in.position() + len);
+		return s;
+	}
+
+	private static String readNullableString(ByteBuffer in) {
+		int len = in.getInt(in.position());
+		if(len < 0) {
+			in.getInt();
+			return null;
+		}
+		return readString(in);
+	}
+}
@@ -4,6 +4,7 @@ import com.github.monster860.fastdmm.CachedPattern;
 import com.github.monster860.fastdmm.Util;
 
 import java.awt.BorderLayout;
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.File;
@@ -11,9 +12,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,79 +34,147 @@ import javax.swing.JProgressBar;
 // I'm still amazed that this runs faster than BYOND's object tree generator, despite it being written in Java.
 
 public class ObjectTreeParser {
-	boolean isCommenting = false;
-	boolean inMultilineString = false;
-	int multilineStringDepth = 0;
-	int parenthesisDepth = 0;
-	int stringDepth = 0;
-	int stringExpDepth = 0;
-	int parenthesesDepth = 0;
-	int[] arrayDepth = new int[50];
+	CommentStripper comments = new CommentStripper();
 	
 	public ObjectTree tree;
 	
-	public Map<String, String> macros = new HashMap<>();
+	public MacroTable macros = new MacroTable();
 	public JFrame modalParent;
 
     private static final CachedPattern QUOTES_PATTERN = new CachedPattern("^\"(.*)\"$");
 	private static final CachedPattern DEFINE_PATTERN = new CachedPattern("#define +([\\d\\w]+) +(.+)");
 	private static final CachedPattern UNDEF_PATTERN  = new CachedPattern("#undef[ \\t]*([\\d\\w]+)");
-	private static final CachedPattern MACRO_PATTERN  = new CachedPattern("(?<![\\d\\w\"])\\w+(?![\\d\\w\"])");
+
+	// Read and tokenize included files on a thread pool while earlier ones are being applied. Toggled from the Options menu.
+	public static boolean parallelParsing = true;
+
+	private IncludePrefetcher prefetcher;
+
+	// Stage 2. Always lex, except in ObjectTreeParserBench, which runs the old tokenization through the same parse.
+	private final Function<List<String>, List<Declaration>> tokenizer;
+
+	// Optional. Unchanged files get their declarations from here instead of being read again.
+	public ObjectTreeCache cache;
+	// Every file that went into the tree, for the cache to check next time. Only kept when there's a cache.
+	List<ParsedFile> parsedFiles;
 
     public ObjectTreeParser() {
-		tree = new ObjectTree();
+		this(new ObjectTree());
 	}
 
 	public ObjectTreeParser(ObjectTree tree) {
+		this(tree, ObjectTreeParser::lex);
+	}
+
+	ObjectTreeParser(ObjectTree tree, Function<List<String>, List<Declaration>> tokenizer) {
 		this.tree = tree;
+		this.tokenizer = tokenizer;
 	}
 
 	public void parseDME(File file) throws IOException {
-		// Parse stddef.dm for macros and such.
-		doSubParse(new BufferedReader(new InputStreamReader(Util.getFile("stddef.dm"))), Paths.get("stddef.dm"));
+		// stddef.dm for macros and such. The build parses it ahead of time, if that's there it's used as is.
+		if(!StddefSnapshot.load(this))
+			parseStddef();
 
-		doParse(new BufferedReader(new FileReader(file)), file.toPath(), true);
+		ExecutorService pool = null;
+		if(parallelParsing && Runtime.getRuntime().availableProcessors() > 1) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "FastDMM include parser");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		try {
+			if(pool != null)
+				prefetcher = new IncludePrefetcher(pool, cache, tokenizer);
+			if(cache != null)
+				parsedFiles = new ArrayList<>();
+			apply(readFile(file).declarations, file.toPath(), true);
+		} finally {
+			prefetcher = null;
+			if(pool != null)
+				pool.shutdownNow();
+		}
+	}
+
+	void parseStddef() throws IOException {
+		doSubParse(new BufferedReader(new InputStreamReader(Util.getFile("stddef.dm"))), Paths.get("stddef.dm"));
 	}
 
 	public void doParse(BufferedReader br, Path currentFile, boolean isMainFile) throws IOException
 	{
+		List<Declaration> declarations = tokenize(readLines(br));
+		apply(declarations, currentFile, isMainFile);
+
+		// Reset variables
+		comments.reset();
+	}
+
+	// Stage 1: turns tabs into spaces, strips all the comments, and puts multiline statements on one line.
+	private List<String> readLines(BufferedReader br) throws IOException {
 		String line = null;
 		ArrayList<String> lines = new ArrayList<>();
-		StringBuilder runOn = new StringBuilder();;
-		int includeCount = 0;
-		// This part turns spaces into tabs, strips all the comments, and puts multiline statements on one line.
-		while ((line = br.readLine()) != null) {
-			line = stripComments(line);
-			line = line.replaceAll("\\t", " ");
-			if(!line.trim().isEmpty()) {
-				if(line.endsWith("\\")) {
-					line = line.substring(0, line.length() - 1);
-					runOn.append(line);
-				} else if(inMultilineString) {
-					runOn.append(line);
-					runOn.append("\\n");
-				} else if(parenthesisDepth > 0) {
-					runOn.append(line);
-				} else {
-					runOn.append(line);
-					line = runOn.toString();
-					runOn.setLength(0);
-					lines.add(line);
-					if(isMainFile && line.trim().startsWith("#include"))
-						includeCount++;
+		StringBuilder runOn = new StringBuilder();
+		try {
+			while ((line = br.readLine()) != null) {
+				line = comments.stripComments(line);
+				line = line.replace('\t', ' ');
+				if(!line.trim().isEmpty()) {
+					if(line.endsWith("\\")) {
+						line = line.substring(0, line.length() - 1);
+						runOn.append(line);
+					} else if(comments.inMultilineString) {
+						runOn.append(line);
+						runOn.append("\\n");
+					} else if(comments.parenthesisDepth > 0) {
+						runOn.append(line);
+					} else {
+						runOn.append(line);
+						line = runOn.toString();
+						runOn.setLength(0);
+						lines.add(line);
+					}
 				}
 			}
+		} finally {
+			br.close();
 		}
-		br.close();
+		return lines;
+	}
+
+	private List<Declaration> tokenize(List<String> lines) {
+		return tokenizer.apply(lines);
+	}
 
-		ArrayList<String> pathTree = new ArrayList<>();
+	// Stage 2: works out what object and var every line is about. Doesn't depend on macros or the tree, so it can
+	// run for a file before the files included ahead of it have been applied.
+	static List<Declaration> lex(List<String> lines) {
+		List<Declaration> declarations = new ArrayList<>(lines.size());
+		LineLexer lexer = new LineLexer();
+		for (String line : lines)
+			declarations.add(lexer.lex(line));
+		return declarations;
+	}
+
+	// Stage 3: puts the declarations into the tree, expanding macros as they're defined at that point.
+	private void apply(List<Declaration> declarations, Path currentFile, boolean isMainFile) throws IOException {
+		int includeCount = 0;
+		if(isMainFile) {
+			for (Declaration d : declarations) {
+				if (d.directive != null && d.directive.startsWith("#include"))
+					includeCount++;
+			}
+			if (prefetcher != null)
+				prefetcher.queue(declarations, currentFile);
+		}
 
 		int currentInclude = 0;
 
 		final JProgressBar[] dpb = new JProgressBar[1];
 		final JDialog[] dlg = new JDialog[1];
 		final JLabel[] lbl = new JLabel[1];
-		if(isMainFile) {
+		// No progress dialog when there's no screen to put it on, like in the benchmark.
+		if(isMainFile && !GraphicsEnvironment.isHeadless()) {
 			final JDialog tdlg = new JDialog(modalParent, "Object Tree Generation", false);
 			dlg[0] = tdlg;
 			dpb[0] = new JProgressBar(0, includeCount);
@@ -115,27 +189,13 @@ public class ObjectTreeParser {
 			t.start();
 		}
 
-        for (String line1 : lines) {
-            line = line1;
+        for (Declaration d : declarations) {
             // Process #include, #define, and #undef
-            if (line.trim().startsWith("#")) {
-                line = line.trim();
+            if (d.directive != null) {
+                String line = d.directive;
 				if (line.startsWith("#include")) {
-					// Be robust to malformed includes and different spacing
-					String path = null;
-					int firstQuote = line.indexOf('"');
-					int lastQuote = line.lastIndexOf('"');
-					if (firstQuote >= 0 && lastQuote > firstQuote) {
-						path = line.substring(firstQuote + 1, lastQuote);
-					} else {
-						// Try angle brackets (rare in DM, but cheap to support)
-						int lt = line.indexOf('<');
-						int gt = line.lastIndexOf('>');
-						if (lt >= 0 && gt > lt) {
-							path = line.substring(lt + 1, gt);
-						}
-					}
-					if (path == null || path.trim().isEmpty()) {
+					String path = includePath(line);
+					if (path == null) {
 						System.err.println("Warning: Skipping malformed include in " + currentFile.getFileName() + ": " + line);
 						continue;
 					}
@@ -144,12 +204,20 @@ public class ObjectTreeParser {
 						if (lbl[0] != null) javax.swing.SwingUtilities.invokeLater(() -> lbl[0].setText(p));
 					}
                     if (path.endsWith(".dm") || path.endsWith(".dme")) {
-                        File includeFile = new File(currentFile.getParent().toFile(), Util.separatorsToSystem(path));
+                        File includeFile = includeFile(currentFile, path);
                         if (!includeFile.exists()) {
                             System.err.println(currentFile.getFileName() + " references a nonexistent file: " + includeFile.getAbsolutePath());
+                            // Still goes in the list, so the cache notices when it shows up.
+                            if (parsedFiles != null)
+                                parsedFiles.add(new ParsedFile(includeFile, -1, 0, null));
                             continue;
                         }
-	                    doSubParse(new BufferedReader(new FileReader(includeFile)), includeFile.toPath());
+                        ParsedFile included = isMainFile && prefetcher != null ? prefetcher.take(includeFile) : null;
+                        if (included == null)
+                            included = readFile(includeFile);
+                        else if (parsedFiles != null)
+                            parsedFiles.add(included);
+                        applySubParse(included.declarations, includeFile.toPath());
                     }
 					if (isMainFile) {
 						currentInclude++;
@@ -171,181 +239,362 @@ public class ObjectTreeParser {
 							}
 
 						} else {
-							macros.put(m.group(1), m.group(2).replace("$", "\\$"));
+							macros.define(m.group(1), m.group(2));
 						}
                     }
                 }
                 else if (line.startsWith("#undef")) {
                     Matcher m = UNDEF_PATTERN.getMatcher(line);
-                    if (m.find() && macros.containsKey(m.group(1))) {
-                        macros.remove(m.group(1));
+                    if (m.find()) {
+                        macros.undef(m.group(1));
                     }
                 }
 
                 continue;
             }
-            // How far is this line indented?
-            int level = 0;
-            for (int j = 0; j < line.length(); j++) {
-                if (line.charAt(j) == ' ')
-                    level++;
-                else
-                    break;
-            }
-            // Rebuild the path tree.
-            for (int j = pathTree.size(); j <= level; j++)
-                pathTree.add("");
-            pathTree.set(level, cleanPath(line.trim()));
-            if (pathTree.size() > level + 1)
-                for (int j = pathTree.size() - 1; j > level; j--)
-                    pathTree.remove(j);
-            String fullPath = "";
-            for (String c : pathTree)
-                fullPath += c;
-            // Now, split it again, and rebuild it again, but only figure out how big the object itself is.
-            String[] divided = fullPath.split("\\/");
-            String affectedObjectPath = "";
-            for (String item : divided) {
-                if (item.isEmpty()) {
-                    continue;
-                }
-                if (item.equalsIgnoreCase("static") || item.equalsIgnoreCase("global") || item.equalsIgnoreCase("tmp"))
-                    continue;
-                if (item.equals("proc") || item.equals("verb") || item.equals("var")) {
-                    break;
-                }
-                if (item.contains("=") || item.contains("(")) {
-                    break;
-                }
-                affectedObjectPath += "/" + item;
-            }
-            ObjectTree.Item item = tree.getOrCreate(affectedObjectPath);
-            if (fullPath.contains("(") && fullPath.indexOf("(") < fullPath.lastIndexOf("/"))
+            ObjectTree.Item item = tree.getOrCreate(d.objectPath);
+            if (d.varName == null)
                 continue;
-            fullPath = fullPath.replaceAll("/tmp", ""); // Let's avoid giving a shit about whether the var is tmp, static, or global.
-            fullPath = fullPath.replaceAll("/static", "");
-            fullPath = fullPath.replaceAll("/global", "");
-            // Parse the var definitions.
-            if (fullPath.contains("var/") ||
-                    (fullPath.contains("=") && (!fullPath.contains("(") || fullPath.indexOf("(") > fullPath.indexOf("=")))) {
-                String[] split = Pattern.compile("=").split(fullPath, 2);
-                String varname = split[0].substring(split[0].lastIndexOf("/") + 1, split[0].length()).trim();
-                if (split.length > 1) {
-                    String val = split[1].trim();
-                    String origVal = "";
-                    while (!origVal.equals(val)) {
-                        origVal = val;
-                        // Trust me, this is the fastest way to parse the macros.
-                        Matcher m = MACRO_PATTERN.getMatcher(val);
-                        StringBuffer outVal = new StringBuffer();
-                        while (m.find()) {
-                            if (macros.containsKey(m.group(0)))
-                                m.appendReplacement(outVal, macros.get(m.group(0)));
-                            else
-                                m.appendReplacement(outVal, m.group(0));
-                        }
-                        m.appendTail(outVal);
-                        val = outVal.toString();
-                    }
-                    /*// Parse additions.
-					Matcher m = Pattern.compile("([\\d\\.]+)[ \\t]*\\+[ \\t]*([\\d\\.]+)").matcher(val);
-					StringBuffer outVal = new StringBuffer();
-					while(m.find()) {
-						m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) + Float.parseFloat(m.group(2)))+"");
-					}
-					m.appendTail(outVal);
-					val = outVal.toString();
-					// Parse subtractions.
-					m = Pattern.compile("([\\d\\.]+)[ \\t]*\\-[ \\t]*([\\d\\.]+)").matcher(val);
-					outVal = new StringBuffer();
-					while(m.find()) {
-						m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) - Float.parseFloat(m.group(2)))+"");
-					}
-					m.appendTail(outVal);
-					val = outVal.toString();*/
+            if (d.value != null) {
+                String val = macros.expand(d.value);
+                /*// Parse additions.
+				Matcher m = Pattern.compile("([\\d\\.]+)[ \\t]*\\+[ \\t]*([\\d\\.]+)").matcher(val);
+				StringBuffer outVal = new StringBuffer();
+				while(m.find()) {
+					m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) + Float.parseFloat(m.group(2)))+"");
+				}
+				m.appendTail(outVal);
+				val = outVal.toString();
+				// Parse subtractions.
+				m = Pattern.compile("([\\d\\.]+)[ \\t]*\\-[ \\t]*([\\d\\.]+)").matcher(val);
+				outVal = new StringBuffer();
+				while(m.find()) {
+					m.appendReplacement(outVal, (Float.parseFloat(m.group(1)) - Float.parseFloat(m.group(2)))+"");
+				}
+				m.appendTail(outVal);
+				val = outVal.toString();*/
 
-                    item.setVar(varname, val);
-                } else {
-                    item.setVar(varname);
-                }
+                item.setVar(d.varName, val);
+            } else {
+                item.setVar(d.varName);
             }
         }
 		if(dlg[0] != null)
 			javax.swing.SwingUtilities.invokeLater(() -> dlg[0].setVisible(false));
-		
-		// Reset variables
-		isCommenting = false;
-		inMultilineString = false;
-		multilineStringDepth = 0;
-		parenthesisDepth = 0;
-		stringDepth = 0;
-		stringExpDepth = 0;
-		parenthesesDepth = 0;
-		arrayDepth = new int[50];
 	}
 
 	private void doSubParse(BufferedReader br, Path currentFile) throws IOException {
-		ObjectTreeParser parser = new ObjectTreeParser(tree);
+		ObjectTreeParser parser = new ObjectTreeParser(tree, tokenizer);
 		parser.macros = macros;
 		parser.doParse(br, currentFile, false);
 	}
 
-	public String stripComments(String s)
-	{
-		StringBuilder o = new StringBuilder();
-		for(int i = 0; i < s.length(); i++) {
-			char pC = ' ';
-			if(i - 1 >= 0)
-				pC = s.charAt(i - 1);
-			char ppC = ' ';
-			if(i - 2 >= 0)
-				ppC = s.charAt(i - 2);
-			char c = s.charAt(i);
-			char nC = ' ';
-			if(i + 1 < s.length())
-				nC = s.charAt(i + 1);
-			if(!isCommenting) {
-				if(c == '/' && nC == '/' && stringDepth == 0)
-					break;
-				if(c == '/' && nC == '*' && stringDepth == 0) {
-					isCommenting = true;
-					continue;
-				}
-				if(c == '"' && nC == '}' && (pC != '\\' || ppC == '\\') && stringDepth == multilineStringDepth && inMultilineString)
-					inMultilineString = false;
-				if(c == '"' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth && (!inMultilineString || multilineStringDepth != stringDepth)) {
-					stringDepth--;
-				} else if(c == '"' && stringDepth == stringExpDepth && (!inMultilineString || multilineStringDepth != stringDepth)) {
-					stringDepth++;
-					if(pC == '{') {
-						inMultilineString = true;
-						multilineStringDepth = stringDepth;
-					}
-				}
-				if(c == '[' && stringDepth == stringExpDepth)
-					arrayDepth[stringExpDepth]++;
-				else if(c == '[' && (pC != '\\' || ppC == '\\') && stringDepth != stringExpDepth)
-					stringExpDepth++;
-				
-				if(c == ']' && arrayDepth[stringExpDepth] != 0)
-					arrayDepth[stringExpDepth]--;
-				else if(c == ']' && stringDepth > 0 && stringDepth == stringExpDepth)
-					stringExpDepth--;
-				if(c == '(' && stringDepth == stringExpDepth)
-					parenthesisDepth++;
-				if(c == ')' && stringDepth == stringExpDepth)
-					parenthesisDepth--;
-				o.append(c);
+	private void applySubParse(List<Declaration> declarations, Path currentFile) throws IOException {
+		ObjectTreeParser parser = new ObjectTreeParser(tree, tokenizer);
+		parser.macros = macros;
+		parser.cache = cache;
+		parser.parsedFiles = parsedFiles;
+		parser.apply(declarations, currentFile, false);
+	}
+
+	private ParsedFile readFile(File file) throws IOException {
+		ParsedFile parsed = readFile(cache, tokenizer, file);
+		if (parsedFiles != null)
+			parsedFiles.add(parsed);
+		return parsed;
+	}
+
+	// Stages 1 and 2 for a whole file, on a fresh parser so the comment state is the file's own.
+	private static ParsedFile readFile(ObjectTreeCache cache, Function<List<String>, List<Declaration>> tokenizer,
+			File file) throws IOException {
+		// Size and date from before reading, so an edit made while reading makes the cache entry stale, not wrong.
+		long size = file.length();
+		long lastModified = file.lastModified();
+		List<Declaration> declarations = cache != null ? cache.getDeclarations(file, size, lastModified) : null;
+		if (declarations == null) {
+			ObjectTreeParser parser = new ObjectTreeParser(null, tokenizer);
+			declarations = parser.tokenize(parser.readLines(new BufferedReader(new FileReader(file))));
+		}
+		return new ParsedFile(file, size, lastModified, declarations);
+	}
+
+	// Be robust to malformed includes and different spacing
+	private static String includePath(String line) {
+		String path = null;
+		int firstQuote = line.indexOf('"');
+		int lastQuote = line.lastIndexOf('"');
+		if (firstQuote >= 0 && lastQuote > firstQuote) {
+			path = line.substring(firstQuote + 1, lastQuote);
+		} else {
+			// Try angle brackets (rare in DM, but cheap to support)
+			int lt = line.indexOf('<');
+			int gt = line.lastIndexOf('>');
+			if (lt >= 0 && gt > lt) {
+				path = line.substring(lt + 1, gt);
 			}
-			else {
-				if(c == '*' && nC == '/') {
-					isCommenting = false;
-					i++;
+		}
+		if (path == null || path.trim().isEmpty())
+			return null;
+		return path;
+	}
+
+	private static File includeFile(Path currentFile, String path) {
+		return new File(currentFile.getParent().toFile(), Util.separatorsToSystem(path));
+	}
+
+	/**
+	 * One line of a file after stage 2: either a preprocessor directive or an object path with maybe a var.
+	 */
+	static class Declaration {
+		String directive;
+		String objectPath;
+		String varName;
+		String value;
+
+		Declaration(String directive) {
+			this.directive = directive;
+		}
+
+		Declaration(String objectPath, String varName, String value) {
+			this.objectPath = objectPath;
+			this.varName = varName;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Turns one line into a declaration, keeping track of the indentation-based path tree between lines.
+	 *
+	 * This used to be a pile of split/replaceAll/string concatenation per line. It's index arithmetic over one
+	 * reused buffer now, but the result has to stay exactly the same, quirks included: "/tmp", "/static" and
+	 * "/global" get cut out of the whole line (value too) before the var name is read, and the object path stops at
+	 * the first segment with a "=" or "(" in it.
+	 */
+	private static class LineLexer {
+		private final ArrayList<String> pathTree = new ArrayList<>();
+		private final StringBuilder fullPath = new StringBuilder();
+		private final StringBuilder objectPath = new StringBuilder();
+		private String lastObjectPath = "";
+
+		Declaration lex(String line) {
+			int start = 0;
+			while (start < line.length() && line.charAt(start) <= ' ')
+				start++;
+			// #include, #define, and #undef get handled in order when applying
+			if (start < line.length() && line.charAt(start) == '#')
+				return new Declaration(line.trim());
+
+			// How far is this line indented?
+			int level = 0;
+			while (level < line.length() && line.charAt(level) == ' ')
+				level++;
+			// Rebuild the path tree.
+			for (int j = pathTree.size(); j <= level; j++)
+				pathTree.add("");
+			pathTree.set(level, cleanPath(line.trim()));
+			for (int j = pathTree.size() - 1; j > level; j--)
+				pathTree.remove(j);
+			fullPath.setLength(0);
+			for (String c : pathTree)
+				fullPath.append(c);
+
+			Declaration declaration = new Declaration(objectPath(), null, null);
+
+			int paren = fullPath.indexOf("(");
+			if (paren >= 0 && paren < fullPath.lastIndexOf("/"))
+				return declaration;
+			// Let's avoid giving a shit about whether the var is tmp, static, or global.
+			removeAll("/tmp");
+			removeAll("/static");
+			removeAll("/global");
+			// Parse the var definitions.
+			paren = fullPath.indexOf("(");
+			int equals = fullPath.indexOf("=");
+			if (fullPath.indexOf("var/") >= 0 || (equals >= 0 && (paren < 0 || paren > equals))) {
+				int nameEnd = equals >= 0 ? equals : fullPath.length();
+				int nameStart = fullPath.lastIndexOf("/", nameEnd - 1) + 1;
+				declaration.varName = trimmed(nameStart, nameEnd);
+				if (equals >= 0)
+					declaration.value = trimmed(equals + 1, fullPath.length());
+			}
+			return declaration;
+		}
+
+		// The object part of the path: segments up to the first proc/verb/var or one with "=" or "(" in it,
+		// leaving out static/global/tmp.
+		private String objectPath() {
+			objectPath.setLength(0);
+			int length = fullPath.length();
+			int segStart = 0;
+			while (segStart <= length) {
+				int segEnd = fullPath.indexOf("/", segStart);
+				if (segEnd < 0)
+					segEnd = length;
+				int segLength = segEnd - segStart;
+				if (segLength > 0 && !isModifier(segStart, segLength)) {
+					if (isKeyword(segStart, segLength) || hasOperator(segStart, segEnd))
+						break;
+					objectPath.append('/').append(fullPath, segStart, segEnd);
 				}
+				segStart = segEnd + 1;
+			}
+			// Consecutive lines are mostly about the same object, so share the string.
+			if (!lastObjectPath.contentEquals(objectPath))
+				lastObjectPath = objectPath.toString();
+			return lastObjectPath;
+		}
+
+		private boolean isModifier(int start, int length) {
+			return segmentEquals(start, length, "static", true) || segmentEquals(start, length, "global", true)
+					|| segmentEquals(start, length, "tmp", true);
+		}
+
+		private boolean isKeyword(int start, int length) {
+			return segmentEquals(start, length, "proc", false) || segmentEquals(start, length, "verb", false)
+					|| segmentEquals(start, length, "var", false);
+		}
+
+		private boolean segmentEquals(int start, int length, String word, boolean ignoreCase) {
+			if (length != word.length())
+				return false;
+			for (int i = 0; i < length; i++) {
+				char a = fullPath.charAt(start + i);
+				char b = word.charAt(i);
+				if (a == b)
+					continue;
+				// Same comparison String.equalsIgnoreCase does
+				if (!ignoreCase)
+					return false;
+				char ua = Character.toUpperCase(a);
+				char ub = Character.toUpperCase(b);
+				if (ua != ub && Character.toLowerCase(ua) != Character.toLowerCase(ub))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean hasOperator(int start, int end) {
+			for (int i = start; i < end; i++) {
+				char c = fullPath.charAt(i);
+				if (c == '=' || c == '(')
+					return true;
+			}
+			return false;
+		}
+
+		// Same as String.replace(target, ""): left to right, matches don't overlap, and no second pass.
+		private void removeAll(String target) {
+			int from = fullPath.indexOf(target);
+			if (from < 0)
+				return;
+			int out = from;
+			while (from >= 0) {
+				int next = fullPath.indexOf(target, from + target.length());
+				int copyEnd = next >= 0 ? next : fullPath.length();
+				for (int i = from + target.length(); i < copyEnd; i++)
+					fullPath.setCharAt(out++, fullPath.charAt(i));
+				from = next;
 			}
-				
+			fullPath.setLength(out);
 		}
-		return o.toString();
+
+		// Same as String.trim() on the range.
+		private String trimmed(int start, int end) {
+			while (start < end && fullPath.charAt(start) <= ' ')
+				start++;
+			while (end > start && fullPath.charAt(end - 1) <= ' ')
+				end--;
+			return fullPath.substring(start, end);
+		}
+	}
+
+	/**
+	 * A file's declarations along with the size and date the file had when it was read. A size of -1 means the
+	 * file didn't exist.
+	 */
+	static class ParsedFile {
+		final File file;
+		final long size;
+		final long lastModified;
+		final List<Declaration> declarations;
+
+		ParsedFile(File file, long size, long lastModified, List<Declaration> declarations) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.declarations = declarations;
+		}
+	}
+
+	/**
+	 * Reads and tokenizes the main file's includes on a thread pool, a limited number of files ahead of the one
+	 * being applied. Applying still happens one file at a time in include order, so macros and overrides come out
+	 * exactly like a serial parse.
+	 */
+	private static class IncludePrefetcher {
+		private final ExecutorService pool;
+		private final ObjectTreeCache cache;
+		private final Function<List<String>, List<Declaration>> tokenizer;
+		private final int window;
+		private final ArrayDeque<File> pending = new ArrayDeque<>();
+		private final ArrayDeque<File> runningFiles = new ArrayDeque<>();
+		private final ArrayDeque<Future<ParsedFile>> running = new ArrayDeque<>();
+
+		IncludePrefetcher(ExecutorService pool, ObjectTreeCache cache, Function<List<String>, List<Declaration>> tokenizer) {
+			this.pool = pool;
+			this.cache = cache;
+			this.tokenizer = tokenizer;
+			this.window = Runtime.getRuntime().availableProcessors() * 4;
+		}
+
+		void queue(List<Declaration> declarations, Path currentFile) {
+			for (Declaration d : declarations) {
+				if (d.directive == null || !d.directive.startsWith("#include"))
+					continue;
+				String path = includePath(d.directive);
+				if (path == null || !(path.endsWith(".dm") || path.endsWith(".dme")))
+					continue;
+				File file = includeFile(currentFile, path);
+				if (file.exists())
+					pending.add(file);
+			}
+			fill();
+		}
+
+		/**
+		 * @return The declarations of the file, or null if it wasn't the next one queued (then it gets parsed the
+		 *         normal way).
+		 */
+		ParsedFile take(File file) throws IOException {
+			if (runningFiles.isEmpty() || !runningFiles.peek().equals(file))
+				return null;
+			runningFiles.poll();
+			Future<ParsedFile> future = running.poll();
+			fill();
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while parsing " + file, e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException("Failed to parse " + file, e.getCause());
+			}
+		}
+
+		private void fill() {
+			while (running.size() < window && !pending.isEmpty()) {
+				File file = pending.poll();
+				runningFiles.add(file);
+				running.add(pool.submit(() -> readFile(cache, tokenizer, file)));
+			}
+		}
+	}
+
+	public String stripComments(String s)
+	{
+		return comments.stripComments(s);
 	}
 	
 	public static String cleanPath(String s)
@@ -0,0 +1,174 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+/**
+ * Every var of a type, inherited ones included, as it stands once the tree is complete. Never changes after it's
+ * built, so it can be read from any thread.
+ *
+ * Vars are looked up by symbol ID (see VarSymbols). Which symbol sits in which slot, the layout, is shared by every
+ * type that ends up with the same set of vars, which is most siblings. A subtype that declares new vars gets its
+ * parent's layout with them added at the end, so slots never move. Values are kept in small chunks of slots and a
+ * type only copies the chunks it overrides something in, everything else is the same arrays as its parent's. A type
+ * that doesn't change anything it inherits just uses its parent's table. type and parentType are left out, they're
+ * different for every type and would stop any of that sharing; Item.getVar gets them from the type's own vars.
+ */
+public final class ResolvedVars {
+	private static final int CHUNK_BITS = 4;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	static final ResolvedVars EMPTY = new ResolvedVars(new Layout(null, new int[0]), new String[0][]);
+
+	private final Layout layout;
+	private final String[][] chunks;
+
+	private ResolvedVars(Layout layout, String[][] chunks) {
+		this.layout = layout;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * @return The value, or null if the type doesn't have that var.
+	 */
+	public String get(int symbol) {
+		int slot = layout.slotOf(symbol);
+		return slot >= 0 ? chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)] : null;
+	}
+
+	public int size() {
+		return layout.bySlot.length;
+	}
+
+	public int symbolAt(int slot) {
+		return layout.bySlot[slot];
+	}
+
+	public String valueAt(int slot) {
+		return chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+	}
+
+	static final class Layout {
+		// Symbol in each slot.
+		final int[] bySlot;
+		// Symbols sorted, with the slot each one is in, for the lookup.
+		final int[] symbols;
+		final int[] slots;
+
+		Layout(Layout base, int[] added) {
+			int baseSize = base != null ? base.bySlot.length : 0;
+			bySlot = new int[baseSize + added.length];
+			if(base != null)
+				System.arraycopy(base.bySlot, 0, bySlot, 0, baseSize);
+			System.arraycopy(added, 0, bySlot, baseSize, added.length);
+			long[] sorted = new long[bySlot.length];
+			for(int slot = 0; slot < bySlot.length; slot++)
+				sorted[slot] = ((long)bySlot[slot] << 32) | slot;
+			Arrays.sort(sorted);
+			symbols = new int[sorted.length];
+			slots = new int[sorted.length];
+			for(int i = 0; i < sorted.length; i++) {
+				symbols[i] = (int)(sorted[i] >>> 32);
+				slots[i] = (int)sorted[i];
+			}
+		}
+
+		int slotOf(int symbol) {
+			int[] symbols = this.symbols;
+			int lo = 0;
+			int hi = symbols.length - 1;
+			while(lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int s = symbols[mid];
+				if(s < symbol)
+					lo = mid + 1;
+				else if(s > symbol)
+					hi = mid - 1;
+				else
+					return slots[mid];
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Builds the tables for one tree. Not thread safe.
+	 */
+	static final class Builder {
+		// Layouts made from a layout by adding vars, so siblings declaring the same new vars share one.
+		private final Map<Layout, Map<LayoutKey, Layout>> extensions = new IdentityHashMap<>();
+
+		private Layout extend(Layout base, int[] added) {
+			Arrays.sort(added);
+			Map<LayoutKey, Layout> known = extensions.computeIfAbsent(base, l -> new HashMap<>());
+			return known.computeIfAbsent(new LayoutKey(added), k -> new Layout(base, added));
+		}
+
+		/**
+		 * Builds the table of a type from its parent's table and its own vars.
+		 */
+		ResolvedVars build(ResolvedVars inherited, Map<String, String> own) {
+			int[] ownSymbols = new int[own.size()];
+			String[] ownValues = new String[own.size()];
+			int count = 0;
+			int addedCount = 0;
+			boolean changed = false;
+			for(Map.Entry<String, String> e : own.entrySet()) {
+				int symbol = VarSymbols.of(e.getKey());
+				if(symbol == VarSymbols.TYPE || symbol == VarSymbols.PARENT_TYPE)
+					continue;
+				ownSymbols[count] = symbol;
+				ownValues[count] = e.getValue();
+				count++;
+				if(!e.getValue().equals(inherited.get(symbol)))
+					changed = true;
+				if(inherited.layout.slotOf(symbol) < 0)
+					addedCount++;
+			}
+			if(!changed)
+				return inherited;
+
+			Layout layout = inherited.layout;
+			if(addedCount > 0) {
+				int[] added = new int[addedCount];
+				int a = 0;
+				for(int i = 0; i < count; i++) {
+					if(inherited.layout.slotOf(ownSymbols[i]) < 0)
+						added[a++] = ownSymbols[i];
+				}
+				layout = extend(layout, added);
+			}
+			String[][] chunks = Arrays.copyOf(inherited.chunks, (layout.bySlot.length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+			boolean[] copied = new boolean[chunks.length];
+			for(int i = 0; i < count; i++) {
+				int slot = layout.slotOf(ownSymbols[i]);
+				int chunk = slot >>> CHUNK_BITS;
+				if(!copied[chunk]) {
+					chunks[chunk] = chunks[chunk] != null ? chunks[chunk].clone() : new String[CHUNK_SIZE];
+					copied[chunk] = true;
+				}
+				chunks[chunk][slot & (CHUNK_SIZE - 1)] = ownValues[i];
+			}
+			return new ResolvedVars(layout, chunks);
+		}
+	}
+
+	private static final class LayoutKey {
+		final int[] symbols;
+		final int hash;
+
+		LayoutKey(int[] symbols) {
+			this.symbols = symbols;
+			this.hash = Arrays.hashCode(symbols);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof LayoutKey && Arrays.equals(((LayoutKey)o).symbols, symbols);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
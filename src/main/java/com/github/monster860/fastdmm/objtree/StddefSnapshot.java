@@ -0,0 +1,138 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.github.monster860.fastdmm.Util;
+
+/**
+ * stddef.dm already parsed: the macros it defines and the tree right after it, before any of the environment has
+ * been applied. The build makes it with the stddefSnapshot task (which runs main) and puts it in the jar next to
+ * stddef.dm, so opening an environment can start from it instead of parsing stddef.dm every time.
+ *
+ * It has the hash of the stddef.dm it was made from. If it doesn't match the stddef.dm on the classpath (or there's
+ * no snapshot, like when running straight out of an IDE) the parser just parses stddef.dm like before.
+ */
+public class StddefSnapshot {
+	public static final String RESOURCE = "stddef.snapshot";
+
+	private static final int MAGIC = 0x46445344; // "FDSD"
+	private static final int VERSION = 1;
+
+	private static int stddefHash;
+	private static boolean hasStddefHash = false;
+
+	// stddef.dm comes with FastDMM, so it can't change while it's running.
+	static synchronized int stddefHash() throws IOException {
+		if(!hasStddefHash) {
+			stddefHash = Arrays.hashCode(Util.getFileAsBytes("stddef.dm"));
+			hasStddefHash = true;
+		}
+		return stddefHash;
+	}
+
+	/**
+	 * Puts the snapshot's macros and tree into the parser, replacing what's in its tree.
+	 * @return false if there's no usable snapshot, in which case the parser hasn't been touched.
+	 */
+	static boolean load(ObjectTreeParser parser) {
+		try {
+			byte[] bytes = Util.getFileAsBytes(RESOURCE);
+			if(bytes == null)
+				return false;
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			if(in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != stddefHash())
+				return false;
+
+			MacroTable macros = new MacroTable();
+			int macroCount = in.getInt();
+			for(int i = 0; i < macroCount; i++)
+				macros.define(ObjectTreeCache.readString(in), ObjectTreeCache.readString(in));
+
+			int dirCount = in.getInt();
+			Path[] fileDirs = new Path[dirCount];
+			for(int i = 0; i < dirCount; i++)
+				fileDirs[i] = Paths.get(ObjectTreeCache.readString(in));
+
+			int itemCount = in.getInt();
+			ObjectTree.Item[] items = new ObjectTree.Item[itemCount];
+			String[] parents = new String[itemCount];
+			for(int i = 0; i < itemCount; i++) {
+				ObjectTree.Item item = new ObjectTree.Item(ObjectTreeCache.readString(in));
+				parents[i] = in.get() != 0 ? ObjectTreeCache.readString(in) : null;
+				item.vars.clear();
+				int varCount = in.getInt();
+				for(int v = 0; v < varCount; v++)
+					item.vars.put(ObjectTreeCache.readString(in), ObjectTreeCache.readString(in));
+				items[i] = item;
+			}
+
+			// Everything's read, so nothing below can leave the parser half loaded.
+			ObjectTree tree = parser.tree;
+			tree.items.clear();
+			for(ObjectTree.Item item : items)
+				tree.addItem(item);
+			for(int i = 0; i < itemCount; i++) {
+				if(parents[i] != null)
+					items[i].parent = tree.get(parents[i]);
+			}
+			tree.fileDirs.clear();
+			tree.fileDirs.addAll(Arrays.asList(fileDirs));
+			parser.macros = macros;
+			return true;
+		} catch(Exception e) {
+			// Broken snapshot, parsing stddef.dm still works.
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	static void write(ObjectTreeParser parser, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(stddefHash());
+
+		MacroTable macros = parser.macros;
+		out.writeInt(macros.names().size());
+		for(String name : macros.names()) {
+			ObjectTreeCache.writeString(out, name);
+			ObjectTreeCache.writeString(out, macros.get(name));
+		}
+
+		ObjectTree tree = parser.tree;
+		out.writeInt(tree.fileDirs.size());
+		for(Path dir : tree.fileDirs)
+			ObjectTreeCache.writeString(out, dir.toString());
+		out.writeInt(tree.items.size());
+		for(ObjectTree.Item item : tree.items.values()) {
+			ObjectTreeCache.writeString(out, item.path);
+			out.writeByte(item.parent != null ? 1 : 0);
+			if(item.parent != null)
+				ObjectTreeCache.writeString(out, item.parent.path);
+			out.writeInt(item.vars.size());
+			for(Map.Entry<String, String> var : item.vars.entrySet()) {
+				ObjectTreeCache.writeString(out, var.getKey());
+				ObjectTreeCache.writeString(out, var.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Parses stddef.dm and writes the snapshot. Run by the build.
+	 * @param args The file to write.
+	 */
+	public static void main(String[] args) throws IOException {
+		ObjectTreeParser parser = new ObjectTreeParser();
+		parser.parseStddef();
+		File file = new File(args[0]);
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		ObjectTreeCache.write(file, out -> write(parser, out));
+		System.out.println("Wrote " + parser.tree.items.size() + " types and " + parser.macros.names().size() + " macros to " + file);
+	}
+}
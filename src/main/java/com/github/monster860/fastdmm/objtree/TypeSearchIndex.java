@@ -0,0 +1,177 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.*;
+
+/**
+ * Case insensitive substring search over type paths and their name vars, for the search boxes on the object trees.
+ *
+ * Every three character run of the text of each type is indexed with the IDs of the types it's in, so a query only
+ * has to check the types that have the least common run of the query in them instead of all of them. Queries
+ * shorter than that just check every type, the lowercased text is kept around so that's still quick.
+ *
+ * Types are known by their ObjectTree type IDs, so the tree has to be complete before this is built.
+ */
+public class TypeSearchIndex {
+	private final ObjectTree tree;
+	// Lowercased path and name of each type, by type ID.
+	private final String[] paths;
+	private final String[] names;
+	// Open addressing table from trigram to the IDs of the types that have it. A key of 0 is an empty slot, a trigram
+	// can't be 0 since no one types three nulls.
+	private long[] keys = new long[1 << 12];
+	private int[][] ids = new int[1 << 12][];
+	private int[] sizes = new int[1 << 12];
+	private int used = 0;
+
+	public TypeSearchIndex(ObjectTree tree) {
+		this.tree = tree;
+		int count = tree.typesById.length;
+		paths = new String[count];
+		names = new String[count];
+		for(int id = 0; id < count; id++) {
+			ObjectTree.Item item = tree.typesById[id];
+			if(item == null) {
+				paths[id] = "";
+				names[id] = "";
+				continue;
+			}
+			paths[id] = item.path.toLowerCase();
+			names[id] = nameOf(item);
+			addTrigrams(paths[id], id);
+			addTrigrams(names[id], id);
+		}
+		for(int slot = 0; slot < keys.length; slot++) {
+			if(keys[slot] != 0)
+				ids[slot] = Arrays.copyOf(ids[slot], sizes[slot]);
+		}
+		sizes = null;
+	}
+
+	private static String nameOf(ObjectTree.Item item) {
+		String name = item.getVar(VarSymbols.NAME);
+		if(name == null || name.equals("null"))
+			return "";
+		if(name.length() >= 2 && name.startsWith("\"") && name.endsWith("\""))
+			name = name.substring(1, name.length() - 1);
+		return name.toLowerCase();
+	}
+
+	private static long trigram(String s, int i) {
+		return ((long)s.charAt(i) << 32) | ((long)s.charAt(i + 1) << 16) | s.charAt(i + 2);
+	}
+
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+		while(keys[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void addTrigrams(String s, int id) {
+		for(int i = 0; i + 3 <= s.length(); i++) {
+			long key = trigram(s, i);
+			int slot = slotOf(key);
+			if(keys[slot] == 0) {
+				if(used * 2 >= keys.length) {
+					grow();
+					slot = slotOf(key);
+				}
+				keys[slot] = key;
+				ids[slot] = new int[4];
+				used++;
+			}
+			int size = sizes[slot];
+			// IDs go in in order, so the same type showing up again is always the last one.
+			if(size > 0 && ids[slot][size - 1] == id)
+				continue;
+			if(size == ids[slot].length)
+				ids[slot] = Arrays.copyOf(ids[slot], size * 2);
+			ids[slot][size] = id;
+			sizes[slot] = size + 1;
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[][] oldIds = ids;
+		int[] oldSizes = sizes;
+		keys = new long[oldKeys.length * 2];
+		ids = new int[keys.length][];
+		sizes = new int[keys.length];
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] == 0)
+				continue;
+			int slot = slotOf(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			ids[slot] = oldIds[i];
+			sizes[slot] = oldSizes[i];
+		}
+	}
+
+	private boolean matches(int id, String query) {
+		return paths[id].contains(query) || names[id].contains(query);
+	}
+
+	/**
+	 * @param query Search text. Case doesn't matter.
+	 * @return IDs of every type whose path or name contains the query, lowest first.
+	 */
+	public int[] matches(String query) {
+		query = query.trim().toLowerCase();
+		int[] candidates = null;
+		if(query.length() >= 3) {
+			for(int i = 0; i + 3 <= query.length(); i++) {
+				int slot = slotOf(trigram(query, i));
+				if(keys[slot] == 0)
+					return new int[0];
+				if(candidates == null || ids[slot].length < candidates.length)
+					candidates = ids[slot];
+			}
+		}
+		int count = candidates != null ? candidates.length : paths.length;
+		int[] out = new int[count];
+		int found = 0;
+		for(int i = 0; i < count; i++) {
+			int id = candidates != null ? candidates[i] : i;
+			if(matches(id, query))
+				out[found++] = id;
+		}
+		return Arrays.copyOf(out, found);
+	}
+
+	/**
+	 * @param query Search text. Case doesn't matter.
+	 * @param limit Most results to return.
+	 * @return Matching types, best first: the last part of the path being the query or starting with it, then the
+	 * same for the name, then the query starting any other part of the path, then the rest. Shorter paths first within
+	 * each of those.
+	 */
+	public List<ObjectTree.Item> search(String query, int limit) {
+		String q = query.trim().toLowerCase();
+		int[] ids = matches(q);
+		long[] ranked = new long[ids.length];
+		for(int i = 0; i < ids.length; i++) {
+			// Rank in the top bits, then path length, then the ID so the order doesn't change between searches.
+			ranked[i] = ((long)rank(ids[i], q) << 56) | ((long)Math.min(paths[ids[i]].length(), 0xFFFF) << 32) | ids[i];
+		}
+		Arrays.sort(ranked);
+		List<ObjectTree.Item> out = new ArrayList<>();
+		for(int i = 0; i < ranked.length && out.size() < limit; i++)
+			out.add(tree.typesById[(int)ranked[i]]);
+		return out;
+	}
+
+	private int rank(int id, String q) {
+		String path = paths[id];
+		int lastSlash = path.lastIndexOf('/');
+		if(path.startsWith(q, lastSlash + 1))
+			return path.length() - lastSlash - 1 == q.length() ? 0 : 1;
+		String name = names[id];
+		if(name.startsWith(q))
+			return name.length() == q.length() ? 2 : 3;
+		if(path.contains("/" + q))
+			return 4;
+		return 5;
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.monster860.fastdmm.objtree;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every var name a small int ID, so resolved var tables can be looked up without hashing strings.
+ *
+ * IDs are handed out in the order names are first seen and never change, so the ones the renderer uses all the time
+ * can be constants. Names are shared between every tree opened in this session, there aren't that many of them.
+ */
+public final class VarSymbols {
+	private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	private static volatile String[] names = new String[256];
+	private static int count = 0;
+
+	public static final int TYPE = of("type");
+	public static final int PARENT_TYPE = of("parentType");
+	public static final int NAME = of("name");
+	public static final int ICON = of("icon");
+	public static final int ICON_STATE = of("icon_state");
+	public static final int DIR = of("dir");
+	public static final int LAYER = of("layer");
+	public static final int PLANE = of("plane");
+	public static final int PIXEL_X = of("pixel_x");
+	public static final int PIXEL_Y = of("pixel_y");
+	public static final int COLOR = of("color");
+
+	private VarSymbols() {
+	}
+
+	/**
+	 * @return The ID of the name, giving it one if it doesn't have one yet.
+	 */
+	public static int of(String name) {
+		Integer id = ids.get(name);
+		if(id != null)
+			return id;
+		synchronized(VarSymbols.class) {
+			id = ids.get(name);
+			if(id != null)
+				return id;
+			if(count == names.length)
+				names = Arrays.copyOf(names, count * 2);
+			// The array has to have the name before the map hands out the ID.
+			names[count] = name;
+			ids.put(name, count);
+			return count++;
+		}
+	}
+
+	/**
+	 * @return The ID of the name, or -1 if no var by that name has ever been seen.
+	 */
+	public static int lookup(String name) {
+		Integer id = ids.get(name);
+		return id != null ? id : -1;
+	}
+
+	public static String name(int id) {
+		return names[id];
+	}
+}